@@ -1,2 +1,8 @@
 #!/bin/bash
+# With a class-data archive from `mvn -Pcds package`, start from it; otherwise through Maven
+JAR=target/musicfilter-1.0-SNAPSHOT.jar
+if [ -f target/musicfilter.jsa ] && [ -f target/classpath.txt ] && [ -f "$JAR" ]; then
+    exec java -XX:SharedArchiveFile=target/musicfilter.jsa -cp "$JAR:$(cat target/classpath.txt)" \
+        com.stopsopa.musicfilter.Launcher "$@"
+fi
 mvn javafx:run
@@ -7,10 +7,22 @@ import javafx.stage.Stage;
 
 public class App extends Application {
 
+    private MusicController controller;
+
     @Override
     public void start(Stage stage) {
-        MusicController controller = new MusicController(stage);
+        controller = new MusicController(stage);
+        Scene scene = createScene(controller);
+        stage.setScene(scene);
+        stage.setTitle("Music Filter");
+        controller.restoreSession();
+        // Java Sound and the media stack are initialised once the window is up
+        Startup.whenInteractive(scene, controller.getTableView().getItems().size());
+        stage.show();
+    }
 
+    /** The main window's scene, shared with {@link UiBenchmark}. */
+    static Scene createScene(MusicController controller) {
         StackPane root = new StackPane(controller.getView());
         Scene scene = new Scene(root, 1060, 800);
 
@@ -20,10 +32,13 @@ public class App extends Application {
 
         // Handle Global Key Events via Event Filter
         scene.addEventFilter(javafx.scene.input.KeyEvent.KEY_PRESSED, controller::handleKeyPressed);
+        return scene;
+    }
 
-        stage.setScene(scene);
-        stage.setTitle("Music Filter");
-        stage.show();
+    @Override
+    public void stop() {
+        if (controller != null)
+            controller.saveSession();
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,8 @@
+package com.stopsopa.musicfilter;
+
+/**
+ * Container formats we can tell apart from their first bytes.
+ */
+public enum AudioFileType {
+    MP3, ADTS, MP4, FLAC, OGG, WAV, AIFF
+}
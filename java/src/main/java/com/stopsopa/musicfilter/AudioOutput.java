@@ -0,0 +1,140 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.prefs.Preferences;
+
+/**
+ * Output device and line buffer for {@link JavaSoundAudioPlayer}. The mixer is
+ * chosen by the user (the system default unless set). The line buffer is tuned
+ * per mixer and format from what playback reports: underruns grow it, long
+ * clean sessions in which the line never ran below half full shrink it, always
+ * within {@link #MIN_BUFFER_MS}..{@link #MAX_BUFFER_MS}. Both are kept in the
+ * user's preferences.
+ */
+public class AudioOutput implements JavaSoundAudioPlayer.LineFactory {
+
+    static final int MIN_BUFFER_MS = 40;
+    static final int MAX_BUFFER_MS = 500;
+    private static final int INITIAL_BUFFER_MS = 150;
+    private static final double GROW = 1.5;
+    private static final double SHRINK = 0.9;
+    // shrinking needs this much clean playback, with at least this share of the buffer queued all along: the
+    // margin that was never used. Writes wait for room in almost every session, so that alone says nothing.
+    private static final double SHRINK_AFTER_SECONDS = 60;
+    private static final double SHRINK_LOWEST_FILL = 0.5;
+
+    private static final Preferences PREFS = Preferences.userNodeForPackage(AudioOutput.class);
+    private static final Preferences BUFFERS = PREFS.node("lineBuffers");
+    private static final AudioOutput INSTANCE = new AudioOutput();
+
+    // key of each line we opened, for attributing what playback reports about it
+    private final Map<SourceDataLine, String> keys = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public static AudioOutput get() {
+        return INSTANCE;
+    }
+
+    /** Mixers that can play PCM, for the user to choose from. */
+    public List<Mixer.Info> mixers() {
+        List<Mixer.Info> mixers = new ArrayList<>();
+        for (Mixer.Info info : AudioSystem.getMixerInfo()) {
+            if (AudioSystem.getMixer(info).getSourceLineInfo(new Line.Info(SourceDataLine.class)).length > 0)
+                mixers.add(info);
+        }
+        return mixers;
+    }
+
+    /** The chosen mixer's name; null for the system default. */
+    public String selectedMixer() {
+        return PREFS.get("output.mixer", null);
+    }
+
+    /** Takes effect for lines opened from now on. */
+    public void selectMixer(String name) {
+        if (name == null)
+            PREFS.remove("output.mixer");
+        else
+            PREFS.put("output.mixer", name);
+    }
+
+    /** The chosen mixer if it is still there, otherwise null (the default). */
+    private Mixer mixer() {
+        String name = selectedMixer();
+        if (name == null)
+            return null;
+        for (Mixer.Info info : AudioSystem.getMixerInfo()) {
+            if (info.getName().equals(name))
+                return AudioSystem.getMixer(info);
+        }
+        System.out.println("Output " + name + " not found, using the default");
+        return null;
+    }
+
+    public boolean isSupported(AudioFormat format) {
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        Mixer mixer = mixer();
+        return mixer == null ? AudioSystem.isLineSupported(info) : mixer.isLineSupported(info);
+    }
+
+    @Override
+    public SourceDataLine open(AudioFormat format) throws LineUnavailableException {
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        Mixer mixer = mixer();
+        if (mixer != null && !mixer.isLineSupported(info)) {
+            System.out.println("Output " + mixer.getMixerInfo().getName() + " can't play " + format + ", using the default");
+            mixer = null;
+        }
+        SourceDataLine line = (SourceDataLine) (mixer == null ? AudioSystem.getLine(info) : mixer.getLine(info));
+        String key = key(mixer == null ? "default" : mixer.getMixerInfo().getName(), format);
+        int bufferMs = BUFFERS.getInt(key, INITIAL_BUFFER_MS);
+        line.open(format, bytes(format, bufferMs));
+        keys.put(line, key);
+        System.out.printf("Opened %s with a %d ms buffer (asked for %d ms)%n", key,
+                millis(format, line.getBufferSize()), bufferMs);
+        return line;
+    }
+
+    @Override
+    public void played(SourceDataLine line, double seconds, int underruns, double lowestFill) {
+        String key = keys.remove(line);
+        if (key == null)
+            return;
+        int current = BUFFERS.getInt(key, INITIAL_BUFFER_MS);
+        int tuned = current;
+        if (underruns > 0)
+            tuned = (int) Math.min(MAX_BUFFER_MS, Math.ceil(current * GROW));
+        else if (seconds >= SHRINK_AFTER_SECONDS && lowestFill >= SHRINK_LOWEST_FILL)
+            tuned = (int) Math.max(MIN_BUFFER_MS, current * SHRINK);
+        if (tuned != current) {
+            BUFFERS.putInt(key, tuned);
+            System.out.printf("Line buffer for %s: %d -> %d ms (%.0f s played, %d underruns, lowest fill %.0f%%)%n",
+                    key, current, tuned, seconds, underruns, lowestFill * 100);
+        }
+    }
+
+    /** Preference key for a mixer and format, within the preferences' key length limit. */
+    private static String key(String mixer, AudioFormat format) {
+        String key = (int) format.getSampleRate() + "/" + format.getSampleSizeInBits() + "/" + format.getChannels()
+                + " " + mixer;
+        return key.length() <= Preferences.MAX_KEY_LENGTH ? key : key.substring(0, Preferences.MAX_KEY_LENGTH);
+    }
+
+    private static int bytes(AudioFormat format, int millis) {
+        return (int) (format.getFrameRate() * millis / 1000) * format.getFrameSize();
+    }
+
+    static int millis(AudioFormat format, int bytes) {
+        return (int) (bytes * 1000L / format.getFrameSize() / (long) format.getFrameRate());
+    }
+}
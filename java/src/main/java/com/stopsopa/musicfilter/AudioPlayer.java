@@ -14,12 +14,43 @@ public interface AudioPlayer {
 
     void seek(Duration seekTime);
 
+    /**
+     * Gets ready to play from {@code startFraction} (0..1) of the track, so
+     * that a following {@link #play()} is heard almost immediately. May block
+     * while the file is opened and positioned; call it off the FX thread.
+     */
+    void prepare(double startFraction);
+
+    /**
+     * Applies a per-track loudness correction, limited so that {@code truePeak}
+     * (linear, 1.0 = full scale) does not clip.
+     */
+    void setTrackGain(double gainDb, double truePeak);
+
     ReadOnlyObjectProperty<Duration> currentTimeProperty();
 
     ReadOnlyObjectProperty<Duration> totalDurationProperty();
 
     ReadOnlyObjectProperty<Status> statusProperty();
 
+    /**
+     * Where a seek still in progress is headed, null when none is. Seeks are
+     * latest-wins: a new target replaces the pending one and work towards the
+     * old one is dropped, so relative seeks should start from here.
+     */
+    ReadOnlyObjectProperty<Duration> seekTargetProperty();
+
+    /**
+     * How far the audible output trails the decoder, i.e. the audio queued in
+     * the output line. {@link #currentTimeProperty()} already accounts for it.
+     */
+    Duration outputLatency();
+
+    /** The PCM written to the output, for {@link SpectrumMeter}; null when the player doesn't see it. */
+    default SpectrumTap spectrumTap() {
+        return null;
+    }
+
     enum Status {
         READY, PLAYING, PAUSED, STOPPED, UNKNOWN
     }
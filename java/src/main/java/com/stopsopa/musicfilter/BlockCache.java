@@ -0,0 +1,255 @@
+package com.stopsopa.musicfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide read-through cache of fixed-size file blocks, shared by the tag
+ * parsers and the playback decoders. Meant for libraries on SMB/NFS shares
+ * where every reopen-and-reread (e.g. a seek in {@link JavaSoundAudioPlayer})
+ * would otherwise go back to the network.
+ *
+ * <ul>
+ * <li>Size bounded ({@code -Dmusicfilter.blockCacheMb}, default 64 MB).</li>
+ * <li>Sequential access triggers asynchronous read-ahead of the next blocks.</li>
+ * <li>Eviction is LRU within tiers: blocks of unrelated files go first, then
+ * files near the selected table row, then the playing file's blocks behind the
+ * playback position and finally the ones ahead of it.</li>
+ * <li>Large cold reads bypass the cache so one-off bulk scans don't flush it.</li>
+ * </ul>
+ */
+public class BlockCache {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int READ_AHEAD_BLOCKS = 4;
+    static final int BYPASS_BLOCKS = 4;
+    private static final int EVICTION_SCAN = 512;
+
+    private static final BlockCache INSTANCE = new BlockCache(
+            Long.getLong("musicfilter.blockCacheMb", 64) * 1024 * 1024);
+
+    record BlockKey(String path, long index) {
+    }
+
+    private final long capacityBytes;
+    private final LinkedHashMap<BlockKey, byte[]> blocks = new LinkedHashMap<>(1024, 0.75f, true);
+    private long cachedBytes = 0;
+    private final Map<BlockKey, CompletableFuture<byte[]>> loading = new ConcurrentHashMap<>();
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    private final ExecutorService readAhead;
+
+    private volatile String playingPath;
+    private volatile long playingBlock;
+    private volatile Set<String> nearby = Set.of();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong readAheads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bypassedBytes = new AtomicLong();
+
+    public static BlockCache get() {
+        return INSTANCE;
+    }
+
+    BlockCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+        AtomicInteger threadCount = new AtomicInteger();
+        readAhead = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "block-read-ahead-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public CachedFile open(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long signature = file.length() * 31 + file.lastModified();
+        Long previous = versions.put(path, signature);
+        if (previous != null && previous != signature)
+            invalidate(path);
+        return new CachedFile(this, file, path);
+    }
+
+    /** The file being played; its blocks are evicted last. */
+    public void setPlaying(File file) {
+        playingPath = file == null ? null : file.getAbsolutePath();
+        playingBlock = 0;
+    }
+
+    /** Files around the selected row; likely to be parsed or played next. */
+    public void setNearby(Collection<File> files) {
+        Set<String> paths = new HashSet<>();
+        for (File file : files)
+            paths.add(file.getAbsolutePath());
+        nearby = paths;
+    }
+
+    public synchronized void invalidate(String path) {
+        Iterator<Map.Entry<BlockKey, byte[]>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<BlockKey, byte[]> entry = it.next();
+            if (entry.getKey().path().equals(path)) {
+                cachedBytes -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    public String stats() {
+        long h = hits.get();
+        long m = misses.get();
+        synchronized (this) {
+            return String.format("hits=%d misses=%d (%.1f%% hit) readAhead=%d evictions=%d bypassed=%dKB cached=%d/%dMB",
+                    h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), readAheads.get(), evictions.get(),
+                    bypassedBytes.get() / 1024, cachedBytes / (1024 * 1024), capacityBytes / (1024 * 1024));
+        }
+    }
+
+    synchronized boolean contains(String path, long index) {
+        return contains(new BlockKey(path, index));
+    }
+
+    private synchronized boolean contains(BlockKey key) {
+        return blocks.containsKey(key);
+    }
+
+    void recordBypass(int bytes) {
+        bypassedBytes.addAndGet(bytes);
+    }
+
+    /** Block {@code index} of the file behind {@code handle}, loading it on a miss. */
+    byte[] block(CachedFile handle, long index) throws IOException {
+        BlockKey key = new BlockKey(handle.path(), index);
+        byte[] data;
+        synchronized (this) {
+            data = blocks.get(key);
+        }
+        if (data != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            data = load(handle, key);
+        }
+
+        if (key.path().equals(playingPath))
+            playingBlock = index;
+        if (index == handle.lastBlock + 1)
+            scheduleReadAhead(handle, index + 1);
+        handle.lastBlock = index;
+        return data;
+    }
+
+    private byte[] load(CachedFile handle, BlockKey key) throws IOException {
+        while (true) {
+            CompletableFuture<byte[]> mine = new CompletableFuture<>();
+            CompletableFuture<byte[]> pending = loading.putIfAbsent(key, mine);
+            if (pending == null)
+                return read(handle, key, mine);
+            // read-ahead (or another reader) is already fetching it
+            try {
+                return pending.join();
+            } catch (CompletionException | CancellationException e) {
+                // its handle may have been closed meanwhile (a read-ahead when a seek closes the old
+                // streams); that says nothing about ours, so read again with it
+                loading.remove(key, pending);
+            }
+        }
+    }
+
+    private byte[] read(CachedFile handle, BlockKey key, CompletableFuture<byte[]> mine) throws IOException {
+        try {
+            long offset = key.index() * BLOCK_SIZE;
+            int length = (int) Math.min(BLOCK_SIZE, handle.length() - offset);
+            byte[] data = new byte[Math.max(0, length)];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            FileChannel channel = handle.channel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) == -1)
+                    break;
+            }
+            insert(key, data);
+            mine.complete(data);
+            return data;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    private void scheduleReadAhead(CachedFile handle, long from) {
+        long lastBlock = (handle.length() - 1) / BLOCK_SIZE;
+        // the window moves one block per block read: only the new block is scheduled (and nothing allocated for
+        // the others) unless the reader jumped since
+        long start = handle.readAheadTo >= from && handle.readAheadTo < from + READ_AHEAD_BLOCKS
+                ? handle.readAheadTo + 1 : from;
+        for (long index = start; index < from + READ_AHEAD_BLOCKS && index <= lastBlock; index++) {
+            handle.readAheadTo = index;
+            BlockKey key = new BlockKey(handle.path(), index);
+            if (contains(key) || loading.containsKey(key))
+                continue;
+            readAhead.execute(() -> {
+                if (handle.isClosed() || contains(key))
+                    return;
+                try {
+                    load(handle, key);
+                    readAheads.incrementAndGet();
+                } catch (IOException e) {
+                    // handle closed underneath us; a reader waiting on this load reads the block itself
+                }
+            });
+        }
+    }
+
+    private synchronized void insert(BlockKey key, byte[] data) {
+        byte[] previous = blocks.put(key, data);
+        if (previous != null)
+            cachedBytes -= previous.length;
+        cachedBytes += data.length;
+
+        while (cachedBytes > capacityBytes && !blocks.isEmpty()) {
+            BlockKey victim = null;
+            int victimTier = Integer.MAX_VALUE;
+            int scanned = 0;
+            for (BlockKey candidate : blocks.keySet()) {
+                int tier = tier(candidate);
+                if (tier < victimTier) {
+                    victim = candidate;
+                    victimTier = tier;
+                    if (tier == 0)
+                        break;
+                }
+                if (++scanned == EVICTION_SCAN)
+                    break;
+            }
+            cachedBytes -= blocks.remove(victim).length;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private int tier(BlockKey key) {
+        if (key.path().equals(playingPath))
+            return key.index() >= playingBlock ? 3 : 2;
+        if (nearby.contains(key.path()))
+            return 1;
+        return 0;
+    }
+}
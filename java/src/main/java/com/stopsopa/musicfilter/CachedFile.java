@@ -0,0 +1,200 @@
+package com.stopsopa.musicfilter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only, seekable view of a file that reads through {@link BlockCache}.
+ * Mirrors the subset of {@link java.io.RandomAccessFile} the parsers use
+ * (big-endian {@code readInt}/{@code readLong} included), and can be wrapped
+ * as a mark/reset capable {@link InputStream} for the SPI decoders.
+ */
+public class CachedFile implements AutoCloseable {
+
+    private final BlockCache cache;
+    private final String path;
+    private final FileChannel channel;
+    private final long length;
+    private final byte[] scratch = new byte[8];
+    private long pos = 0;
+    private volatile boolean closed = false;
+
+    long lastBlock = -2; // for sequential read detection, owned by BlockCache
+    long readAheadTo = -1; // the last block read ahead for this handle, owned by BlockCache
+    // the block the last read ended in: small sequential reads (a decoder's) go to the cache once per block
+    private long currentIndex = -1;
+    private byte[] currentBlock;
+
+    CachedFile(BlockCache cache, File file, String path) throws IOException {
+        this.cache = cache;
+        this.path = path;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.length = channel.size();
+    }
+
+    String path() {
+        return path;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long getFilePointer() {
+        return pos;
+    }
+
+    public void seek(long pos) {
+        this.pos = pos;
+    }
+
+    public int skipBytes(int n) {
+        int skipped = (int) Math.max(0, Math.min(n, length - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    public int read() throws IOException {
+        return read(scratch, 0, 1) == -1 ? -1 : scratch[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (pos >= length)
+            return -1;
+        len = (int) Math.min(len, length - pos);
+        if (len == 0)
+            return 0;
+
+        if (len >= BlockCache.BYPASS_BLOCKS * BlockCache.BLOCK_SIZE
+                && !cache.contains(path, pos / BlockCache.BLOCK_SIZE + 1)) {
+            // large cold read (e.g. a whole-header scan): go straight to the file
+            int n = channel.read(ByteBuffer.wrap(b, off, len), pos);
+            if (n > 0) {
+                pos += n;
+                cache.recordBypass(n);
+            }
+            return n;
+        }
+
+        int total = 0;
+        while (total < len) {
+            long index = pos / BlockCache.BLOCK_SIZE;
+            int inBlock = (int) (pos - index * BlockCache.BLOCK_SIZE);
+            if (index != currentIndex) {
+                currentBlock = cache.block(this, index);
+                currentIndex = index;
+            }
+            byte[] block = currentBlock;
+            int n = Math.min(len - total, block.length - inBlock);
+            if (n <= 0)
+                break;
+            System.arraycopy(block, inBlock, b, off + total, n);
+            total += n;
+            pos += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = read(b, off + total, len - total);
+            if (n < 0)
+                throw new EOFException();
+            total += n;
+        }
+    }
+
+    public byte readByte() throws IOException {
+        int b = read();
+        if (b < 0)
+            throw new EOFException();
+        return (byte) b;
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    public int readInt() throws IOException {
+        readFully(scratch, 0, 4);
+        return MetadataParser.getIntBE(scratch, 0);
+    }
+
+    public long readLong() throws IOException {
+        readFully(scratch, 0, 8);
+        return ((long) MetadataParser.getIntBE(scratch, 0) << 32) | (MetadataParser.getIntBE(scratch, 4) & 0xFFFFFFFFL);
+    }
+
+    /** Stream from the current position; closing it closes this file. */
+    public InputStream asInputStream() {
+        return new InputStream() {
+            private long mark = 0;
+
+            @Override
+            public int read() throws IOException {
+                return CachedFile.this.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return CachedFile.this.read(b, off, len);
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, length - pos));
+                pos += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, length - pos);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return true;
+            }
+
+            @Override
+            public synchronized void mark(int readlimit) {
+                mark = pos;
+            }
+
+            @Override
+            public synchronized void reset() {
+                pos = mark;
+            }
+
+            @Override
+            public void close() throws IOException {
+                CachedFile.this.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+}
@@ -0,0 +1,234 @@
+package com.stopsopa.musicfilter;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Lazily extracted, downscaled cover art. Thumbnails live in a size-bounded
+ * in-memory LRU (touched only on the FX thread) backed by PNGs in
+ * {@code ~/.musicfilter/thumbs}. Extraction, decoding and scaling run on two
+ * low-priority workers that serve the most recent request first, so the rows
+ * currently on screen win over rows that have already scrolled away.
+ *
+ * <p>The disk tier is kept within {@code -Dmusicfilter.thumbCacheMb} (default
+ * 200) MB, each entry counted as at least one 4 KB block: a disk hit touches
+ * the file's mtime, and a sweep at startup and after every
+ * {@value #SWEEP_EVERY} new entries deletes the least recently used ones. That
+ * also clears out entries of files that changed or went away.
+ */
+public class CoverArtCache {
+
+    public static final int ROW_SIZE = 40;
+    public static final int NOW_PLAYING_SIZE = 96;
+
+    private static final long MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+    private static final long DISK_BUDGET_BYTES = Long.getLong("musicfilter.thumbCacheMb", 200) * 1024 * 1024;
+    private static final long DISK_BLOCK = 4096;
+    static final int SWEEP_EVERY = 1000;
+    private static final Image NO_ART = new WritableImage(1, 1); // marker for "file has no art"
+    private static final CoverArtCache INSTANCE = new CoverArtCache();
+
+    private final File diskDir = new File(System.getProperty("user.home"), ".musicfilter/thumbs");
+    private final LinkedHashMap<String, Image> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private long memoryBytes = 0;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger written = new AtomicInteger(); // disk entries since the last sweep
+
+    public static CoverArtCache get() {
+        return INSTANCE;
+    }
+
+    private CoverArtCache() {
+        AtomicInteger threadCount = new AtomicInteger();
+        // LIFO: newest request (the row that just scrolled into view) goes first
+        LinkedBlockingDeque<Runnable> queue = new LinkedBlockingDeque<>() {
+            @Override
+            public boolean offer(Runnable r) {
+                return offerFirst(r);
+            }
+        };
+        workers = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, queue, r -> {
+            Thread t = new Thread(r, "cover-art-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        workers.allowCoreThreadTimeOut(true);
+        Thread sweep = new Thread(this::sweepDisk, "cover-art-sweep");
+        sweep.setDaemon(true);
+        sweep.setPriority(Thread.MIN_PRIORITY);
+        sweep.start();
+    }
+
+    /** Cached thumbnail, or null when it still has to be loaded (FX thread only). */
+    public Image getIfPresent(File file, int size) {
+        Image image = memory.get(key(file, size));
+        return image == NO_ART ? null : image;
+    }
+
+    /**
+     * Delivers the thumbnail of {@code file} to {@code callback} on the FX
+     * thread, immediately if it is in memory. Nothing is delivered for files
+     * without art. {@code stillWanted} is checked before any work is done so
+     * requests for rows that scrolled out of view cost nothing; it runs on the
+     * workers as well as the FX thread, so it must not read UI state.
+     */
+    public void request(File file, int size, BooleanSupplier stillWanted, Consumer<Image> callback) {
+        String key = key(file, size);
+        Image cached = memory.get(key);
+        if (cached != null) {
+            if (cached != NO_ART)
+                callback.accept(cached);
+            return;
+        }
+
+        workers.execute(() -> {
+            if (!stillWanted.getAsBoolean())
+                return;
+            Image image = load(file, size);
+            Platform.runLater(() -> {
+                put(key, image == null ? NO_ART : image);
+                if (image != null && stillWanted.getAsBoolean())
+                    callback.accept(image);
+            });
+        });
+    }
+
+    private Image load(File file, int size) {
+        try {
+            File thumb = new File(diskDir, diskKey(file, size) + ".png");
+            File none = new File(diskDir, diskKey(file, size) + ".none");
+            if (thumb.isFile()) {
+                thumb.setLastModified(System.currentTimeMillis()); // recently used, for the sweep
+                Image cached = new Image(thumb.toURI().toString(), false);
+                if (!cached.isError())
+                    return cached; // otherwise swept meanwhile: extract again
+            }
+            if (none.isFile()) {
+                none.setLastModified(System.currentTimeMillis());
+                return null;
+            }
+
+            FormatProvider provider = FormatRegistry.get().detect(file);
+            byte[] encoded = provider == null ? null : provider.extractCoverArt(file);
+            Image image = null;
+            if (encoded != null) {
+                // decodes and downscales in one go, never holding the full-size bitmap
+                image = new Image(new ByteArrayInputStream(encoded), size, size, true, true);
+                if (image.isError())
+                    image = null;
+            }
+
+            diskDir.mkdirs();
+            if (image != null)
+                writePng(image, thumb);
+            else
+                none.createNewFile();
+            if (written.incrementAndGet() >= SWEEP_EVERY && written.getAndSet(0) >= SWEEP_EVERY)
+                sweepDisk();
+            return image;
+        } catch (Exception e) {
+            System.err.println("Failed to load cover art for " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writePng(Image image, File target) throws Exception {
+        int w = (int) image.getWidth();
+        int h = (int) image.getHeight();
+        int[] argb = new int[w * h];
+        image.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), argb, 0, w);
+        BufferedImage buffered = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        buffered.setRGB(0, 0, w, h, argb, 0, w);
+
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        ImageIO.write(buffered, "png", tmp);
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Deletes the least recently used disk entries until the rest fit {@link #DISK_BUDGET_BYTES}. */
+    private synchronized void sweepDisk() {
+        File[] files = diskDir.listFiles();
+        if (files == null)
+            return;
+        long start = System.nanoTime();
+        long[] modified = new long[files.length];
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            total += Math.max(DISK_BLOCK, files[i].length());
+        }
+        if (total <= DISK_BUDGET_BYTES)
+            return;
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(modified[a], modified[b]));
+        int deleted = 0;
+        for (int i = 0; i < order.length && total > DISK_BUDGET_BYTES; i++) {
+            File file = files[order[i]];
+            long size = Math.max(DISK_BLOCK, file.length());
+            if (file.delete()) {
+                total -= size;
+                deleted++;
+            }
+        }
+        System.out.printf("Cover art: removed %d of %d thumbnails on disk in %.0f ms%n", deleted, files.length,
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    private void put(String key, Image image) {
+        Image previous = memory.put(key, image);
+        if (previous != null)
+            memoryBytes -= bytes(previous);
+        memoryBytes += bytes(image);
+
+        Iterator<Map.Entry<String, Image>> it = memory.entrySet().iterator();
+        while (memoryBytes > MEMORY_BUDGET_BYTES && it.hasNext()) {
+            Map.Entry<String, Image> eldest = it.next();
+            memoryBytes -= bytes(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    private static long bytes(Image image) {
+        // negative entries still cost a map slot
+        return image == NO_ART ? 64 : (long) image.getWidth() * (long) image.getHeight() * 4 + 64;
+    }
+
+    private static String key(File file, int size) {
+        return size + ":" + file.getPath();
+    }
+
+    /** Stable across runs; changes whenever the file does. */
+    private static String diskKey(File file, int size) throws Exception {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        String id = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + size;
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha1.digest(id.getBytes(StandardCharsets.UTF_8)))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,323 @@
+package com.stopsopa.musicfilter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies tracks into a target folder, keeping their folder structure below
+ * the closest common parent. Files are copied with
+ * {@link FileChannel#transferTo} (in-kernel where the OS supports it) by
+ * several streams at once, limited per device: at most
+ * {@code -Dmusicfilter.exportSourceStreams} (default 4) readers per source
+ * file store and {@code -Dmusicfilter.exportTargetStreams} (default 2) writers
+ * on the target, since USB sticks slow down under many concurrent writers
+ * while network shares benefit from them.
+ *
+ * <p>Each finished file is recorded in a manifest in the target folder, so an
+ * interrupted export resumes with the files still missing, and appended to an
+ * M3U playlist (UTF-8, {@code export.m3u8}). With {@code verify}, source and
+ * copy are compared by CRC32C and a mismatching copy is removed.
+ */
+public class Exporter {
+
+    public static final String MANIFEST = ".musicfilter-export.tsv";
+    public static final String PLAYLIST = "export.m3u8";
+
+    private static final int SOURCE_STREAMS = Integer.getInteger("musicfilter.exportSourceStreams", 4);
+    private static final int TARGET_STREAMS = Integer.getInteger("musicfilter.exportTargetStreams", 2);
+    private static final long CHUNK = 8L * 1024 * 1024;
+    private static final long REPORT_INTERVAL_NANOS = 250_000_000L;
+
+    /** A file to export; {@code label} goes into the playlist's {@code #EXTINF} line. */
+    public record Item(File source, String label) {
+    }
+
+    /** {@code bytesTotal} leaves out files that were already exported. */
+    public record Progress(int filesDone, int filesSkipped, int filesFailed, int filesTotal, long bytesCopied,
+            long bytesTotal, double megabytesPerSecond, boolean finished) {
+    }
+
+    private record ManifestEntry(long length, long modified) {
+    }
+
+    private final List<Item> items;
+    private final File target;
+    private final boolean verify;
+    private final Path root;
+    private final Map<FileStore, Semaphore> limits = new ConcurrentHashMap<>();
+    private final Map<Path, FileStore> stores = new ConcurrentHashMap<>();
+    private final Map<String, ManifestEntry> manifest = new HashMap<>();
+    private final Set<String> playlisted = new HashSet<>();
+    private volatile boolean cancelled;
+    private Consumer<Progress> onProgress;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final AtomicLong bytesSkipped = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong();
+    private long bytesTotal;
+    private long start;
+
+    public Exporter(List<Item> items, File target, boolean verify) {
+        this.items = items;
+        this.target = target;
+        this.verify = verify;
+        this.root = commonRoot(items);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Runs the export on its own pool. {@code onProgress} is called from the
+     * workers at most every 250 ms and once at the end.
+     */
+    public CompletableFuture<Progress> start(Consumer<Progress> onProgress) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(SOURCE_STREAMS + TARGET_STREAMS, r -> {
+            Thread t = new Thread(r, "export-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.onProgress = onProgress;
+        start = System.nanoTime();
+        Semaphore targetLimit;
+        try {
+            Files.createDirectories(target.toPath());
+            readManifest();
+            targetLimit = new Semaphore(TARGET_STREAMS, true);
+            limits.put(Files.getFileStore(target.toPath()), targetLimit);
+        } catch (IOException e) {
+            pool.shutdown();
+            return CompletableFuture.failedFuture(e);
+        }
+        for (Item item : items)
+            bytesTotal += item.source().length();
+
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[items.size()];
+        for (int i = 0; i < tasks.length; i++) {
+            Item item = items.get(i);
+            tasks[i] = CompletableFuture.runAsync(() -> {
+                if (cancelled)
+                    return;
+                try {
+                    exportOne(item, targetLimit);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.err.println("Export failed for " + item.source() + ": " + e.getMessage());
+                }
+                report(false);
+            }, pool);
+        }
+
+        return CompletableFuture.allOf(tasks).handle((v, e) -> {
+            pool.shutdown();
+            Progress progress = report(true);
+            System.out.printf("Export to %s: %d copied, %d already there, %d failed, %d MB at %.1f MB/s%s%n", target,
+                    progress.filesDone(), progress.filesSkipped(), progress.filesFailed(),
+                    progress.bytesCopied() / (1024 * 1024), progress.megabytesPerSecond(),
+                    cancelled ? " (cancelled)" : "");
+            return progress;
+        });
+    }
+
+    private void exportOne(Item item, Semaphore targetLimit) throws IOException, InterruptedException {
+        File source = item.source();
+        String relative = root.relativize(source.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/');
+        File destination = new File(target, relative);
+        long length = source.length();
+        long modified = source.lastModified();
+
+        ManifestEntry previous;
+        synchronized (manifest) {
+            previous = manifest.get(relative);
+        }
+        if (previous != null && previous.length() == length && previous.modified() == modified
+                && destination.length() == length) {
+            skipped.incrementAndGet();
+            bytesSkipped.addAndGet(length);
+            addToPlaylist(item, relative);
+            return;
+        }
+
+        Semaphore sourceLimit = limit(source.toPath());
+        // always target first, then source: one global order, so no deadlock
+        targetLimit.acquire();
+        try {
+            if (sourceLimit != targetLimit)
+                sourceLimit.acquire();
+            try {
+                copy(source, destination, length);
+            } finally {
+                if (sourceLimit != targetLimit)
+                    sourceLimit.release();
+            }
+        } finally {
+            targetLimit.release();
+        }
+        if (cancelled)
+            return;
+
+        if (verify && crc(source.toPath()) != crc(destination.toPath())) {
+            Files.deleteIfExists(destination.toPath());
+            throw new IOException("verification failed, copy removed");
+        }
+        destination.setLastModified(modified);
+        addToPlaylist(item, relative);
+        addToManifest(relative, length, modified);
+        done.incrementAndGet();
+    }
+
+    private void copy(File source, File destination, long length) throws IOException {
+        Files.createDirectories(destination.toPath().getParent());
+        Path part = destination.toPath().resolveSibling(destination.getName() + ".part");
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long pos = 0;
+            while (pos < length && !cancelled) {
+                long n = in.transferTo(pos, Math.min(CHUNK, length - pos), out);
+                if (n <= 0)
+                    throw new IOException("source ended at " + pos + " of " + length + " bytes");
+                pos += n;
+                bytesCopied.addAndGet(n);
+                report(false);
+            }
+        }
+        if (cancelled) {
+            Files.deleteIfExists(part);
+            return;
+        }
+        try {
+            Files.move(part, destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** The concurrency limit of the device holding {@code file}; looked up once per directory. */
+    private Semaphore limit(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        FileStore store = stores.get(dir);
+        if (store == null) {
+            store = Files.getFileStore(file);
+            stores.put(dir, store);
+        }
+        return limits.computeIfAbsent(store, s -> new Semaphore(SOURCE_STREAMS, true));
+    }
+
+    private static long crc(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /** Lines are {@code length<TAB>mtime<TAB>relative path}; unreadable lines are ignored. */
+    private void readManifest() throws IOException {
+        File file = new File(target, MANIFEST);
+        if (file.isFile()) {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length < 3)
+                    continue;
+                try {
+                    manifest.put(fields[2], new ManifestEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+                } catch (NumberFormatException e) {
+                    // partially written line from an interrupted run
+                }
+            }
+        }
+        File playlist = new File(target, PLAYLIST);
+        if (playlist.isFile()) {
+            for (String line : Files.readAllLines(playlist.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    playlisted.add(line);
+            }
+        }
+    }
+
+    private void addToManifest(String relative, long length, long modified) throws IOException {
+        synchronized (manifest) {
+            manifest.put(relative, new ManifestEntry(length, modified));
+            append(new File(target, MANIFEST), length + "\t" + modified + "\t" + relative + "\n");
+        }
+    }
+
+    private void addToPlaylist(Item item, String relative) throws IOException {
+        synchronized (playlisted) {
+            if (!playlisted.add(relative))
+                return;
+            File playlist = new File(target, PLAYLIST);
+            String header = playlist.exists() ? "" : "#EXTM3U\n";
+            append(playlist, header + "#EXTINF:-1," + item.label() + "\n" + relative + "\n");
+        }
+    }
+
+    private static void append(File file, String text) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(text);
+        }
+    }
+
+    private Progress report(boolean finished) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Progress progress = new Progress(done.get(), skipped.get(), failed.get(), items.size(), bytesCopied.get(),
+                bytesTotal - bytesSkipped.get(), seconds > 0 ? bytesCopied.get() / (1024.0 * 1024.0) / seconds : 0.0, finished);
+        long now = System.nanoTime();
+        long last = lastReport.get();
+        if (finished || (now - last >= REPORT_INTERVAL_NANOS && lastReport.compareAndSet(last, now)))
+            onProgress.accept(progress);
+        return progress;
+    }
+
+    /** Deepest directory containing every item. */
+    private static Path commonRoot(List<Item> items) {
+        Path root = null;
+        for (Item item : items) {
+            Path parent = item.source().toPath().toAbsolutePath().getParent();
+            if (root == null) {
+                root = parent;
+                continue;
+            }
+            while (root != null && !parent.startsWith(root))
+                root = root.getParent();
+        }
+        return root == null ? new File("").toPath().toAbsolutePath() : root;
+    }
+}
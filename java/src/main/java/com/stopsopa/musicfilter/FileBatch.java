@@ -0,0 +1,80 @@
+package com.stopsopa.musicfilter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs a task per file on a low-priority pool sized to the number of cores,
+ * for {@link IntegrityScanner} and {@link PcmAnalysis}. At most twice that
+ * many files are handed to the pool at a time; the rest wait on a feeder
+ * thread, so a library of any size holds only a few decoders and buffers at once.
+ */
+public class FileBatch {
+
+    static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Calls {@code task} for each of {@code files} on threads named
+     * {@code name-N}; completes with the elapsed nanoseconds once all are done.
+     * The task handles its own failures.
+     */
+    static CompletableFuture<Long> run(String name, List<File> files, Consumer<File> task) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, name + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+
+        long start = System.nanoTime();
+        Semaphore inFlight = new Semaphore(2 * THREADS);
+        CompletableFuture<Long> finished = new CompletableFuture<>();
+        Thread feeder = new Thread(() -> {
+            List<CompletableFuture<?>> tasks = new ArrayList<>(files.size());
+            try {
+                for (File file : files) {
+                    inFlight.acquire();
+                    tasks.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            task.accept(file);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }, pool));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            CompletableFuture.allOf(tasks.toArray(CompletableFuture<?>[]::new)).whenComplete((v, e) -> {
+                pool.shutdown();
+                finished.complete(System.nanoTime() - start);
+            });
+        }, name + "-feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+        return finished;
+    }
+
+    /** Adds the audio files in and under {@code file} to {@code into}, leaving out {@code _deleted} directories. */
+    static void collect(File file, List<File> into) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (!child.getName().equals("_deleted"))
+                        collect(child, into);
+                }
+            }
+        } else if (FormatRegistry.get().isCandidate(file)) {
+            into.add(file);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.stopsopa.musicfilter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * FLAC stream navigation without decoding: STREAMINFO, the offset of the
+ * first audio frame, and frame headers found by scanning for the sync code and
+ * validated by their CRC-8. FLAC frames are self-contained, so a decoder fed a
+ * STREAMINFO block followed by any frame decodes from that frame on.
+ */
+public class FlacFrames {
+
+    private static final int SCAN_LIMIT = 1024 * 1024;
+    private static final int SCAN_CHUNK = 64 * 1024;
+    private static final int MAX_HEADER = 16;
+
+    /** STREAMINFO plus where the frames start; {@code raw} is the 34 byte block body. */
+    record StreamInfo(int minBlockSize, int maxBlockSize, int sampleRate, int channels, int bitsPerSample,
+            long totalSamples, long audioOffset, byte[] raw) {
+    }
+
+    record FrameHeader(long offset, long firstSample, int blockSize) {
+    }
+
+    /** Reads the metadata block chain; null if this isn't a FLAC file. */
+    static StreamInfo readStreamInfo(CachedFile raf) throws IOException {
+        byte[] buffer = new byte[34];
+        long pos = skipId3v2(raf, buffer);
+        raf.seek(pos);
+        raf.readFully(buffer, 0, 4);
+        if (buffer[0] != 'f' || buffer[1] != 'L' || buffer[2] != 'a' || buffer[3] != 'C')
+            return null;
+        pos += 4;
+
+        byte[] raw = null;
+        boolean last = false;
+        while (!last && pos + 4 <= raf.length()) {
+            raf.seek(pos);
+            int header = raf.readInt();
+            last = (header & 0x80000000) != 0;
+            int type = (header >>> 24) & 0x7F;
+            int length = header & 0xFFFFFF;
+            if (type == 0 && length >= 34) {
+                raw = new byte[34];
+                raf.readFully(raw);
+            }
+            pos += 4 + length;
+        }
+        if (raw == null)
+            return null;
+
+        long packed = ((long) MetadataParser.getIntBE(raw, 10) << 32) | (MetadataParser.getIntBE(raw, 14) & 0xFFFFFFFFL);
+        return new StreamInfo(
+                ((raw[0] & 0xFF) << 8) | (raw[1] & 0xFF),
+                ((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF),
+                (int) (packed >>> 44),
+                (int) ((packed >>> 41) & 0x7) + 1,
+                (int) ((packed >>> 36) & 0x1F) + 1,
+                packed & 0xFFFFFFFFFL,
+                pos, raw);
+    }
+
+    /** Offset after a leading ID3v2 tag (rare in front of FLAC, but allowed), or 0. */
+    private static long skipId3v2(CachedFile raf, byte[] buffer) throws IOException {
+        if (raf.length() < 10)
+            return 0;
+        raf.seek(0);
+        raf.readFully(buffer, 0, 10);
+        if (buffer[0] != 'I' || buffer[1] != 'D' || buffer[2] != '3')
+            return 0;
+        long size = ((buffer[6] & 0x7F) << 21) | ((buffer[7] & 0x7F) << 14) | ((buffer[8] & 0x7F) << 7)
+                | (buffer[9] & 0x7F);
+        return 10 + size + ((buffer[5] & 0x10) != 0 ? 10 : 0);
+    }
+
+    /**
+     * The last frame starting at or before {@code targetSample}, found by
+     * interpolating on the average bitrate and correcting a few times; null
+     * if none could be found (the caller then decodes from the start).
+     */
+    static FrameHeader locate(CachedFile raf, StreamInfo info, long targetSample) throws IOException {
+        if (info.totalSamples() <= 0 || targetSample <= 0)
+            return null;
+        double bytesPerSample = (double) (raf.length() - info.audioOffset()) / info.totalSamples();
+        long estimate = info.audioOffset() + (long) (targetSample * bytesPerSample);
+        FrameHeader best = null;
+
+        for (int attempt = 0; attempt < 8; attempt++) {
+            estimate = Math.max(info.audioOffset(), Math.min(raf.length() - 1, estimate));
+            FrameHeader frame = nextFrame(raf, info, estimate);
+            if (frame == null || frame.firstSample() > targetSample) {
+                if (estimate == info.audioOffset())
+                    break;
+                // overshot: step back by the overshoot plus one block
+                long over = (frame == null ? 0 : frame.firstSample() - targetSample) + info.maxBlockSize();
+                estimate -= Math.max(1, (long) (over * bytesPerSample));
+                continue;
+            }
+            if (best == null || frame.firstSample() > best.firstSample())
+                best = frame;
+            long remaining = targetSample - frame.firstSample();
+            if (remaining < 2L * info.maxBlockSize())
+                break;
+            estimate = frame.offset() + (long) ((remaining - info.maxBlockSize()) * bytesPerSample);
+        }
+        return best;
+    }
+
+    /** First valid frame header at or after {@code from}, or null. */
+    static FrameHeader nextFrame(CachedFile raf, StreamInfo info, long from) throws IOException {
+        byte[] buffer = new byte[SCAN_CHUNK + MAX_HEADER];
+        long pos = Math.max(from, info.audioOffset());
+        long limit = Math.min(raf.length(), pos + SCAN_LIMIT);
+
+        while (pos < limit) {
+            int n = (int) Math.min(buffer.length, raf.length() - pos);
+            raf.seek(pos);
+            raf.readFully(buffer, 0, n);
+            int scan = Math.min(n, SCAN_CHUNK);
+            for (int i = 0; i < scan; i++) {
+                if (buffer[i] != (byte) 0xFF)
+                    continue;
+                FrameHeader frame = parseHeader(buffer, i, n - i, pos + i, info);
+                if (frame != null)
+                    return frame;
+            }
+            pos += scan;
+        }
+        return null;
+    }
+
+    /**
+     * Decoder input starting at {@code frame}: a minimal metadata chain
+     * (STREAMINFO and an empty PADDING block) followed by the audio from that
+     * frame to the end. The jflac SPI re-emits STREAMINFO as "not last" and
+     * then reads on from the stream, so STREAMINFO must not be the only block.
+     */
+    static InputStream streamFrom(CachedFile raf, StreamInfo info, FrameHeader frame) {
+        byte[] header = new byte[4 + 4 + 34 + 4];
+        header[0] = 'f';
+        header[1] = 'L';
+        header[2] = 'a';
+        header[3] = 'C';
+        header[7] = 34; // STREAMINFO
+        System.arraycopy(info.raw(), 0, header, 8, 34);
+        header[42] = (byte) 0x81; // last block: PADDING, length 0
+        raf.seek(frame.offset());
+        return new BufferedInputStream(new SequenceInputStream(new ByteArrayInputStream(header), raf.asInputStream()));
+    }
+
+    static FrameHeader parseHeader(byte[] b, int off, int available, long absoluteOffset, StreamInfo info) {
+        if (available < 6 || (b[off] & 0xFF) != 0xFF || (b[off + 1] & 0xFE) != 0xF8)
+            return null;
+        boolean variable = (b[off + 1] & 1) != 0;
+        int blockSizeCode = (b[off + 2] >> 4) & 0xF;
+        int sampleRateCode = b[off + 2] & 0xF;
+        int channelCode = (b[off + 3] >> 4) & 0xF;
+        int sampleSizeCode = (b[off + 3] >> 1) & 0x7;
+        if (blockSizeCode == 0 || sampleRateCode == 15 || channelCode > 10 || sampleSizeCode == 3
+                || (b[off + 3] & 1) != 0)
+            return null;
+
+        // frame or sample number, UTF-8 style coded
+        int p = off + 4;
+        int first = b[p++] & 0xFF;
+        int extra;
+        long number;
+        if (first < 0x80) {
+            extra = 0;
+            number = first;
+        } else if ((first & 0xE0) == 0xC0) {
+            extra = 1;
+            number = first & 0x1F;
+        } else if ((first & 0xF0) == 0xE0) {
+            extra = 2;
+            number = first & 0x0F;
+        } else if ((first & 0xF8) == 0xF0) {
+            extra = 3;
+            number = first & 0x07;
+        } else if ((first & 0xFC) == 0xF8) {
+            extra = 4;
+            number = first & 0x03;
+        } else if ((first & 0xFE) == 0xFC) {
+            extra = 5;
+            number = first & 0x01;
+        } else if (first == 0xFE) {
+            extra = 6;
+            number = 0;
+        } else {
+            return null;
+        }
+        if (p + extra + 4 > off + available)
+            return null;
+        for (int i = 0; i < extra; i++) {
+            int c = b[p++] & 0xFF;
+            if ((c & 0xC0) != 0x80)
+                return null;
+            number = (number << 6) | (c & 0x3F);
+        }
+
+        int blockSize;
+        switch (blockSizeCode) {
+            case 1 -> blockSize = 192;
+            case 2, 3, 4, 5 -> blockSize = 576 << (blockSizeCode - 2);
+            case 6 -> blockSize = (b[p++] & 0xFF) + 1;
+            case 7 -> {
+                blockSize = (((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF)) + 1;
+                p += 2;
+            }
+            default -> blockSize = 256 << (blockSizeCode - 8);
+        }
+        if (sampleRateCode == 12)
+            p += 1;
+        else if (sampleRateCode == 13 || sampleRateCode == 14)
+            p += 2;
+
+        if (crc8(b, off, p - off) != (b[p] & 0xFF))
+            return null;
+        if (info.maxBlockSize() > 0 && blockSize > info.maxBlockSize())
+            return null;
+
+        long firstSample = variable ? number : number * info.maxBlockSize();
+        if (info.totalSamples() > 0 && firstSample >= info.totalSamples())
+            return null;
+        return new FrameHeader(absoluteOffset, firstSample, blockSize);
+    }
+
+    /** CRC-8, polynomial x^8 + x^2 + x + 1, as used by FLAC frame headers. */
+    static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,292 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Decodes a FLAC file on several cores. FLAC frames are self-contained, so
+ * the file is cut at frame boundaries into chunks of about
+ * {@link #CHUNK_BYTES}, each chunk is decoded by jflac on a shared pool (one
+ * thread per core unless {@code -Dmusicfilter.flacDecodeThreads} says
+ * otherwise, whatever the number of open streams) and the PCM comes out
+ * in order, with a window of {@code threads + 1} chunks decoded ahead of the
+ * reader.
+ *
+ * <p>{@link PcmStreams#open} uses it for FLAC files of at least
+ * {@code -Dmusicfilter.parallelFlacMb} (default 64) MB, so the integrity check
+ * and loudness analysis of a few multi-hour files use every core.
+ * {@code -Dmusicfilter.parallelFlacPlayback=true} also makes
+ * {@link JavaSoundAudioPlayer} decode ahead this way.
+ *
+ * <p>{@code [--seconds 1800] [files...]}: throughput against
+ * the single-threaded decode, and a check that both produce the same PCM.
+ * Without files, a long FLAC track is generated with {@link LibraryGenerator}.
+ */
+public class FlacParallelDecoder {
+
+    static final int CHUNK_BYTES = 2 * 1024 * 1024;
+    // playback reads ahead in small chunks so that the first one doesn't delay the start
+    static final int PLAYBACK_CHUNK_BYTES = 256 * 1024;
+    static final long MIN_FILE_BYTES = Long.getLong("musicfilter.parallelFlacMb", 64) * 1024 * 1024;
+    static final boolean PLAYBACK = Boolean.getBoolean("musicfilter.parallelFlacPlayback");
+    private static final int THREADS = Math.max(1, Integer.getInteger("musicfilter.flacDecodeThreads",
+            Runtime.getRuntime().availableProcessors()));
+
+    private static final ExecutorService POOL;
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        POOL = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "flac-decode-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static int threads() {
+        return THREADS;
+    }
+
+    /** The whole file as PCM. */
+    public static AudioInputStream open(File file) throws UnsupportedAudioFileException, IOException {
+        return open(file, null, CHUNK_BYTES);
+    }
+
+    /**
+     * PCM from {@code from} (a frame found with {@link FlacFrames}; null for
+     * the start), in the format {@link PcmStreams#toPcm} gives jflac's output.
+     */
+    static AudioInputStream open(File file, FlacFrames.FrameHeader from, int chunkBytes)
+            throws UnsupportedAudioFileException, IOException {
+        CachedFile raf = BlockCache.get().open(file);
+        try {
+            FlacFrames.StreamInfo info = FlacFrames.readStreamInfo(raf);
+            if (info == null)
+                throw new UnsupportedAudioFileException("Not a FLAC file: " + file.getName());
+            FlacFrames.FrameHeader start = from != null ? from
+                    : new FlacFrames.FrameHeader(info.audioOffset(), 0, info.maxBlockSize());
+            AudioFormat format;
+            // closing the stream closes its file, so the probe has one of its own
+            try (CachedFile header = BlockCache.get().open(file);
+                    AudioInputStream probe = PcmStreams.toPcm(
+                            AudioSystem.getAudioInputStream(FlacFrames.streamFrom(header, info, start)))) {
+                format = probe.getFormat(); // jflac reads the metadata only
+            }
+            long frames = info.totalSamples() > 0 ? info.totalSamples() - start.firstSample() : AudioSystem.NOT_SPECIFIED;
+            return new AudioInputStream(new OrderedPcm(file, raf, info, start, format, chunkBytes), format, frames);
+        } catch (UnsupportedAudioFileException | IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The first frame at or after {@code from} that is followed by a frame
+     * continuing its sample numbering (which rules out a sync code and CRC-8
+     * matching by chance in the audio); null if there is none.
+     */
+    static FlacFrames.FrameHeader boundary(CachedFile raf, FlacFrames.StreamInfo info, long from) throws IOException {
+        while (from < raf.length()) {
+            FlacFrames.FrameHeader frame = FlacFrames.nextFrame(raf, info, from);
+            if (frame == null)
+                return null;
+            FlacFrames.FrameHeader next = FlacFrames.nextFrame(raf, info, frame.offset() + 1);
+            if (next == null || next.firstSample() == frame.firstSample() + frame.blockSize())
+                return next == null ? null : frame; // the last frame isn't worth a chunk of its own
+            from = frame.offset() + 1;
+        }
+        return null;
+    }
+
+    /** Decodes samples {@code start.firstSample()} up to {@code end}'s (or the end of the file). */
+    private static byte[] decode(File file, FlacFrames.StreamInfo info, FlacFrames.FrameHeader start,
+            FlacFrames.FrameHeader end, int frameSize) throws IOException, UnsupportedAudioFileException {
+        try (CachedFile raf = BlockCache.get().open(file);
+                AudioInputStream in = PcmStreams.toPcm(
+                        AudioSystem.getAudioInputStream(FlacFrames.streamFrom(raf, info, start)))) {
+            if (end == null) {
+                return in.readAllBytes();
+            }
+            byte[] pcm = new byte[(int) ((end.firstSample() - start.firstSample()) * frameSize)];
+            int n = in.readNBytes(pcm, 0, pcm.length);
+            if (n < pcm.length) {
+                // damaged frames were skipped; what is missing shows as a shortfall, as with the plain decoder
+                System.out.println("FLAC chunk at sample " + start.firstSample() + " of " + file.getName()
+                        + " decoded " + n / frameSize + " of " + pcm.length / frameSize + " samples");
+                byte[] shorter = new byte[n];
+                System.arraycopy(pcm, 0, shorter, 0, n);
+                return shorter;
+            }
+            return pcm;
+        }
+    }
+
+    /** Chunk PCM in file order, decoding the next ones meanwhile. */
+    private static class OrderedPcm extends InputStream {
+        private final File file;
+        private final CachedFile raf; // for finding chunk boundaries
+        private final FlacFrames.StreamInfo info;
+        private final int frameSize;
+        private final int chunkBytes;
+        private final ArrayDeque<Future<byte[]>> window = new ArrayDeque<>();
+        private FlacFrames.FrameHeader nextStart; // null once the last chunk is scheduled
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        OrderedPcm(File file, CachedFile raf, FlacFrames.StreamInfo info, FlacFrames.FrameHeader start,
+                AudioFormat format, int chunkBytes) throws IOException {
+            this.file = file;
+            this.raf = raf;
+            this.info = info;
+            this.frameSize = format.getFrameSize();
+            this.chunkBytes = chunkBytes;
+            this.nextStart = start;
+            fill();
+        }
+
+        private void fill() throws IOException {
+            while (nextStart != null && window.size() <= THREADS) {
+                FlacFrames.FrameHeader start = nextStart;
+                FlacFrames.FrameHeader found = boundary(raf, info, start.offset() + chunkBytes);
+                // numbering that doesn't go on (a damaged stream): the rest is decoded in one
+                FlacFrames.FrameHeader end = found != null && found.firstSample() > start.firstSample() ? found : null;
+                nextStart = end;
+                window.add(POOL.submit(() -> decode(file, info, start, end, frameSize)));
+            }
+        }
+
+        private boolean advance() throws IOException {
+            while (position == chunk.length) {
+                Future<byte[]> next = window.poll();
+                if (next == null)
+                    return false;
+                try {
+                    chunk = next.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while decoding " + file.getName(), e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException io ? io : new IOException(cause.getMessage(), cause);
+                }
+                position = 0;
+                fill();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return advance() ? chunk[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!advance())
+                return -1;
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk.length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Future<byte[]> pending : window)
+                pending.cancel(true);
+            window.clear();
+            nextStart = null;
+            raf.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = 1800;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                default -> files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            File library = new File(System.getProperty("java.io.tmpdir"), "musicfilter-flac-" + seconds);
+            FileFilter flac = f -> f.getName().endsWith(".flac");
+            File[] generated = library.listFiles(flac);
+            if (generated == null || generated.length == 0) {
+                new LibraryGenerator(new LibraryGenerator.Options(library, 1, 1, Map.of(AudioFileType.FLAC, 1),
+                        LibraryGenerator.Layout.NONE, 0, 0, 0, seconds, true)).generate();
+                generated = library.listFiles(flac);
+            }
+            if (generated == null || generated.length == 0) {
+                // the generated names aren't ASCII; without a UTF-8 file name encoding they can't be created
+                System.err.println("No FLAC file generated in " + library + " (file name encoding "
+                        + System.getProperty("sun.jnu.encoding") + "; try LC_ALL=C.UTF-8)");
+                System.exit(1);
+            }
+            files.addAll(List.of(generated));
+        }
+
+        boolean failed = false;
+        for (File file : files) {
+            // the plain decoder first, so both runs find the file in the page cache
+            Run single = run(file, false);
+            Run parallel = run(file, true);
+            boolean same = single.crc() == parallel.crc() && single.bytes() == parallel.bytes();
+            failed |= !same;
+            System.out.printf("%s: %.1f MB of PCM; single-threaded %.0f ms (%.0fx real time), %d threads %.0f ms "
+                    + "(%.0fx real time), %.2fx faster, output %s%n", file.getName(), single.bytes() / 1e6,
+                    single.millis(), single.realTime(), THREADS, parallel.millis(), parallel.realTime(),
+                    single.millis() / parallel.millis(), same ? "identical" : "DIFFERENT");
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private record Run(long bytes, long crc, double millis, double audioSeconds) {
+        double realTime() {
+            return audioSeconds / (millis / 1000);
+        }
+    }
+
+    private static Run run(File file, boolean parallel) throws Exception {
+        long start = System.nanoTime();
+        CRC32 crc = new CRC32();
+        long bytes = 0;
+        AudioFormat format;
+        try (AudioInputStream in = parallel ? open(file)
+                : PcmStreams.toPcm(AudioSystem.getAudioInputStream(file))) {
+            format = in.getFormat();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+                bytes += n;
+            }
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        return new Run(bytes, crc.getValue(), millis, bytes / (format.getFrameSize() * (double) format.getFrameRate()));
+    }
+}
@@ -0,0 +1,35 @@
+package com.stopsopa.musicfilter;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plug-in point for one audio format: how to recognise it, where its tags live
+ * and which player can play it. Built-in formats are registered by
+ * {@link FormatRegistry}; extra ones can be added through
+ * {@link FormatRegistry#register} or {@code META-INF/services}.
+ */
+public interface FormatProvider {
+
+    AudioFileType type();
+
+    /** Lower-case extensions (without the dot) used to pick files up while scanning. */
+    List<String> extensions();
+
+    /**
+     * Checks the leading bytes of the file (after any ID3v2 tag has been
+     * skipped). {@code length} may be shorter than {@code header.length}.
+     */
+    boolean matches(byte[] header, int length);
+
+    /** Format specific tags. Generic ID3v1/ID3v2 tags are handled by {@link MetadataParser}. */
+    Map<String, Object> parse(File file);
+
+    AudioPlayer createPlayer(File file);
+
+    /** Encoded bytes (JPEG/PNG) of the embedded front cover, or null when there is none. */
+    default byte[] extractCoverArt(File file) {
+        return null;
+    }
+}
@@ -0,0 +1,220 @@
+package com.stopsopa.musicfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * Single place that decides what a file is. Formats are identified from the
+ * first bytes of the file (one read, two when an ID3v2 tag has to be skipped),
+ * falling back to the extension only when no signature matches. Results are
+ * cached per path and invalidated when size or mtime change.
+ */
+public class FormatRegistry {
+
+    private static final int SNIFF_BYTES = 64;
+    private static final FormatRegistry INSTANCE = new FormatRegistry();
+
+    private final List<FormatProvider> providers = new CopyOnWriteArrayList<>();
+    private final Map<String, Detection> cache = new ConcurrentHashMap<>();
+
+    private record Detection(long length, long lastModified, FormatProvider provider) {
+    }
+
+    private record BuiltIn(AudioFileType type, List<String> extensions, BiPredicate<byte[], Integer> sniffer,
+            Function<File, Map<String, Object>> parser, Function<File, AudioPlayer> players,
+            Function<File, byte[]> coverArt) implements FormatProvider {
+
+        @Override
+        public boolean matches(byte[] header, int length) {
+            return sniffer.test(header, length);
+        }
+
+        @Override
+        public Map<String, Object> parse(File file) {
+            return parser.apply(file);
+        }
+
+        @Override
+        public AudioPlayer createPlayer(File file) {
+            return players.apply(file);
+        }
+
+        @Override
+        public byte[] extractCoverArt(File file) {
+            return coverArt.apply(file);
+        }
+    }
+
+    public static FormatRegistry get() {
+        return INSTANCE;
+    }
+
+    private FormatRegistry() {
+        providers.add(new BuiltIn(AudioFileType.FLAC, List.of("flac"),
+                (h, n) -> startsWith(h, n, 0, "fLaC"),
+                MetadataParser::parseFlac, JavaSoundAudioPlayer::new, MetadataParser::readFlacPicture));
+        providers.add(new BuiltIn(AudioFileType.OGG, List.of("ogg"),
+                (h, n) -> startsWith(h, n, 0, "OggS"),
+                MetadataParser::parseOgg, JavaSoundAudioPlayer::new, file -> null));
+        providers.add(new BuiltIn(AudioFileType.WAV, List.of("wav"),
+                (h, n) -> (startsWith(h, n, 0, "RIFF") || startsWith(h, n, 0, "RF64") || startsWith(h, n, 0, "BW64"))
+                        && startsWith(h, n, 8, "WAVE"),
+                RiffChunks::parseWav, JavaFXAudioPlayer::new, file -> RiffChunks.readId3Picture(file, true)));
+        providers.add(new BuiltIn(AudioFileType.AIFF, List.of("aif", "aiff"),
+                (h, n) -> startsWith(h, n, 0, "FORM")
+                        && (startsWith(h, n, 8, "AIFF") || startsWith(h, n, 8, "AIFC")),
+                RiffChunks::parseAiff, JavaFXAudioPlayer::new, file -> RiffChunks.readId3Picture(file, false)));
+        providers.add(new BuiltIn(AudioFileType.MP4, List.of("m4a"),
+                (h, n) -> startsWith(h, n, 4, "ftyp") || startsWith(h, n, 4, "moov")
+                        || startsWith(h, n, 4, "mdat") || startsWith(h, n, 4, "free") || startsWith(h, n, 4, "wide"),
+                Mp4Atoms::parse, JavaFXAudioPlayer::new, Mp4Atoms::coverArt));
+        providers.add(new BuiltIn(AudioFileType.ADTS, List.of("aac"),
+                FormatRegistry::isAdts,
+                file -> Map.of(), JavaSoundAudioPlayer::new, // ADTS only carries ID3 tags
+                file -> MetadataParser.readId3Picture(file, 0)));
+        providers.add(new BuiltIn(AudioFileType.MP3, List.of("mp3"),
+                FormatRegistry::isMpegAudio,
+                MpegFrames::metadata, JavaFXAudioPlayer::new, // ID3 is handled generically
+                file -> MetadataParser.readId3Picture(file, 0)));
+
+        for (FormatProvider provider : ServiceLoader.load(FormatProvider.class)) {
+            register(provider);
+        }
+    }
+
+    /** Adds a provider; it takes precedence over everything registered before it. */
+    public void register(FormatProvider provider) {
+        providers.add(0, provider);
+        cache.clear();
+    }
+
+    /** Cheap pre-filter used while scanning directories; doesn't touch the file. */
+    public boolean isCandidate(File file) {
+        return byExtension(file) != null;
+    }
+
+    public AudioFileType typeOf(File file) {
+        FormatProvider provider = detect(file);
+        return provider == null ? null : provider.type();
+    }
+
+    public AudioPlayer createPlayer(File file) {
+        FormatProvider provider = detect(file);
+        if (provider == null)
+            throw new IllegalArgumentException("Unsupported audio file: " + file.getName());
+        TrackEvents.PlayerCreate event = new TrackEvents.PlayerCreate();
+        event.begin();
+        AudioPlayer player = provider.createPlayer(file);
+        if (event.shouldCommit()) {
+            event.track(file);
+            event.player = player.getClass().getSimpleName();
+            event.commit();
+        }
+        return player;
+    }
+
+    public FormatProvider detect(File file) {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        Detection detection = cache.get(key);
+        if (detection != null && detection.length() == length && detection.lastModified() == lastModified)
+            return detection.provider();
+
+        FormatProvider provider = sniff(file);
+        if (provider == null) {
+            provider = byExtension(file);
+            if (provider != null)
+                System.out.println("No known signature in " + file.getName() + ", assuming " + provider.type());
+        }
+        if (provider != null)
+            cache.put(key, new Detection(length, lastModified, provider));
+        return provider;
+    }
+
+    public void invalidate(File file) {
+        cache.remove(file.getAbsolutePath());
+    }
+
+    private FormatProvider sniff(File file) {
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            byte[] header = new byte[SNIFF_BYTES];
+            int n = readUpTo(raf, header);
+
+            // ID3v2 can precede MP3, ADTS and (rarely) FLAC streams
+            if (n >= 10 && startsWith(header, n, 0, "ID3")) {
+                long tagEnd = 10L + (((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14)
+                        | ((header[8] & 0x7F) << 7) | (header[9] & 0x7F));
+                if ((header[5] & 0x10) != 0)
+                    tagEnd += 10; // footer
+                raf.seek(tagEnd);
+                n = readUpTo(raf, header);
+            }
+
+            for (FormatProvider provider : providers) {
+                if (provider.matches(header, n))
+                    return provider;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to sniff " + file.getName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private FormatProvider byExtension(File file) {
+        String name = file.getName().toLowerCase();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0)
+            return null;
+        String extension = name.substring(dot + 1);
+        for (FormatProvider provider : providers) {
+            if (provider.extensions().contains(extension))
+                return provider;
+        }
+        return null;
+    }
+
+    private static int readUpTo(CachedFile raf, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = raf.read(buffer, total, buffer.length - total);
+            if (read == -1)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    static boolean startsWith(byte[] header, int length, int offset, String magic) {
+        if (offset + magic.length() > length)
+            return false;
+        byte[] bytes = magic.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < bytes.length; i++) {
+            if (header[offset + i] != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isAdts(byte[] header, int length) {
+        // 12 bit sync word, layer always 00
+        return length >= 2 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xF6) == 0xF0;
+    }
+
+    private static boolean isMpegAudio(byte[] header, int length) {
+        if (length < 2 || (header[0] & 0xFF) != 0xFF || (header[1] & 0xE0) != 0xE0)
+            return false;
+        int version = (header[1] >> 3) & 0x03;
+        int layer = (header[1] >> 1) & 0x03;
+        return version != 1 && layer != 0;
+    }
+}
@@ -0,0 +1,411 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Finds truncated and corrupt files before playback does. Two tiers:
+ * <ul>
+ * <li>{@link Tier#QUICK} reads a few KB per file: FLAC STREAMINFO against the
+ * last frame, the Ogg end-of-stream page, the MP3 Xing byte count, the WAV/AIFF
+ * audio chunk and the MP4 {@code mdat} atom against the file size.</li>
+ * <li>{@link Tier#FULL} decodes the whole file through the same SPIs as
+ * {@link JavaSoundAudioPlayer} and compares the decoded length with the one
+ * the headers promise. MP3 is walked frame by frame instead (there is no MP3
+ * decoder on the Java Sound side) and MP4 gets the structural check only.</li>
+ * </ul>
+ * Results are cached by path, size, mtime and tier in a {@link ResultStore}
+ * ({@code ~/.musicfilter/integrity.tsv}).
+ */
+public class IntegrityScanner {
+
+    private static final int TAIL_BYTES = 64 * 1024;
+    private static final int MAX_TRAILING_JUNK = 64 * 1024;
+
+    private static final IntegrityScanner INSTANCE = new IntegrityScanner(
+            new File(System.getProperty("user.home"), ".musicfilter/integrity.tsv"));
+
+    public enum Tier {
+        QUICK, FULL
+    }
+
+    /** {@code UNCHECKED}: the file couldn't be decoded here, which doesn't make it broken. */
+    public enum Status {
+        OK, TRUNCATED, CORRUPT, UNCHECKED
+    }
+
+    public record Result(Status status, Tier tier, String detail) {
+        public boolean failed() {
+            return status == Status.TRUNCATED || status == Status.CORRUPT;
+        }
+
+        @Override
+        public String toString() {
+            return status + " (" + tier.name().toLowerCase() + "): " + detail;
+        }
+    }
+
+    /** A quick-tier result plus the length in sample frames the headers promise (0 if unknown). */
+    private record Quick(Result result, long expectedFrames) {
+    }
+
+    private final ResultStore store;
+
+    public static IntegrityScanner get() {
+        return INSTANCE;
+    }
+
+    IntegrityScanner(File cacheFile) {
+        // stored by tier, values are status<TAB>detail
+        this.store = new ResultStore(cacheFile, "integrity", 2);
+    }
+
+    /** Checks one file, or returns the cached result if the file hasn't changed since. */
+    public Result check(File file, Tier tier) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+        // a full result answers a quick check too
+        Result cached = stored(path, length, modified, Tier.FULL);
+        if (cached == null && tier == Tier.QUICK)
+            cached = stored(path, length, modified, Tier.QUICK);
+        if (cached != null)
+            return cached;
+
+        Result result;
+        try {
+            Quick quick = quick(file);
+            result = quick.result();
+            if (tier == Tier.FULL && !result.failed())
+                result = full(file, quick);
+        } catch (Exception e) {
+            result = new Result(Status.CORRUPT, tier, "unreadable: " + e.getMessage());
+        }
+        store.put(path, length, modified,
+                Map.of(result.tier().name(), result.status() + "\t" + ResultStore.field(result.detail())));
+        return result;
+    }
+
+    private Result stored(String path, long length, long modified, Tier tier) {
+        String value = store.get(path, length, modified, tier.name());
+        if (value == null)
+            return null;
+        String[] fields = value.split("\t", 2);
+        try {
+            return new Result(Status.valueOf(fields[0]), tier, fields[1]);
+        } catch (IllegalArgumentException e) {
+            return null; // from another version
+        }
+    }
+
+    /** Checks {@code files} as a {@link FileBatch}. Results are delivered on the worker threads. */
+    public CompletableFuture<Void> checkAll(List<File> files, Tier tier, BiConsumer<File, Result> onResult) {
+        AtomicInteger failures = new AtomicInteger();
+        return FileBatch.run("integrity", files, file -> {
+            Result result = check(file, tier);
+            if (result.failed()) {
+                failures.incrementAndGet();
+                System.err.println("Integrity: " + file + ": " + result);
+            }
+            onResult.accept(file, result);
+        }).thenAccept(nanos -> System.out.printf("Integrity (%s): %d files, %d failed, %.1f s on %d threads%n",
+                tier.name().toLowerCase(), files.size(), failures.get(), nanos / 1e9, FileBatch.THREADS));
+    }
+
+    // ---- quick tier ----
+
+    private Quick quick(File file) throws IOException {
+        AudioFileType type = FormatRegistry.get().typeOf(file);
+        if (type == null)
+            return new Quick(new Result(Status.CORRUPT, Tier.QUICK, "not a recognised audio file"), 0);
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            return switch (type) {
+                case FLAC -> quickFlac(raf);
+                case OGG -> quickOgg(raf);
+                case MP3 -> quickMpeg(raf);
+                case MP4 -> new Quick(quickMp4(raf), 0);
+                case WAV, AIFF -> new Quick(riff(file, type == AudioFileType.WAV), 0);
+                case ADTS -> new Quick(ok(Tier.QUICK, "ADTS has no length to check against"), 0);
+            };
+        }
+    }
+
+    /** STREAMINFO's sample count must end exactly with one of the frames near the end of the file. */
+    private static Quick quickFlac(CachedFile raf) throws IOException {
+        FlacFrames.StreamInfo info = FlacFrames.readStreamInfo(raf);
+        if (info == null)
+            return new Quick(new Result(Status.CORRUPT, Tier.QUICK, "no STREAMINFO block"), 0);
+        if (info.audioOffset() >= raf.length())
+            return new Quick(new Result(Status.TRUNCATED, Tier.QUICK, "no audio after the metadata"), 0);
+        FlacFrames.FrameHeader first = FlacFrames.nextFrame(raf, info, info.audioOffset());
+        if (first == null || first.offset() != info.audioOffset())
+            return new Quick(new Result(Status.CORRUPT, Tier.QUICK, "no frame right after the metadata"), 0);
+        if (info.totalSamples() <= 0)
+            return new Quick(ok(Tier.QUICK, "STREAMINFO has no sample count"), 0);
+
+        byte[] raw = info.raw();
+        int maxFrameSize = ((raw[7] & 0xFF) << 16) | ((raw[8] & 0xFF) << 8) | (raw[9] & 0xFF);
+        long pos = Math.max(info.audioOffset(), raf.length() - Math.max(TAIL_BYTES, 2L * maxFrameSize));
+        long lastEnd = 0;
+        FlacFrames.FrameHeader frame;
+        while ((frame = FlacFrames.nextFrame(raf, info, pos)) != null) {
+            long end = frame.firstSample() + frame.blockSize();
+            if (end == info.totalSamples())
+                return new Quick(ok(Tier.QUICK, info.totalSamples() + " samples"), info.totalSamples());
+            lastEnd = Math.max(lastEnd, end);
+            pos = frame.offset() + 1;
+        }
+        return new Quick(new Result(Status.TRUNCATED, Tier.QUICK,
+                String.format("audio ends at sample %d of %d", lastEnd, info.totalSamples())), info.totalSamples());
+    }
+
+    /** The first page must begin the stream and the last one must end it, inside the file. */
+    private static Quick quickOgg(CachedFile raf) throws IOException {
+        byte[] head = new byte[27];
+        raf.seek(0);
+        raf.readFully(head);
+        if ((head[5] & 0x02) == 0)
+            return new Quick(new Result(Status.CORRUPT, Tier.QUICK, "first page isn't a beginning-of-stream page"), 0);
+
+        int n = (int) Math.min(raf.length(), TAIL_BYTES + 27 + 255);
+        byte[] tail = new byte[n];
+        long base = raf.length() - n;
+        raf.seek(base);
+        raf.readFully(tail);
+        for (int i = n - 27; i >= 0; i--) {
+            if (tail[i] != 'O' || tail[i + 1] != 'g' || tail[i + 2] != 'g' || tail[i + 3] != 'S' || tail[i + 4] != 0)
+                continue;
+            int segments = tail[i + 26] & 0xFF;
+            long body = 0;
+            for (int s = 0; s < segments && i + 27 + s < n; s++)
+                body += tail[i + 27 + s] & 0xFF;
+            long pageEnd = base + i + 27 + segments + body;
+            long granule = 0;
+            for (int b = 7; b >= 0; b--)
+                granule = (granule << 8) | (tail[i + 6 + b] & 0xFF);
+            if (pageEnd > raf.length())
+                return new Quick(new Result(Status.TRUNCATED, Tier.QUICK,
+                        "last page is cut off (" + (pageEnd - raf.length()) + " bytes missing)"), granule);
+            if ((tail[i + 5] & 0x04) == 0)
+                return new Quick(new Result(Status.TRUNCATED, Tier.QUICK, "no end-of-stream page"), granule);
+            return new Quick(ok(Tier.QUICK, granule + " samples"), granule);
+        }
+        return new Quick(new Result(Status.CORRUPT, Tier.QUICK, "no Ogg page in the last " + n + " bytes"), 0);
+    }
+
+    /** A valid first frame, and the byte count of a Xing/Info header (if any) against the file. */
+    private static Quick quickMpeg(CachedFile raf) throws IOException {
+        long start = MpegFrames.audioStart(raf);
+        byte[] header = new byte[4];
+        if (start + 4 > raf.length())
+            return new Quick(new Result(Status.TRUNCATED, Tier.QUICK, "no audio after the ID3 tag"), 0);
+        raf.seek(start);
+        raf.readFully(header);
+        MpegFrames.FrameHeader first = MpegFrames.parse(header, 0);
+        if (first == null)
+            return new Quick(new Result(Status.CORRUPT, Tier.QUICK, "no MPEG frame after the ID3 tag"), 0);
+
+        MpegFrames.XingHeader xing = MpegFrames.readXing(raf, start, first);
+        long expectedFrames = xing == null || xing.frames() < 0 ? 0 : xing.frames() * first.samplesPerFrame();
+        if (xing != null && xing.bytes() > 0 && raf.length() - start < xing.bytes())
+            return new Quick(new Result(Status.TRUNCATED, Tier.QUICK,
+                    String.format("%d of %d audio bytes", raf.length() - start, xing.bytes())), expectedFrames);
+        return new Quick(ok(Tier.QUICK, xing == null ? "no Xing header" : "matches its Xing header"), expectedFrames);
+    }
+
+    /** {@code moov} must exist and {@code mdat} must fit in the file. */
+    private static Result quickMp4(CachedFile raf) throws IOException {
+        Mp4Atoms.Navigator nav = new Mp4Atoms.Navigator(raf);
+        boolean moov = false;
+        boolean mdat = false;
+        long pos = 0;
+        while (pos < raf.length()) {
+            Mp4Atoms.Atom atom = nav.read(pos, Long.MAX_VALUE);
+            if (atom == null)
+                break;
+            if (atom.end() > raf.length())
+                return new Result(Status.TRUNCATED, Tier.QUICK, String.format("'%s' atom is cut off (%d bytes missing)",
+                        atom.type(), atom.end() - raf.length()));
+            moov |= atom.type().equals("moov");
+            mdat |= atom.type().equals("mdat");
+            pos = atom.end();
+        }
+        if (!moov)
+            return new Result(Status.CORRUPT, Tier.QUICK, "no 'moov' atom");
+        if (!mdat)
+            return new Result(Status.CORRUPT, Tier.QUICK, "no 'mdat' atom");
+        return ok(Tier.QUICK, "atoms fit the file");
+    }
+
+    private static Result riff(File file, boolean wav) throws IOException {
+        long shortfall = RiffChunks.dataShortfall(file, wav);
+        if (shortfall < 0)
+            return new Result(Status.CORRUPT, Tier.QUICK, "no audio chunk");
+        if (shortfall > 0)
+            return new Result(Status.TRUNCATED, Tier.QUICK, shortfall + " bytes of audio missing");
+        return ok(Tier.QUICK, "audio chunk complete");
+    }
+
+    // ---- full tier ----
+
+    private static Result full(File file, Quick quick) throws IOException {
+        AudioFileType type = FormatRegistry.get().typeOf(file);
+        if (type == AudioFileType.MP3)
+            return walkMpeg(file, quick.expectedFrames());
+        if (type == AudioFileType.MP4)
+            return ok(Tier.FULL, quick.result().detail() + "; not decoded (no headless MP4 decoder)");
+        // lossless decoders are sample exact; a shortfall there means frames were dropped
+        return decode(file, quick.expectedFrames(), type != AudioFileType.OGG && type != AudioFileType.ADTS);
+    }
+
+    private static Result decode(File file, long expectedFrames, boolean exact) {
+        long frames = 0;
+        try (AudioInputStream in = PcmStreams.open(file)) {
+            if (expectedFrames <= 0 && in.getFrameLength() != AudioSystem.NOT_SPECIFIED)
+                expectedFrames = in.getFrameLength();
+            int frameSize = Math.max(1, in.getFormat().getFrameSize());
+            byte[] buffer = new byte[64 * 1024 - (64 * 1024) % frameSize];
+            long bytes = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                bytes += n;
+            frames = bytes / frameSize;
+        } catch (UnsupportedAudioFileException e) {
+            return new Result(Status.UNCHECKED, Tier.FULL, "no decoder for this file: " + e.getMessage());
+        } catch (Exception e) {
+            return new Result(Status.CORRUPT, Tier.FULL,
+                    "decoder failed after " + frames + " samples: " + e.getClass().getSimpleName() + " " + e.getMessage());
+        }
+        if (exact && expectedFrames > 0 && frames < expectedFrames)
+            return new Result(Status.CORRUPT, Tier.FULL,
+                    String.format("decoded %d of %d samples; damaged frames were skipped", frames, expectedFrames));
+        // lossy decoders may drop a partial block or encoder padding at the end
+        if (expectedFrames > 0 && frames < expectedFrames - Math.max(4096, expectedFrames / 1000))
+            return new Result(Status.TRUNCATED, Tier.FULL,
+                    String.format("decoded %d of %d samples", frames, expectedFrames));
+        return ok(Tier.FULL, "decoded " + frames + " samples");
+    }
+
+    /**
+     * Follows the frame chain from the first frame to the trailing tags. A
+     * gap in the chain with frames after it is corruption; a last frame that
+     * runs past the end of the file is truncation.
+     */
+    private static Result walkMpeg(File file, long expectedFrames) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                return ok(Tier.FULL, "too large to walk");
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        long start;
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            start = MpegFrames.audioStart(raf);
+        }
+        int end = trailingTagsStart(data);
+        byte[] header = new byte[4];
+        long frames = 0;
+        long samples = 0;
+        int gapAt = -1;
+        int gapBytes = 0;
+
+        int pos = (int) Math.min(start, end);
+        while (pos + 4 <= end) {
+            data.get(pos, header);
+            MpegFrames.FrameHeader frame = MpegFrames.parse(header, 0);
+            if (frame == null) {
+                gapBytes++;
+                if (gapAt < 0)
+                    gapAt = pos;
+                pos++;
+                continue;
+            }
+            if (gapAt >= 0 && frames > 0)
+                return new Result(Status.CORRUPT, Tier.FULL, String.format(
+                        "frame chain broken at byte %d (%d bytes skipped)", gapAt, pos - gapAt));
+            gapAt = -1;
+            gapBytes = 0;
+            if (pos + frame.length() > end)
+                return new Result(Status.TRUNCATED, Tier.FULL, String.format(
+                        "last frame is cut off (%d of %d bytes) after %d frames", end - pos, frame.length(), frames));
+            pos += frame.length();
+            frames++;
+            samples += frame.samplesPerFrame();
+        }
+
+        if (frames == 0)
+            return new Result(Status.CORRUPT, Tier.FULL, "no MPEG frames");
+        if (gapBytes > MAX_TRAILING_JUNK)
+            return new Result(Status.CORRUPT, Tier.FULL, gapBytes + " bytes of non-audio data at the end");
+        if (expectedFrames > 0 && samples < expectedFrames - Math.max(4096, expectedFrames / 1000))
+            return new Result(Status.TRUNCATED, Tier.FULL,
+                    String.format("%d of %d samples per the Xing header", samples, expectedFrames));
+        return ok(Tier.FULL, frames + " frames");
+    }
+
+    /** Where ID3v1 and APEv2 tags at the end of an MP3 begin. */
+    private static int trailingTagsStart(MappedByteBuffer data) {
+        int end = data.limit();
+        byte[] tag = new byte[8];
+        if (end >= 128) {
+            data.get(end - 128, tag, 0, 3);
+            if (tag[0] == 'T' && tag[1] == 'A' && tag[2] == 'G')
+                end -= 128;
+        }
+        if (end >= 32) {
+            data.get(end - 32, tag, 0, 8);
+            if (new String(tag, StandardCharsets.ISO_8859_1).equals("APETAGEX")) {
+                // size covers items and footer; flags bit 31 says there's a header too
+                long size = intLE(data, end - 32 + 12) & 0xFFFFFFFFL;
+                int flags = intLE(data, end - 32 + 20);
+                long apeStart = (long) end - size - ((flags & 0x80000000) != 0 ? 32 : 0);
+                if (apeStart >= 0)
+                    end = (int) apeStart;
+            }
+        }
+        return end;
+    }
+
+    private static int intLE(MappedByteBuffer data, int index) {
+        return (data.get(index) & 0xFF) | (data.get(index + 1) & 0xFF) << 8 | (data.get(index + 2) & 0xFF) << 16
+                | (data.get(index + 3) & 0xFF) << 24;
+    }
+
+    private static Result ok(Tier tier, String detail) {
+        return new Result(Status.OK, tier, detail);
+    }
+
+    /**
+     * Usage: {@code IntegrityScanner [--full] <file or directory>...}; prints
+     * every failing file and exits with 1 if there were any.
+     */
+    public static void main(String[] args) throws Exception {
+        Tier tier = Tier.QUICK;
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--full"))
+                tier = Tier.FULL;
+            else
+                FileBatch.collect(new File(arg), files);
+        }
+        AtomicInteger failed = new AtomicInteger();
+        get().checkAll(files, tier, (file, result) -> {
+            if (result.failed())
+                failed.incrementAndGet();
+        }).join();
+        System.exit(failed.get() == 0 ? 0 : 1);
+    }
+}
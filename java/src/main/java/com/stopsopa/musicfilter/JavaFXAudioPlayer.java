@@ -1,5 +1,6 @@
 package com.stopsopa.musicfilter;
 
+import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.scene.media.Media;
@@ -7,13 +8,22 @@ import javafx.scene.media.MediaPlayer;
 import javafx.util.Duration;
 
 import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class JavaFXAudioPlayer implements AudioPlayer {
 
+    private static final long PREPARE_TIMEOUT_MS = 3000;
+    // a time update this close to the seek target means the seek has landed (updates come every 100 ms or so)
+    private static final double SEEK_TOLERANCE_MS = 500;
+
+    private final File file;
     private final MediaPlayer mediaPlayer;
     private final SimpleObjectProperty<Status> status = new SimpleObjectProperty<>(Status.UNKNOWN);
+    private final SimpleObjectProperty<Duration> seekTarget = new SimpleObjectProperty<>();
 
     public JavaFXAudioPlayer(File file) {
+        this.file = file;
         Media media = new Media(file.toURI().toString());
         this.mediaPlayer = new MediaPlayer(media);
 
@@ -25,9 +35,26 @@ public class JavaFXAudioPlayer implements AudioPlayer {
                 case STOPPED -> status.set(Status.STOPPED);
                 default -> status.set(Status.UNKNOWN);
             }
+            if (newVal == MediaPlayer.Status.STOPPED || newVal == MediaPlayer.Status.HALTED)
+                seekTarget.set(null); // the position is back at the start, or nowhere
+        });
+        // MediaPlayer coalesces seeks itself and may report the old position a few more times before landing
+        this.mediaPlayer.currentTimeProperty().addListener((obs, oldVal, newVal) -> {
+            Duration target = seekTarget.get();
+            if (target != null && landed(newVal, target))
+                seekTarget.set(null);
         });
     }
 
+    /** Whether {@code time} is at {@code target}, as far as MediaPlayer can seek (within the media). */
+    private boolean landed(Duration time, Duration target) {
+        double targetMs = Math.max(0, target.toMillis());
+        Duration total = mediaPlayer.getTotalDuration();
+        if (total != null && !total.isUnknown() && !total.isIndefinite())
+            targetMs = Math.min(targetMs, total.toMillis());
+        return Math.abs(time.toMillis() - targetMs) <= SEEK_TOLERANCE_MS;
+    }
+
     @Override
     public void play() {
         mediaPlayer.play();
@@ -50,7 +77,46 @@ public class JavaFXAudioPlayer implements AudioPlayer {
 
     @Override
     public void seek(Duration seekTime) {
+        // MediaPlayer seeks asynchronously, so this only records when the seek was asked for
+        TrackEvents.Seek event = new TrackEvents.Seek();
+        event.begin();
+        seekTarget.set(seekTime);
         mediaPlayer.seek(seekTime);
+        if (event.shouldCommit()) {
+            event.track(file);
+            event.targetMillis = (long) seekTime.toMillis();
+            event.commit();
+        }
+    }
+
+    /** Waits (off the FX thread) until the media is READY and seeks there; MediaPlayer seeks without decoding. */
+    @Override
+    public void prepare(double startFraction) {
+        CountDownLatch ready = new CountDownLatch(1);
+        Runnable position = () -> {
+            Duration total = mediaPlayer.getTotalDuration();
+            if (startFraction > 0 && total != null && !total.isUnknown())
+                mediaPlayer.seek(total.multiply(startFraction));
+            ready.countDown();
+        };
+        mediaPlayer.setOnReady(position);
+        if (mediaPlayer.getStatus() == MediaPlayer.Status.READY)
+            Platform.runLater(position); // became ready before the handler was set
+
+        if (!Platform.isFxApplicationThread()) {
+            try {
+                if (!ready.await(PREPARE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                    System.err.println("Media not ready after " + PREPARE_TIMEOUT_MS + " ms");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void setTrackGain(double gainDb, double truePeak) {
+        // MediaPlayer can only attenuate
+        mediaPlayer.setVolume(Math.min(1.0, LoudnessAnalyzer.linearGain(gainDb, truePeak)));
     }
 
     @Override
@@ -69,6 +135,16 @@ public class JavaFXAudioPlayer implements AudioPlayer {
         return status;
     }
 
+    @Override
+    public ReadOnlyObjectProperty<Duration> seekTargetProperty() {
+        return seekTarget;
+    }
+
+    @Override
+    public Duration outputLatency() {
+        return Duration.ZERO; // MediaPlayer reports the audible position itself
+    }
+
     @Override
     public void setOnEndOfMedia(Runnable runnable) {
         mediaPlayer.setOnEndOfMedia(runnable);
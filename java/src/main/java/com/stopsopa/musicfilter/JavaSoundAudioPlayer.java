@@ -8,34 +8,99 @@ import javafx.util.Duration;
 import javax.sound.sampled.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class JavaSoundAudioPlayer implements AudioPlayer {
 
+    private static final int SKIP_BUFFER_BYTES = 65536;
+    // scratch buffers for decoding past audio while positioning, shared by all players
+    private static final BlockingQueue<byte[]> SKIP_BUFFERS = new ArrayBlockingQueue<>(4);
+    // position updates for the UI, at most this often
+    private static final double PUBLISH_SECONDS = 0.05;
+    // a forward seek of up to this much decodes on from where playback is instead of reopening
+    private static final double IN_PLACE_SEEK_SECONDS = 10;
+
+    /** Opens output lines ({@link AudioOutput} unless replaced) and hears how playback on them went. */
+    interface LineFactory {
+        SourceDataLine open(AudioFormat format) throws LineUnavailableException;
+
+        /**
+         * Called once playback on {@code line} ends: audio written, underruns, and the lowest share of the
+         * buffer that was still queued before a write once the line had filled up (0 if it never did).
+         */
+        default void played(SourceDataLine line, double seconds, int underruns, double lowestFill) {
+        }
+    }
+
     private final File file;
+    private final AudioFileType type;
+    private final LineFactory lines;
+    private final Executor ui;
     private SourceDataLine line;
     private AudioInputStream encodedStream;
     private AudioInputStream decodedStream;
     private Thread playbackThread;
     private volatile boolean stopRequested = false;
     private volatile boolean pauseRequested = false;
+    // wakes a paused playback thread; not the player's monitor, which positioning holds for a while
+    private final Object pauseLock = new Object();
+    private volatile float gainFactor = 1f;
+    private PcmPipeline pipeline;
+    private boolean prepared = false;
+    private long positionBytes = 0; // decoded bytes before the stream's current position
+    private long playRequestedAt;
+    // playback position handed to the UI without allocating per chunk: written by the playback
+    // thread, read by publishTime, which is posted again only after it ran
+    private volatile long playedBytes;
+    private volatile double bytesPerSecond;
+    private volatile double latencySeconds; // audio written to the line but not heard yet
+    private final AtomicBoolean timePending = new AtomicBoolean();
+    private final Runnable publishTime = this::publishTime;
+    private TrackEvents.FirstSample firstSampleEvent;
+    // decoded audio of this track from earlier plays and seeks; null when the cache is off
+    private PcmCache.Recorder recorder;
+    private PcmCache.Reader cached;
+    private final SpectrumTap spectrum = new SpectrumTap();
 
     private final SimpleObjectProperty<Duration> currentTime = new SimpleObjectProperty<>(Duration.ZERO);
     private final SimpleObjectProperty<Duration> totalDuration = new SimpleObjectProperty<>(Duration.UNKNOWN);
     private final SimpleObjectProperty<Status> status = new SimpleObjectProperty<>(Status.READY);
+    private final SimpleObjectProperty<Duration> seekTarget = new SimpleObjectProperty<>();
 
     private Runnable onEndOfMedia;
     private Runnable onError;
 
     public JavaSoundAudioPlayer(File file) {
+        this(file, AudioOutput.get(), Platform::runLater);
+    }
+
+    /** Plays into lines from {@code lines} and runs property updates on {@code ui} instead of the FX thread. */
+    JavaSoundAudioPlayer(File file, LineFactory lines, Executor ui) {
         this.file = file;
+        this.lines = lines;
+        this.ui = ui;
+        this.type = FormatRegistry.get().typeOf(file);
+        PcmCache.get().topUp();
+        TrackEvents.DurationProbe event = new TrackEvents.DurationProbe();
+        event.begin();
         calculateDuration();
+        if (event.shouldCommit()) {
+            event.track(file);
+            Duration total = totalDuration.get();
+            event.durationMillis = total == null || total.isUnknown() ? -1 : (long) total.toMillis();
+            event.commit();
+        }
     }
 
     private void calculateDuration() {
         try {
             AudioFileFormat fileFormat;
-            if (file.getName().toLowerCase().endsWith(".ogg")) {
+            if (type == AudioFileType.OGG) {
                 fileFormat = new javazoom.spi.vorbis.sampled.file.VorbisAudioFileReader().getAudioFileFormat(file);
             } else {
                 fileFormat = AudioSystem.getAudioFileFormat(file);
@@ -81,7 +146,7 @@ public class JavaSoundAudioPlayer implements AudioPlayer {
                                     + frameLength + ", FrameRate: " + frameRate);
 
                             // Fallback 3: Manual FLAC header parsing
-                            if (file.getName().toLowerCase().endsWith(".flac")) {
+                            if (type == AudioFileType.FLAC) {
                                 Duration flacDuration = calculateFlacDuration(file);
                                 if (flacDuration != null) {
                                     totalDuration.set(flacDuration);
@@ -149,8 +214,8 @@ public class JavaSoundAudioPlayer implements AudioPlayer {
         if (status.get() == Status.PAUSED) {
             pauseRequested = false;
             status.set(Status.PLAYING);
-            synchronized (this) {
-                notifyAll();
+            synchronized (pauseLock) {
+                pauseLock.notifyAll();
             }
             return;
         }
@@ -158,100 +223,155 @@ public class JavaSoundAudioPlayer implements AudioPlayer {
         stopRequested = false;
         pauseRequested = false;
         status.set(Status.PLAYING);
+        playRequestedAt = System.nanoTime();
+        firstSampleEvent = new TrackEvents.FirstSample();
+        firstSampleEvent.begin();
 
         playbackThread = new Thread(this::playbackLoop);
         playbackThread.setDaemon(true);
         playbackThread.start();
     }
 
+    /**
+     * Opens the decoder and the output line and positions the stream, so that
+     * {@link #play()} only has to start the line. FLAC jumps straight to the
+     * nearest frame; other formats decode up to the start position here.
+     */
+    @Override
+    public synchronized void prepare(double startFraction) {
+        if (prepared || playbackThread != null)
+            return;
+        try {
+            Duration total = totalDuration.get();
+            Duration start = total == null || total.isUnknown() ? Duration.ZERO : total.multiply(startFraction);
+            long t0 = System.nanoTime();
+            openPositioned(start);
+            openLine(decodedStream.getFormat());
+            prepared = true;
+            System.out.printf("Prepared %s at %s in %d ms%n", file.getName(), start,
+                    (System.nanoTime() - t0) / 1_000_000);
+            ui.execute(() -> currentTime.set(start));
+        } catch (Exception e) {
+            System.err.println("Failed to prepare " + file.getName() + ": " + e.getMessage());
+            closeStreams();
+        }
+    }
+
     private volatile boolean seekRequested = false;
     private volatile Duration seekDuration = Duration.ZERO;
 
     private void playbackLoop() {
+        boolean ended = false;
+        boolean failed = false;
         try {
-            openStreams();
-            AudioFormat decodedFormat = decodedStream.getFormat();
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, decodedFormat);
-            line = (SourceDataLine) AudioSystem.getLine(info);
-            line.open(decodedFormat);
+            AudioFormat decodedFormat;
+            synchronized (this) {
+                // A track played recently starts from the cache; the decoder is opened while that plays
+                decodedFormat = prepared ? null : PcmCache.get().startFormat(file);
+                if (decodedFormat == null) {
+                    if (!prepared)
+                        openPositioned(Duration.ZERO);
+                    decodedFormat = decodedStream.getFormat();
+                }
+                if (!prepared)
+                    openLine(decodedFormat);
+            }
+            recorder = PcmCache.get().recorder(file, decodedFormat);
+            cached = PcmCache.get().reader(file, decodedFormat);
+            int frameSize = decodedFormat.getFrameSize();
+            byte[] buffer = new byte[4096 - 4096 % frameSize];
+            bytesPerSecond = frameSize * (double) decodedFormat.getFrameRate();
+            long publishStep = (long) (bytesPerSecond * PUBLISH_SECONDS);
+            long inPlaceSeekBytes = (long) (bytesPerSecond * IN_PLACE_SEEK_SECONDS);
+            AudioFormat lineFormat = line.getFormat();
+            double lineBytesPerSecond = lineFormat.getFrameSize() * (double) lineFormat.getFrameRate();
+            int underruns = 0;
+            long writtenBytes = 0; // to the line, in its format
+            int lineBufferBytes = line.getBufferSize();
+            int lowestQueued = Integer.MAX_VALUE; // bytes in the line before a write, once it has been full
             line.start();
 
-            byte[] buffer = new byte[4096];
+            // Nothing below allocates per chunk (the decoder aside); seeks and events may
             int nBytesRead;
-            long totalBytesRead = 0;
+            long totalBytesRead = positionBytes;
+            long publishedBytes = totalBytesRead;
+            boolean first = true;
+            boolean lineFilled = false; // underruns only count once the line has had audio since the last flush
+            boolean lineFull = false; // a write has waited for room since the last flush
+            // while below cacheEnd, audio comes from the cache and the decoder is brought to cacheEnd in steps
+            long cacheEnd = cachedUntil(totalBytesRead);
+            boolean cacheEndsTrack = cached != null && cached.endsTrack(cacheEnd);
 
             while (!stopRequested) {
                 Duration targetSeekDuration = null;
-                synchronized (this) {
-                    if (seekRequested) {
-                        targetSeekDuration = seekDuration;
-                        seekRequested = false;
-                    }
+                if (seekRequested) {
+                    // Clear first: a seek() landing in between is then handled on the next pass
+                    seekRequested = false;
+                    targetSeekDuration = seekDuration;
                 }
 
                 if (targetSeekDuration != null) {
+                    TrackEvents.Seek seekEvent = new TrackEvents.Seek();
+                    seekEvent.begin();
+                    lineFilled = false;
+                    lineFull = false;
                     try {
-                        long bytesToSkip = (long) (targetSeekDuration.toSeconds() * decodedFormat.getFrameRate()
-                                * decodedFormat.getFrameSize());
-
-                        // Close and reopen to seek
-                        // No need to synchronize here as we are the only thread manipulating the
-                        // streams
-                        if (decodedStream != null)
-                            decodedStream.close();
-                        if (encodedStream != null)
-                            encodedStream.close();
-                        if (line != null)
-                            line.flush();
-
-                        openStreams();
-
-                        // Skip to position
-                        long remaining = bytesToSkip;
-                        byte[] skipBuffer = new byte[65536]; // Larger buffer for faster skipping
-                        while (remaining > 0) {
-                            if (stopRequested || seekRequested)
-                                break; // Abort if stopped or new seek
-
-                            long skipped = 0;
-                            try {
-                                skipped = decodedStream.skip(remaining);
-                            } catch (IOException e) {
-                                // skip not supported, fall back to read
-                                skipped = 0;
-                            }
-
-                            if (skipped <= 0) {
-                                // Fallback: read to skip
-                                int toRead = (int) Math.min(remaining, skipBuffer.length);
-                                int read = decodedStream.read(skipBuffer, 0, toRead);
-                                if (read == -1)
-                                    break; // EOF
-                                skipped = read;
+                        // We are the only thread touching the streams here
+                        line.flush();
+                        long targetBytes = bytesAt(targetSeekDuration, decodedFormat);
+                        cacheEnd = cachedUntil(targetBytes);
+                        cacheEndsTrack = cached != null && cached.endsTrack(cacheEnd);
+                        if (cacheEnd > targetBytes) {
+                            // From memory; the decoder stays where it is, or catches up with cacheEnd meanwhile
+                            totalBytesRead = targetBytes;
+                        } else {
+                            long ahead = targetBytes - positionBytes;
+                            if (decodedStream != null && ahead >= 0
+                                    && (ahead <= inPlaceSeekBytes || type != AudioFileType.FLAC)) {
+                                // Decoding on is cheaper than reopening (and, FLAC aside, reopening decodes from the start)
+                                skipTo(targetBytes);
+                            } else {
+                                openPositioned(targetSeekDuration);
                             }
-                            remaining -= skipped;
+                            totalBytesRead = positionBytes;
                         }
-
-                        // Reset line buffer
-                        if (line != null) {
-                            line.flush();
+                        pipeline.reset();
+                        line.flush();
+
+                        publishedBytes = totalBytesRead;
+                        playedBytes = totalBytesRead;
+                        if (seekRequested)
+                            continue; // superseded while positioning; go straight to the newer target
+                        if (seekEvent.shouldCommit()) {
+                            seekEvent.track(file);
+                            seekEvent.targetMillis = (long) targetSeekDuration.toMillis();
+                            seekEvent.commit();
                         }
 
-                        totalBytesRead = bytesToSkip;
-
                         // Update UI immediately
                         Duration finalSeekDuration = targetSeekDuration;
-                        Platform.runLater(() -> currentTime.set(finalSeekDuration));
+                        ui.execute(() -> {
+                            currentTime.set(finalSeekDuration);
+                            if (seekTarget.get() == finalSeekDuration)
+                                seekTarget.set(null);
+                        });
                     } catch (Exception e) {
                         System.err.println("Error during seek: " + e.getMessage());
                         e.printStackTrace();
+                        Duration failedSeek = targetSeekDuration;
+                        ui.execute(() -> {
+                            if (seekTarget.get() == failedSeek)
+                                seekTarget.set(null);
+                        });
                     }
                 }
 
+                if (pauseRequested)
+                    lineFilled = lineFull = false; // the line runs dry while paused; that's no underrun
                 while (pauseRequested && !seekRequested && !stopRequested) {
-                    synchronized (this) {
+                    synchronized (pauseLock) {
                         try {
-                            wait(100); // Wait with timeout to check flags
+                            pauseLock.wait(100); // Wait with timeout to check flags
                         } catch (InterruptedException e) {
                             return;
                         }
@@ -263,135 +383,375 @@ public class JavaSoundAudioPlayer implements AudioPlayer {
                 if (seekRequested)
                     continue; // Loop back to handle seek
 
-                nBytesRead = decodedStream.read(buffer, 0, buffer.length);
-                if (nBytesRead == -1) {
-                    System.out.println("End of stream reached (read returned -1)");
-                    break;
+                nBytesRead = 0;
+                if (totalBytesRead < cacheEnd) {
+                    int wanted = (int) Math.min(buffer.length, cacheEnd - totalBytesRead);
+                    nBytesRead = recorder.read(totalBytesRead, buffer, wanted);
+                    if (nBytesRead == 0)
+                        nBytesRead = cached.read(totalBytesRead, buffer, wanted);
+                    if (nBytesRead == 0) {
+                        cacheEnd = totalBytesRead; // evicted meanwhile
+                        cacheEndsTrack = false;
+                    } else if (!cacheEndsTrack) {
+                        // two chunks decoded per chunk played: the decoder keeps pace and gains one, without
+                        // holding up this write for a whole slice
+                        approach(cacheEnd, decodedFormat, inPlaceSeekBytes, 2L * nBytesRead);
+                    }
                 }
-                // System.out.println("Read " + nBytesRead + " bytes");
-
-                // Ensure we write an integral number of frames
-                int frameSize = decodedFormat.getFrameSize();
-                if (frameSize > 0) {
-                    int remainder = nBytesRead % frameSize;
-                    if (remainder != 0) {
-                        nBytesRead -= remainder;
+                if (totalBytesRead >= cacheEnd) {
+                    if (cacheEndsTrack) {
+                        System.out.println("End of stream reached (from the PCM cache)");
+                        break;
+                    }
+                    while (decodedStream == null || positionBytes != totalBytesRead) {
+                        // the cached run ended before the decoder got there
+                        if (stopRequested || seekRequested)
+                            break;
+                        if (!approach(totalBytesRead, decodedFormat, inPlaceSeekBytes, SKIP_BUFFER_BYTES))
+                            break;
+                    }
+                    if (stopRequested || seekRequested)
+                        continue;
+                    if (decodedStream == null)
+                        throw new IOException("No decoder for " + file.getName() + " after the cached audio");
+                    if (positionBytes != totalBytesRead) {
+                        System.out.println("End of stream reached (the decoder ended before the cached audio)");
+                        break;
                     }
+                    nBytesRead = decodedStream.read(buffer, 0, buffer.length);
+                    if (nBytesRead == -1) {
+                        if (recorder != null)
+                            recorder.end(positionBytes);
+                        System.out.println("End of stream reached (read returned -1)");
+                        break;
+                    }
+                    // System.out.println("Read " + nBytesRead + " bytes");
+
+                    // Ensure we write an integral number of frames
+                    if (frameSize > 0) {
+                        int remainder = nBytesRead % frameSize;
+                        if (remainder != 0) {
+                            nBytesRead -= remainder;
+                        }
+                    }
+                    if (recorder != null)
+                        recorder.write(positionBytes, buffer, nBytesRead);
+                    positionBytes += nBytesRead;
                 }
 
                 if (nBytesRead > 0) {
-                    line.write(buffer, 0, nBytesRead);
+                    int converted = pipeline.process(buffer, nBytesRead, gainFactor);
+                    int available = line.available();
+                    if (lineFilled && available >= line.getBufferSize()) {
+                        underruns++;
+                        if (TrackEvents.underrunEnabled()) {
+                            TrackEvents.Underrun underrun = new TrackEvents.Underrun();
+                            underrun.track(file);
+                            underrun.bufferBytes = line.getBufferSize();
+                            underrun.commit();
+                        }
+                    }
+                    if (lineFull)
+                        lowestQueued = Math.min(lowestQueued, line.getBufferSize() - available);
+                    else if (available < converted)
+                        lineFull = true; // this write waits for room
+                    line.write(pipeline.output(), 0, converted);
+                    spectrum.write(pipeline.output(), 0, converted);
+                    writtenBytes += converted;
+                    lineFilled = true;
                     totalBytesRead += nBytesRead;
+                    if (first) {
+                        first = false;
+                        if (firstSampleEvent != null && firstSampleEvent.shouldCommit()) {
+                            firstSampleEvent.track(file);
+                            firstSampleEvent.commit();
+                        }
+                        System.out.printf("First audio of %s queued %.1f ms after play()%n", file.getName(),
+                                (System.nanoTime() - playRequestedAt) / 1e6);
+                    }
                 }
 
-                // Update current time
-                long finalTotalBytesRead = totalBytesRead;
-                Platform.runLater(() -> {
-                    double seconds = (double) finalTotalBytesRead / decodedFormat.getFrameSize()
-                            / decodedFormat.getFrameRate();
-                    currentTime.set(Duration.seconds(seconds));
-                });
+                // Update current time, at most every PUBLISH_SECONDS and with one update in flight
+                playedBytes = totalBytesRead;
+                if (totalBytesRead - publishedBytes >= publishStep && !timePending.getAndSet(true)) {
+                    publishedBytes = totalBytesRead;
+                    latencySeconds = (line.getBufferSize() - line.available()) / lineBytesPerSecond;
+                    ui.execute(publishTime);
+                }
             }
 
             line.drain();
             line.stop();
-            line.close();
-            encodedStream.close();
-            decodedStream.close();
+            double writtenSeconds = writtenBytes / lineBytesPerSecond;
+            lines.played(line, writtenSeconds, underruns,
+                    lowestQueued == Integer.MAX_VALUE ? 0 : lowestQueued / (double) lineBufferBytes);
+            ended = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            failed = true;
+        } finally {
+            // on every way out: the line, the decoder, the recorder's spare buffer and the reader's Inflater
+            if (line != null)
+                line.close();
+            closeStreams();
+            if (recorder != null)
+                recorder.close();
+            if (cached != null)
+                cached.close();
+        }
 
+        if (failed) {
+            if (onError != null)
+                ui.execute(onError);
+        } else if (ended) {
             if (!stopRequested && onEndOfMedia != null) {
-                Platform.runLater(onEndOfMedia);
+                ui.execute(onEndOfMedia);
+            }
+
+            ui.execute(() -> status.set(Status.STOPPED));
+        }
+    }
+
+    private void publishTime() {
+        timePending.set(false);
+        currentTime.set(Duration.seconds(Math.max(0, playedBytes / bytesPerSecond - latencySeconds)));
+    }
+
+    @Override
+    public Duration outputLatency() {
+        return Duration.seconds(latencySeconds);
+    }
+
+    @Override
+    public SpectrumTap spectrumTap() {
+        return spectrum;
+    }
+
+    /** End of the cached run of audio through {@code offset} (recorded by this player or earlier ones), or {@code offset}. */
+    private long cachedUntil(long offset) {
+        if (recorder == null)
+            return offset;
+        long end = offset;
+        while (true) {
+            long next = Math.max(recorder.liveUntil(end), cached.cachedUntil(end));
+            if (next == end)
+                return end;
+            end = next;
+        }
+    }
+
+    /**
+     * One step of bringing the decoder to {@code targetBytes} while audio
+     * comes from the cache: a FLAC frame jump, or decoding up to
+     * {@code maxBytes} on (after reopening at the start if the decoder is past
+     * the target). Returns false if the stream ended before the target.
+     */
+    private boolean approach(long targetBytes, AudioFormat format, long inPlaceSeekBytes, long maxBytes)
+            throws UnsupportedAudioFileException, IOException {
+        if (decodedStream != null && positionBytes == targetBytes)
+            return true;
+        if (decodedStream == null || positionBytes > targetBytes
+                || (type == AudioFileType.FLAC && targetBytes - positionBytes > inPlaceSeekBytes)) {
+            if (type == AudioFileType.FLAC) {
+                // a frame before, so the position lands short of the target and not past it
+                long frames = targetBytes / format.getFrameSize() - 1;
+                openPositioned(Duration.seconds(Math.max(0, frames) / (double) format.getFrameRate()));
+            } else {
+                closeStreams();
+                openStreams();
+                positionBytes = 0;
             }
+        }
+        long before = positionBytes;
+        skipTo(Math.min(targetBytes, positionBytes + maxBytes));
+        return positionBytes > before || positionBytes == targetBytes || stopRequested || seekRequested;
+    }
+
+    private static long bytesAt(Duration time, AudioFormat format) {
+        return (long) (time.toSeconds() * format.getFrameRate()) * format.getFrameSize();
+    }
+
+    private void openLine(AudioFormat decodedFormat) throws LineUnavailableException {
+        pipeline = new PcmPipeline(decodedFormat, (4096 - 4096 % decodedFormat.getFrameSize())
+                / decodedFormat.getFrameSize());
+        AudioFormat lineFormat = pipeline.outputFormat();
+        TrackEvents.LineOpen event = new TrackEvents.LineOpen();
+        event.begin();
+        line = lines.open(lineFormat);
+        spectrum.format(lineFormat);
+        if (event.shouldCommit()) {
+            event.track(file);
+            event.format = lineFormat.toString();
+            event.bufferBytes = line.getBufferSize();
+            event.commit();
+        }
+    }
+
+    /**
+     * (Re)opens the decoder so that the next read returns audio at
+     * {@code target} and sets {@link #positionBytes} accordingly. FLAC starts
+     * at the frame just before the target; the remainder (or, for other
+     * formats, everything) is decoded and dropped. Gives up early when a stop
+     * or another seek comes in.
+     */
+    private void openPositioned(Duration target) throws UnsupportedAudioFileException, IOException {
+        TrackEvents.StreamOpen event = new TrackEvents.StreamOpen();
+        event.begin();
+        closeStreams();
+        positionBytes = 0;
+        long startSample = 0;
+        if (type == AudioFileType.FLAC && target.greaterThan(Duration.ZERO))
+            startSample = openFlacAt(target);
+        if (decodedStream == null)
+            openStreams();
+
+        AudioFormat format = decodedStream.getFormat();
+        positionBytes = startSample * format.getFrameSize();
+        skipTo(bytesAt(target, format));
+        if (event.shouldCommit()) {
+            event.track(file);
+            event.startMillis = (long) target.toMillis();
+            event.skippedBytes = positionBytes - startSample * format.getFrameSize();
+            event.commit();
+        }
+    }
 
-            Platform.runLater(() -> status.set(Status.STOPPED));
+    /**
+     * Reads on from {@link #positionBytes} until {@code targetBytes}. Gives up
+     * early when a stop or another seek comes in.
+     */
+    private void skipTo(long targetBytes) throws IOException {
+        byte[] skipBuffer = SKIP_BUFFERS.poll();
+        if (skipBuffer == null)
+            skipBuffer = new byte[SKIP_BUFFER_BYTES];
+        try {
+            long remaining = targetBytes - positionBytes;
+            while (remaining > 0) {
+                if (stopRequested || seekRequested)
+                    break; // Abort if stopped or new seek
+
+                long skipped = 0;
+                try {
+                    // In slices, so that a newer seek doesn't wait for a long skip to finish
+                    skipped = decodedStream.skip(Math.min(remaining, skipBuffer.length));
+                } catch (IOException e) {
+                    // skip not supported, fall back to read
+                    skipped = 0;
+                }
+
+                if (skipped <= 0) {
+                    // Fallback: read to skip
+                    int toRead = (int) Math.min(remaining, skipBuffer.length);
+                    int read = decodedStream.read(skipBuffer, 0, toRead);
+                    if (read == -1)
+                        break; // EOF
+                    skipped = read;
+                }
+                remaining -= skipped;
+                positionBytes += skipped;
+            }
+        } finally {
+            SKIP_BUFFERS.offer(skipBuffer);
+        }
+    }
 
+    /** Opens the streams at the FLAC frame preceding {@code target}; returns its first sample, 0 if not found. */
+    private long openFlacAt(Duration target) {
+        CachedFile raf = null;
+        try {
+            raf = BlockCache.get().open(file);
+            FlacFrames.StreamInfo info = FlacFrames.readStreamInfo(raf);
+            FlacFrames.FrameHeader frame = info == null ? null
+                    : FlacFrames.locate(raf, info, (long) (target.toSeconds() * info.sampleRate()));
+            if (frame == null || frame.firstSample() == 0) {
+                raf.close();
+                return 0;
+            }
+            if (FlacParallelDecoder.PLAYBACK) {
+                raf.close();
+                decodedStream = FlacParallelDecoder.open(file, frame, FlacParallelDecoder.PLAYBACK_CHUNK_BYTES);
+            } else {
+                encodedStream = AudioSystem.getAudioInputStream(FlacFrames.streamFrom(raf, info, frame));
+                decodedStream = PcmStreams.toPcm(encodedStream);
+            }
+            System.out.println("Positioned " + file.getName() + " at FLAC frame " + frame);
+            return frame.firstSample();
         } catch (Exception e) {
-            e.printStackTrace();
-            if (onError != null)
-                Platform.runLater(onError);
+            System.out.println("FLAC frame seek failed (" + e.getMessage() + "), decoding from the start");
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException ignored) {
+            }
+            encodedStream = null;
+            decodedStream = null;
+            return 0;
         }
     }
 
-    private void openStreams() throws UnsupportedAudioFileException, IOException {
-        System.out.println("Opening streams for: " + file.getName());
+    private void closeStreams() {
+        try {
+            if (decodedStream != null)
+                decodedStream.close();
+            if (encodedStream != null)
+                encodedStream.close();
+        } catch (IOException e) {
+            System.err.println("Error closing streams: " + e.getMessage());
+        }
+        decodedStream = null;
+        encodedStream = null;
+    }
 
-        if (file.getName().toLowerCase().endsWith(".ogg")) {
-            System.out.println("Using direct VorbisAudioFileReader for OGG");
-            encodedStream = new javazoom.spi.vorbis.sampled.file.VorbisAudioFileReader().getAudioInputStream(file);
-        } else {
+    /** Encoded stream from {@code in}, or straight from the file when {@code in} is null. */
+    private AudioInputStream openEncodedStream(InputStream in) throws UnsupportedAudioFileException, IOException {
+        try {
+            if (type == AudioFileType.OGG) {
+                System.out.println("Using direct VorbisAudioFileReader for OGG");
+                javazoom.spi.vorbis.sampled.file.VorbisAudioFileReader reader = new javazoom.spi.vorbis.sampled.file.VorbisAudioFileReader();
+                return in == null ? reader.getAudioInputStream(file) : reader.getAudioInputStream(in);
+            }
             // For FLAC (jflac-codec) and AAC (JAAD), use standard AudioSystem
-            encodedStream = AudioSystem.getAudioInputStream(file);
+            return in == null ? AudioSystem.getAudioInputStream(file) : AudioSystem.getAudioInputStream(in);
+        } catch (UnsupportedAudioFileException | IOException e) {
+            if (in != null)
+                in.close();
+            throw e;
         }
+    }
 
-        AudioFormat baseFormat = encodedStream.getFormat();
-        System.out.println("Source format: " + baseFormat);
-
-        if (file.getName().toLowerCase().endsWith(".ogg")) {
-            // Explicitly define target format to avoid "unknown" fields for OGG
-            AudioFormat decodedFormat = new AudioFormat(
-                    AudioFormat.Encoding.PCM_SIGNED,
-                    baseFormat.getSampleRate(),
-                    16,
-                    baseFormat.getChannels(),
-                    baseFormat.getChannels() * 2,
-                    baseFormat.getSampleRate(),
-                    false);
-            decodedStream = AudioSystem.getAudioInputStream(decodedFormat, encodedStream);
-        } else {
-            // For FLAC, try to decode to native bit depth first
-            int bitDepth = baseFormat.getSampleSizeInBits();
-            if (bitDepth == AudioSystem.NOT_SPECIFIED)
-                bitDepth = 16;
-
-            AudioFormat nativePcmFormat = new AudioFormat(
-                    AudioFormat.Encoding.PCM_SIGNED,
-                    baseFormat.getSampleRate(),
-                    bitDepth,
-                    baseFormat.getChannels(),
-                    baseFormat.getChannels() * (bitDepth / 8),
-                    baseFormat.getSampleRate(),
-                    false);
-
-            System.out.println("Attempting to decode to native PCM: " + nativePcmFormat);
-            try {
-                AudioInputStream pcmStream = AudioSystem.getAudioInputStream(nativePcmFormat, encodedStream);
+    private void openStreams() throws UnsupportedAudioFileException, IOException {
+        System.out.println("Opening streams for: " + file.getName());
 
-                // Check if this format is supported by the line
-                DataLine.Info info = new DataLine.Info(SourceDataLine.class, nativePcmFormat);
-                if (AudioSystem.isLineSupported(info)) {
-                    System.out.println("Native PCM format is supported by line.");
-                    decodedStream = pcmStream;
-                } else {
-                    System.out.println("Native PCM format not supported. Downsampling to 16-bit.");
-                    // Downsample to 16-bit
-                    AudioFormat format16 = new AudioFormat(
-                            AudioFormat.Encoding.PCM_SIGNED,
-                            baseFormat.getSampleRate(),
-                            16,
-                            baseFormat.getChannels(),
-                            baseFormat.getChannels() * 2,
-                            baseFormat.getSampleRate(),
-                            false);
-                    decodedStream = AudioSystem.getAudioInputStream(format16, pcmStream);
-                }
-            } catch (Exception e) {
-                System.out.println(
-                        "Failed to decode to native PCM (" + e.getMessage() + "). Trying direct 16-bit conversion.");
-                AudioFormat format16 = new AudioFormat(
-                        AudioFormat.Encoding.PCM_SIGNED,
-                        baseFormat.getSampleRate(),
-                        16,
-                        baseFormat.getChannels(),
-                        baseFormat.getChannels() * 2,
-                        baseFormat.getSampleRate(),
-                        false);
-                decodedStream = AudioSystem.getAudioInputStream(format16, encodedStream);
+        BlockCache.get().setPlaying(file);
+        if (type == AudioFileType.FLAC && FlacParallelDecoder.PLAYBACK) {
+            try {
+                decodedStream = FlacParallelDecoder.open(file, null, FlacParallelDecoder.PLAYBACK_CHUNK_BYTES);
+                System.out.println("Decoding ahead on " + FlacParallelDecoder.threads() + " threads: "
+                        + decodedStream.getFormat());
+                return;
+            } catch (UnsupportedAudioFileException | IOException e) {
+                System.out.println("Parallel FLAC decoding failed (" + e.getMessage() + "), decoding on this thread");
             }
         }
+        try {
+            // Through the block cache, so the reopen on every seek doesn't hit the disk/share again
+            encodedStream = openEncodedStream(BlockCache.get().open(file).asInputStream());
+        } catch (UnsupportedAudioFileException | IOException e) {
+            System.out.println("Cached stream not accepted (" + e.getMessage() + "), reading file directly");
+            encodedStream = openEncodedStream(null);
+        }
 
+        System.out.println("Source format: " + encodedStream.getFormat());
+        // Native depth and rate; PcmPipeline adapts it to the line
+        decodedStream = PcmStreams.toPcm(encodedStream);
         System.out.println("Final decoded format: " + decodedStream.getFormat());
     }
 
+    @Override
+    public void setTrackGain(double gainDb, double truePeak) {
+        gainFactor = (float) LoudnessAnalyzer.linearGain(gainDb, truePeak);
+    }
+
     @Override
     public void pause() {
         if (status.get() == Status.PLAYING) {
@@ -404,28 +764,41 @@ public class JavaSoundAudioPlayer implements AudioPlayer {
     public void stop() {
         stopRequested = true;
         status.set(Status.STOPPED);
-        synchronized (this) {
-            notifyAll();
+        synchronized (pauseLock) {
+            pauseLock.notifyAll();
         }
     }
 
     @Override
     public void dispose() {
         stop();
-        if (line != null) {
-            line.close();
+        synchronized (this) {
+            if (playbackThread == null) {
+                // prepared but never played: nobody else will release these
+                closeStreams();
+            }
+            if (line != null) {
+                line.close();
+            }
         }
     }
 
     @Override
     public void seek(Duration seekTime) {
-        synchronized (this) {
-            seekDuration = seekTime;
-            seekRequested = true;
-            notifyAll();
+        // Flags first: prepare() holds the lock while positioning and gives up once it sees them
+        seekDuration = seekTime;
+        seekRequested = true;
+        seekTarget.set(seekTime);
+        synchronized (pauseLock) {
+            pauseLock.notifyAll();
         }
     }
 
+    @Override
+    public ReadOnlyObjectProperty<Duration> seekTargetProperty() {
+        return seekTarget;
+    }
+
     @Override
     public ReadOnlyObjectProperty<Duration> currentTimeProperty() {
         return currentTime;
@@ -0,0 +1,13 @@
+package com.stopsopa.musicfilter;
+
+/**
+ * Entry point for starting from a plain class path (as {@code run.sh} does
+ * with the class-data archive): the java launcher refuses a main class that
+ * extends {@code Application} unless JavaFX is on the module path.
+ */
+public class Launcher {
+
+    public static void main(String[] args) {
+        App.main(args);
+    }
+}
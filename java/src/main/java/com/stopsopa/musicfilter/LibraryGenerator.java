@@ -0,0 +1,989 @@
+package com.stopsopa.musicfilter;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a synthetic music library that is the same for the same seed and
+ * options: artist/album folders of every format {@link MetadataParser}
+ * handles, with generated tags, cover art and optionally broken files. Each
+ * track is derived from the seed and its index alone, so files are written in
+ * parallel and a library of millions of files needs no state beyond the
+ * current album's cover.
+ *
+ * <p>FLAC, WAV, AIFF and MP3 files decode (to silence, or a tone with
+ * {@code --tone}). Ogg, MP4 and ADTS files are structurally valid containers
+ * with real tags but placeholder audio: enough for scanning, parsing and the
+ * quick integrity check, not for playback.
+ *
+ * <p>{@value #MANIFEST} in the target lists every file with its format, defect
+ * and the title/artist/album the parser should find ({@code ?} where a defect
+ * makes that undefined); {@link MetadataTester} checks a library against it.
+ */
+public class LibraryGenerator {
+
+    public static final String MANIFEST = "library.tsv";
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int RATE = 44100;
+    private static final int ALBUM_TRACKS = 12;
+    private static final int ARTIST_ALBUMS = 4;
+    private static final int FLAC_BLOCK = 4096;
+    private static final int MP3_FRAME_BYTES = 417; // MPEG-1 layer III, 128 kbps, 44.1 kHz, no padding
+    private static final int AAC_FRAME_BYTES = 372; // about 128 kbps at 1024 samples per frame
+    private static final int PREAMBLE_BYTES = 1024 * 1024;
+
+    private static final String[] SYLLABLES = {
+            "ka", "lo", "mi", "ra", "ven", "tor", "sil", "an", "del", "mor", "ny", "bel", "ash", "quin", "zu",
+            "fe", "gar", "ion", "lux", "pe", "sta", "wen", "or", "ha", "dru", "bj\u00F6", "\u00F1an", "s\u00F8", "r\u00E9", "\u0142u"
+    };
+    private static final String[] CJK = { "\u5742\u672C", "\u9F8D", "\u5149", "\u591C", "\u6D77", "\u98A8", "\u97F3", "\u8857" };
+    private static final String[] GENRES = { "(17)", "Electronic", "Jazz", "(32)", "Ambient", "Hip-Hop", "Folk" };
+
+    public enum Layout {
+        /** Title, artist, album, genre, track number and cover art. */
+        FULL,
+        /** Title only. */
+        MINIMAL,
+        NONE,
+        /** One of the above per album. */
+        MIXED
+    }
+
+    public enum Defect {
+        NONE,
+        /** Cut off somewhere between 10% and 90% of its length. */
+        TRUNCATED,
+        EMPTY,
+        /** Saved with another format's extension, so only sniffing identifies it. */
+        WRONG_EXTENSION,
+        /** A tag field whose size runs past its container. */
+        CORRUPT_TAG,
+        /** 1 MB of padding (or a leading {@code free} atom) before the audio. */
+        LARGE_PREAMBLE,
+        /** File name close to 255 bytes. */
+        LONG_NAME
+    }
+
+    public record Options(File target, long seed, int files, Map<AudioFileType, Integer> mix, Layout tags,
+            int artKilobytes, int depth, double defects, int seconds, boolean tone) {
+    }
+
+    /** One generated file; {@code title}/{@code artist}/{@code album} are null when not written. */
+    record Track(int index, String path, AudioFileType type, Layout tags, String title, String artist, String album,
+            String genre, int number, long frames, Defect defect) {
+    }
+
+    private final Options options;
+    private final AudioFileType[] formats;
+    private final int[] weights;
+    private final int weightTotal;
+    private final Map<Integer, byte[]> covers = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > 4 * THREADS;
+        }
+    };
+
+    public LibraryGenerator(Options options) {
+        this.options = options;
+        formats = options.mix().keySet().toArray(new AudioFileType[0]);
+        weights = new int[formats.length];
+        int total = 0;
+        for (int i = 0; i < formats.length; i++) {
+            total += options.mix().get(formats[i]);
+            weights[i] = total;
+        }
+        weightTotal = total;
+        if (weightTotal <= 0)
+            throw new IllegalArgumentException("Format mix is empty");
+    }
+
+    /** Writes every file and the manifest; returns the number of bytes written. */
+    public long generate() throws IOException, InterruptedException {
+        File target = options.target();
+        Files.createDirectories(target.toPath());
+        long start = System.nanoTime();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "library-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int w = 0; w < THREADS; w++) {
+            pool.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < options.files()) {
+                    Track track = track(index);
+                    try {
+                        bytes.addAndGet(write(track));
+                    } catch (IOException | RuntimeException e) {
+                        // e.g. a name the file system can't encode; the rest of the library is still useful
+                        failed.incrementAndGet();
+                        System.err.println("Failed to write " + track.path() + ": " + e.getMessage());
+                    }
+                    if (index > 0 && index % 10_000 == 0)
+                        System.out.println("  " + index + " files");
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        // recomputed rather than collected, so memory doesn't grow with the library
+        try (BufferedWriter out = Files.newBufferedWriter(new File(target, MANIFEST).toPath(), StandardCharsets.UTF_8)) {
+            out.write("# seed=" + options.seed() + " files=" + options.files() + "\n");
+            for (int i = 0; i < options.files(); i++) {
+                Track track = track(i);
+                boolean unknown = track.defect() == Defect.TRUNCATED || track.defect() == Defect.EMPTY
+                        || track.defect() == Defect.CORRUPT_TAG;
+                out.write(track.path() + "\t" + track.type() + "\t" + track.defect() + "\t"
+                        + expected(track.title(), unknown) + "\t" + expected(track.artist(), unknown) + "\t"
+                        + expected(track.album(), unknown) + "\n");
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Generated %d files (%d failed), %d MB in %.1f s into %s%n", options.files(), failed.get(),
+                bytes.get() / (1024 * 1024), seconds, target);
+        return bytes.get();
+    }
+
+    private static String expected(String value, boolean unknown) {
+        return unknown ? "?" : value == null ? "" : value;
+    }
+
+    // ---- what to write ----
+
+    /** Everything about track {@code index}, from the seed alone. */
+    Track track(int index) {
+        int album = index / ALBUM_TRACKS;
+        int artist = album / ARTIST_ALBUMS;
+        int number = index % ALBUM_TRACKS + 1;
+
+        Random artistRandom = random(-1L - artist);
+        String artistName = name(artistRandom, 1 + artistRandom.nextInt(3));
+        Random albumRandom = random(-1L - Integer.MAX_VALUE - album);
+        String albumName = name(albumRandom, 1 + albumRandom.nextInt(4));
+        int year = 1960 + albumRandom.nextInt(65);
+        AudioFileType type = format(albumRandom.nextInt(weightTotal));
+        Layout layout = options.tags() == Layout.MIXED ? Layout.values()[albumRandom.nextInt(3)] : options.tags();
+        String genre = GENRES[albumRandom.nextInt(GENRES.length)];
+
+        Random random = random(index);
+        String title = name(random, 1 + random.nextInt(5));
+        long frames = (long) (options.seconds() * RATE * (0.5 + random.nextDouble()));
+        Defect defect = Defect.NONE;
+        if (random.nextDouble() < options.defects())
+            defect = Defect.values()[1 + random.nextInt(Defect.values().length - 1)];
+
+        String extension = extension(type);
+        if (defect == Defect.WRONG_EXTENSION)
+            extension = extension(type == AudioFileType.MP3 ? AudioFileType.FLAC : AudioFileType.MP3);
+        String fileName = String.format("%02d %s", number, title);
+
+        // the catalog number keeps albums apart when generated names collide
+        String albumDir = String.format("%s (%d) [MF%06d]", albumName, year, album);
+        String dirs = switch (Math.min(options.depth(), 2)) {
+            case 0 -> "";
+            case 1 -> artistName + "/";
+            default -> artistName + "/" + albumDir + "/";
+        };
+        String leaf = switch (Math.min(options.depth(), 2)) {
+            case 0 -> artistName + " - " + albumDir + " - " + fileName;
+            case 1 -> albumDir + " - " + fileName;
+            default -> fileName;
+        };
+        if (defect == Defect.LONG_NAME) {
+            StringBuilder longName = new StringBuilder(leaf);
+            while (longName.toString().getBytes(StandardCharsets.UTF_8).length < 240)
+                longName.append(' ').append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            leaf = longName.toString();
+        }
+        // coarser groups further out, four times as many artists per level
+        for (int level = options.depth() - 2; level > 0; level--)
+            dirs = String.format("Shelf %d-%d/", level, artist >> (2 * (options.depth() - 1 - level))) + dirs;
+
+        return new Track(index, dirs + leaf + "." + extension, type, layout, layout == Layout.NONE ? null : title,
+                layout == Layout.FULL ? artistName : null, layout == Layout.FULL ? albumName : null,
+                genre, number, frames, defect);
+    }
+
+    private AudioFileType format(int roll) {
+        for (int i = 0; i < formats.length; i++) {
+            if (roll < weights[i])
+                return formats[i];
+        }
+        return formats[formats.length - 1];
+    }
+
+    private Random random(long stream) {
+        long z = options.seed() * 0x9E3779B97F4A7C15L + stream;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(z ^ (z >>> 31));
+    }
+
+    private static String name(Random random, int words) {
+        StringBuilder name = new StringBuilder();
+        for (int w = 0; w < words; w++) {
+            if (w > 0)
+                name.append(' ');
+            if (random.nextInt(40) == 0) {
+                name.append(CJK[random.nextInt(CJK.length)]).append(CJK[random.nextInt(CJK.length)]);
+                continue;
+            }
+            int start = name.length();
+            int syllables = 1 + random.nextInt(3);
+            for (int s = 0; s < syllables; s++)
+                name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            name.setCharAt(start, Character.toUpperCase(name.charAt(start)));
+        }
+        return name.toString();
+    }
+
+    private static String extension(AudioFileType type) {
+        return switch (type) {
+            case MP3 -> "mp3";
+            case ADTS -> "aac";
+            case MP4 -> "m4a";
+            case FLAC -> "flac";
+            case OGG -> "ogg";
+            case WAV -> "wav";
+            case AIFF -> "aiff";
+        };
+    }
+
+    /** Cover of the track's album: a noise PNG of about {@code --art} KB, or null. */
+    private byte[] cover(Track track) throws IOException {
+        if (track.tags() != Layout.FULL || options.artKilobytes() <= 0)
+            return null;
+        int album = track.index() / ALBUM_TRACKS;
+        synchronized (covers) {
+            byte[] cover = covers.get(album);
+            if (cover != null)
+                return cover;
+        }
+        // noise doesn't compress, so the PNG is about 3 bytes per pixel
+        int side = Math.max(8, (int) Math.sqrt(options.artKilobytes() * 1024.0 / 3));
+        Random random = random(Long.MIN_VALUE + album);
+        BufferedImage image = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++)
+                image.setRGB(x, y, random.nextInt(0x1000000));
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        byte[] cover = png.toByteArray();
+        synchronized (covers) {
+            covers.put(album, cover);
+        }
+        return cover;
+    }
+
+    // ---- writing ----
+
+    private long write(Track track) throws IOException {
+        File file = new File(options.target(), track.path());
+        Files.createDirectories(file.getParentFile().toPath());
+        if (track.defect() == Defect.EMPTY) {
+            Files.write(file.toPath(), new byte[0]);
+            return 0;
+        }
+        byte[] data = switch (track.type()) {
+            case FLAC -> flac(track);
+            case MP3 -> mp3(track);
+            case ADTS -> adts(track);
+            case OGG -> ogg(track);
+            case MP4 -> mp4(track);
+            case WAV -> wav(track);
+            case AIFF -> aiff(track);
+        };
+        Files.write(file.toPath(), data);
+        if (track.defect() == Defect.TRUNCATED) {
+            long length = (long) (data.length * (0.1 + 0.8 * random(track.index()).nextDouble()));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(length);
+            }
+            return length;
+        }
+        return data.length;
+    }
+
+    /** Sample {@code n} of channel {@code channel}: silence, or a quiet tone per channel. */
+    private short sample(long n, int channel) {
+        if (!options.tone())
+            return 0;
+        return (short) (0.25 * 32767 * Math.sin(2 * Math.PI * (440 + 110 * channel) * n / RATE));
+    }
+
+    private byte[] flac(Track track) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("fLaC".getBytes(StandardCharsets.ISO_8859_1));
+
+        byte[] info = new byte[34];
+        putShort(info, 0, FLAC_BLOCK);
+        putShort(info, 2, FLAC_BLOCK);
+        long packed = ((long) RATE << 44) | (1L << 41) | (15L << 36) | track.frames(); // stereo, 16 bit
+        for (int i = 0; i < 8; i++)
+            info[10 + i] = (byte) (packed >>> (56 - 8 * i));
+        List<byte[]> blocks = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        blocks.add(info);
+        types.add(0);
+
+        if (track.tags() != Layout.NONE) {
+            ByteArrayOutputStream comment = new ByteArrayOutputStream();
+            vorbisComment(comment, track);
+            blocks.add(comment.toByteArray());
+            types.add(4);
+        }
+        byte[] cover = cover(track);
+        if (cover != null) {
+            ByteArrayOutputStream picture = new ByteArrayOutputStream();
+            writeIntBE(picture, 3); // front cover
+            byte[] mime = "image/png".getBytes(StandardCharsets.ISO_8859_1);
+            writeIntBE(picture, mime.length);
+            picture.write(mime);
+            writeIntBE(picture, 0); // description
+            for (int i = 0; i < 4; i++)
+                writeIntBE(picture, 0); // width, height, depth, colours: optional
+            writeIntBE(picture, cover.length);
+            picture.write(cover);
+            blocks.add(picture.toByteArray());
+            types.add(6);
+        }
+        if (track.defect() == Defect.LARGE_PREAMBLE) {
+            blocks.add(new byte[PREAMBLE_BYTES]);
+            types.add(1); // PADDING
+        }
+        if (blocks.size() == 1) {
+            // jflac reads past a STREAMINFO flagged as last; encoders always write more blocks anyway
+            blocks.add(new byte[1024]);
+            types.add(1); // PADDING
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            byte[] block = blocks.get(i);
+            out.write((i == blocks.size() - 1 ? 0x80 : 0) | types.get(i));
+            out.write(block.length >> 16);
+            out.write(block.length >> 8);
+            out.write(block.length);
+            out.write(block);
+        }
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        long n = 0;
+        for (int number = 0; n < track.frames(); number++) {
+            int blockSize = (int) Math.min(FLAC_BLOCK, track.frames() - n);
+            frame.reset();
+            frame.write(0xFF);
+            frame.write(0xF8);
+            frame.write((blockSize == FLAC_BLOCK ? 12 : 7) << 4 | 9); // 4096 or 16 bit size follows; 44.1 kHz
+            frame.write(0x18); // left/right, 16 bit
+            utf8Number(frame, number);
+            if (blockSize != FLAC_BLOCK) {
+                frame.write((blockSize - 1) >> 8);
+                frame.write(blockSize - 1);
+            }
+            byte[] header = frame.toByteArray();
+            frame.write(crc8(header, header.length));
+            for (int channel = 0; channel < 2; channel++) {
+                if (!options.tone()) {
+                    frame.write(0x00); // CONSTANT subframe
+                    frame.write(0);
+                    frame.write(0);
+                    continue;
+                }
+                frame.write(0x02); // VERBATIM subframe
+                for (int i = 0; i < blockSize; i++) {
+                    short v = sample(n + i, channel);
+                    frame.write(v >> 8);
+                    frame.write(v);
+                }
+            }
+            byte[] body = frame.toByteArray();
+            int crc = crc16(body);
+            out.write(body);
+            out.write(crc >> 8);
+            out.write(crc);
+            n += blockSize;
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] mp3(Track track) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        id3(out, track, true);
+        long frames = (track.frames() + 1151) / 1152;
+
+        // CBR "Info" header in an otherwise silent first frame
+        byte[] first = mp3Frame();
+        int xing = 4 + 32; // after the stereo side info
+        first[xing] = 'I';
+        first[xing + 1] = 'n';
+        first[xing + 2] = 'f';
+        first[xing + 3] = 'o';
+        putInt(first, xing + 4, 3); // frames and bytes present
+        putInt(first, xing + 8, (int) frames);
+        putInt(first, xing + 12, (int) ((frames + 1) * MP3_FRAME_BYTES));
+        out.write(first);
+        byte[] silent = mp3Frame();
+        for (long i = 0; i < frames; i++)
+            out.write(silent);
+        return out.toByteArray();
+    }
+
+    /** All-zero side info and main data decode as silence. */
+    private static byte[] mp3Frame() {
+        byte[] frame = new byte[MP3_FRAME_BYTES];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xFB; // MPEG-1 layer III, no CRC
+        frame[2] = (byte) 0x90; // 128 kbps, 44.1 kHz
+        frame[3] = (byte) 0x44; // joint stereo, original
+        return frame;
+    }
+
+    private byte[] adts(Track track) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        id3(out, track, false);
+        byte[] frame = new byte[AAC_FRAME_BYTES];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xF1; // MPEG-4, no CRC
+        frame[2] = (byte) 0x50; // AAC LC, 44.1 kHz
+        frame[3] = (byte) (0x80 | (AAC_FRAME_BYTES >> 11)); // stereo
+        frame[4] = (byte) (AAC_FRAME_BYTES >> 3);
+        frame[5] = (byte) ((AAC_FRAME_BYTES & 7) << 5 | 0x1F);
+        frame[6] = (byte) 0xFC; // buffer fullness: VBR
+        for (long n = 0; n < track.frames(); n += 1024)
+            out.write(frame);
+        return out.toByteArray();
+    }
+
+    private byte[] ogg(Track track) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int serial = track.index();
+        int[] sequence = { 0 };
+
+        ByteArrayOutputStream id = new ByteArrayOutputStream();
+        id.write(1);
+        id.write("vorbis".getBytes(StandardCharsets.ISO_8859_1));
+        writeIntLE(id, 0); // version
+        id.write(2);
+        writeIntLE(id, RATE);
+        writeIntLE(id, 0);
+        writeIntLE(id, 128000); // nominal bitrate
+        writeIntLE(id, 0);
+        id.write(0xB8); // block sizes 256 and 2048
+        id.write(1);
+        oggPage(out, 0x02, 0, serial, sequence, id.toByteArray());
+
+        ByteArrayOutputStream comment = new ByteArrayOutputStream();
+        comment.write(3);
+        comment.write("vorbis".getBytes(StandardCharsets.ISO_8859_1));
+        if (track.tags() == Layout.NONE) {
+            writeIntLE(comment, 0);
+            writeIntLE(comment, 0);
+        } else {
+            vorbisComment(comment, track);
+        }
+        comment.write(1);
+        if (track.defect() == Defect.LARGE_PREAMBLE)
+            comment.write(new byte[PREAMBLE_BYTES]);
+        oggPage(out, 0, 0, serial, sequence, comment.toByteArray());
+        // placeholder setup header: the pages are real, the codebooks aren't
+        oggPage(out, 0, 0, serial, sequence, new byte[] { 5, 'v', 'o', 'r', 'b', 'i', 's', 1 });
+
+        long bytes = track.frames() * 16000 / RATE; // 128 kbps
+        long granule = 0;
+        long pageFrames = Math.max(1, track.frames() * 4000 / Math.max(1, bytes));
+        byte[] packet = new byte[4000];
+        for (long written = 0; written < bytes; written += packet.length) {
+            granule = Math.min(track.frames(), granule + pageFrames);
+            boolean last = written + packet.length >= bytes;
+            oggPage(out, last ? 0x04 : 0, last ? track.frames() : granule, serial, sequence, packet);
+        }
+        return out.toByteArray();
+    }
+
+    /** One packet, spread over as many pages as it needs (255 segments of 255 bytes each). */
+    private static void oggPage(ByteArrayOutputStream out, int flags, long granule, int serial, int[] sequence,
+            byte[] packet) throws IOException {
+        int pos = 0;
+        boolean continued = false;
+        boolean ends;
+        do {
+            int length = Math.min(packet.length - pos, 255 * 255);
+            ends = pos + length == packet.length && length < 255 * 255;
+            int segments = ends ? length / 255 + 1 : 255;
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            page.write("OggS".getBytes(StandardCharsets.ISO_8859_1));
+            page.write(0);
+            int pageFlags = (continued ? 0x01 : 0) | (pos == 0 ? flags & 0x02 : 0) | (ends ? flags & 0x04 : 0);
+            page.write(pageFlags);
+            long pageGranule = ends ? granule : -1;
+            for (int i = 0; i < 8; i++)
+                page.write((int) (pageGranule >>> (8 * i)));
+            writeIntLE(page, serial);
+            writeIntLE(page, sequence[0]++);
+            writeIntLE(page, 0); // CRC, filled in below
+            page.write(segments);
+            for (int s = 0; s < segments; s++)
+                page.write(s < segments - 1 || !ends ? 255 : length % 255);
+            page.write(packet, pos, length);
+            byte[] bytes = page.toByteArray();
+            int crc = oggCrc(bytes);
+            for (int i = 0; i < 4; i++)
+                bytes[22 + i] = (byte) (crc >>> (8 * i));
+            out.write(bytes);
+            pos += length;
+            continued = true;
+        } while (!ends);
+    }
+
+    private byte[] mp4(Track track) throws IOException {
+        ByteArrayOutputStream ftyp = new ByteArrayOutputStream();
+        ftyp.write("M4A ".getBytes(StandardCharsets.ISO_8859_1));
+        writeIntBE(ftyp, 0);
+        ftyp.write("M4A mp42isom".getBytes(StandardCharsets.ISO_8859_1));
+
+        byte[] mvhd = new byte[100];
+        putInt(mvhd, 12, RATE); // timescale
+        putInt(mvhd, 16, (int) track.frames()); // duration
+        putInt(mvhd, 20, 0x00010000); // rate 1.0
+        putShort(mvhd, 24, 0x0100); // volume 1.0
+        putInt(mvhd, 36, 0x00010000); // identity matrix
+        putInt(mvhd, 52, 0x00010000);
+        putInt(mvhd, 68, 0x40000000);
+        putInt(mvhd, 96, 2); // next track id
+
+        ByteArrayOutputStream moov = new ByteArrayOutputStream();
+        moov.write(atom("mvhd", mvhd));
+        if (track.tags() != Layout.NONE) {
+            ByteArrayOutputStream ilst = new ByteArrayOutputStream();
+            ilst.write(mp4Text("\u00A9nam", track.title()));
+            if (track.tags() == Layout.FULL) {
+                ilst.write(mp4Text("\u00A9ART", track.artist()));
+                ilst.write(mp4Text("\u00A9alb", track.album()));
+                ilst.write(mp4Text("\u00A9gen", track.genre()));
+                byte[] trkn = new byte[8];
+                putShort(trkn, 2, track.number());
+                putShort(trkn, 4, ALBUM_TRACKS);
+                ilst.write(atom("trkn", mp4Data(0, trkn)));
+            }
+            byte[] cover = cover(track);
+            if (cover != null)
+                ilst.write(atom("covr", mp4Data(14, cover)));
+            byte[] items = ilst.toByteArray();
+            if (track.defect() == Defect.CORRUPT_TAG)
+                putInt(items, 0, items.length + 1000); // first item claims more than ilst holds
+
+            byte[] hdlr = new byte[25];
+            hdlr[8] = 'm';
+            hdlr[9] = 'd';
+            hdlr[10] = 'i';
+            hdlr[11] = 'r';
+            hdlr[12] = 'a';
+            hdlr[13] = 'p';
+            hdlr[14] = 'p';
+            hdlr[15] = 'l';
+            byte[] meta = concat(new byte[4], atom("hdlr", hdlr), atom("ilst", items));
+            moov.write(atom("udta", atom("meta", meta)));
+        }
+
+        byte[] mdat = atom("mdat", new byte[(int) (track.frames() * 16000 / RATE)]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(atom("ftyp", ftyp.toByteArray()));
+        if (track.defect() == Defect.LARGE_PREAMBLE) {
+            // audio first and moov at the end, behind a big free atom: what streaming-unfriendly muxers write
+            out.write(atom("free", new byte[PREAMBLE_BYTES]));
+            out.write(mdat);
+            out.write(atom("moov", moov.toByteArray()));
+        } else {
+            out.write(atom("moov", moov.toByteArray()));
+            out.write(mdat);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] mp4Text(String type, String value) {
+        return atom(type, mp4Data(1, value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] mp4Data(int dataType, byte[] payload) {
+        byte[] body = new byte[8 + payload.length];
+        putInt(body, 0, dataType);
+        System.arraycopy(payload, 0, body, 8, payload.length);
+        return atom("data", body);
+    }
+
+    private static byte[] atom(String type, byte[] body) {
+        byte[] atom = new byte[8 + body.length];
+        putInt(atom, 0, atom.length);
+        for (int i = 0; i < 4; i++)
+            atom[4 + i] = (byte) type.charAt(i);
+        System.arraycopy(body, 0, atom, 8, body.length);
+        return atom;
+    }
+
+    private byte[] wav(Track track) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("WAVE".getBytes(StandardCharsets.ISO_8859_1));
+        byte[] fmt = new byte[16];
+        putShortLE(fmt, 0, 1); // PCM
+        putShortLE(fmt, 2, 2);
+        putIntLE(fmt, 4, RATE);
+        putIntLE(fmt, 8, RATE * 4);
+        putShortLE(fmt, 12, 4);
+        putShortLE(fmt, 14, 16);
+        chunk(body, "fmt ", fmt, true);
+
+        if (track.tags() != Layout.NONE) {
+            ByteArrayOutputStream info = new ByteArrayOutputStream();
+            info.write("INFO".getBytes(StandardCharsets.ISO_8859_1));
+            chunk(info, "INAM", zeroTerminated(track.title()), true);
+            if (track.tags() == Layout.FULL) {
+                chunk(info, "IART", zeroTerminated(track.artist()), true);
+                chunk(info, "IPRD", zeroTerminated(track.album()), true);
+                chunk(info, "ITRK", zeroTerminated(String.valueOf(track.number())), true);
+            }
+            chunk(body, "LIST", info.toByteArray(), true);
+        }
+        if (track.tags() == Layout.FULL || track.defect() == Defect.CORRUPT_TAG) {
+            ByteArrayOutputStream id3 = new ByteArrayOutputStream();
+            id3(id3, track, false);
+            chunk(body, "id3 ", id3.toByteArray(), true);
+        }
+        if (track.defect() == Defect.LARGE_PREAMBLE)
+            chunk(body, "JUNK", new byte[PREAMBLE_BYTES], true);
+
+        byte[] pcm = new byte[(int) track.frames() * 4];
+        for (int i = 0; options.tone() && i < track.frames(); i++) {
+            putShortLE(pcm, 4 * i, sample(i, 0));
+            putShortLE(pcm, 4 * i + 2, sample(i, 1));
+        }
+        chunk(body, "data", pcm, true);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chunk(out, "RIFF", body.toByteArray(), true);
+        return out.toByteArray();
+    }
+
+    private byte[] aiff(Track track) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("AIFF".getBytes(StandardCharsets.ISO_8859_1));
+        byte[] comm = new byte[18];
+        putShort(comm, 0, 2);
+        putInt(comm, 2, (int) track.frames());
+        putShort(comm, 6, 16);
+        byte[] rate = { 0x40, 0x0E, (byte) 0xAC, 0x44, 0, 0, 0, 0, 0, 0 }; // 44100 as 80 bit extended
+        System.arraycopy(rate, 0, comm, 8, rate.length);
+        chunk(body, "COMM", comm, false);
+
+        if (track.tags() != Layout.NONE)
+            chunk(body, "NAME", track.title().getBytes(StandardCharsets.UTF_8), false);
+        if (track.tags() == Layout.FULL)
+            chunk(body, "AUTH", track.artist().getBytes(StandardCharsets.UTF_8), false);
+        if (track.defect() == Defect.LARGE_PREAMBLE)
+            chunk(body, "ANNO", new byte[PREAMBLE_BYTES], false);
+
+        byte[] ssnd = new byte[8 + (int) track.frames() * 4];
+        for (int i = 0; options.tone() && i < track.frames(); i++) {
+            putShort(ssnd, 8 + 4 * i, sample(i, 0));
+            putShort(ssnd, 8 + 4 * i + 2, sample(i, 1));
+        }
+        chunk(body, "SSND", ssnd, false);
+        if (track.tags() == Layout.FULL) {
+            // the only place an AIFF keeps the album; after the audio, where taggers usually append it
+            ByteArrayOutputStream id3 = new ByteArrayOutputStream();
+            id3(id3, track, false);
+            chunk(body, "ID3 ", id3.toByteArray(), false);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chunk(out, "FORM", body.toByteArray(), false);
+        return out.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String id, byte[] data, boolean littleEndian)
+            throws IOException {
+        out.write(id.getBytes(StandardCharsets.ISO_8859_1));
+        byte[] size = new byte[4];
+        if (littleEndian)
+            putIntLE(size, 0, data.length);
+        else
+            putInt(size, 0, data.length);
+        out.write(size);
+        out.write(data);
+        if ((data.length & 1) != 0)
+            out.write(0);
+    }
+
+    // ---- tags ----
+
+    /** ID3v2.3 with UTF-16 text or ID3v2.4 with UTF-8, picked per file as taggers in the wild do. */
+    private void id3(ByteArrayOutputStream out, Track track, boolean allowPreamble) throws IOException {
+        if (track.tags() == Layout.NONE && track.defect() != Defect.CORRUPT_TAG)
+            return;
+        int version = random(track.index()).nextBoolean() ? 3 : 4;
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        if (track.tags() != Layout.NONE)
+            id3Text(frames, version, "TIT2", track.title(), track.defect() == Defect.CORRUPT_TAG);
+        else
+            id3Text(frames, version, "TIT2", "", true);
+        if (track.tags() == Layout.FULL) {
+            id3Text(frames, version, "TPE1", track.artist(), false);
+            id3Text(frames, version, "TALB", track.album(), false);
+            id3Text(frames, version, "TCON", track.genre(), false);
+            id3Text(frames, version, "TRCK", track.number() + "/" + ALBUM_TRACKS, false);
+            byte[] cover = cover(track);
+            if (cover != null) {
+                ByteArrayOutputStream apic = new ByteArrayOutputStream();
+                apic.write(0);
+                apic.write("image/png\0".getBytes(StandardCharsets.ISO_8859_1));
+                apic.write(3); // front cover
+                apic.write(0); // empty description
+                apic.write(cover);
+                id3Frame(frames, version, "APIC", apic.toByteArray(), false);
+            }
+        }
+        if (allowPreamble && track.defect() == Defect.LARGE_PREAMBLE)
+            frames.write(new byte[PREAMBLE_BYTES]);
+        else
+            frames.write(new byte[256]); // the usual bit of padding
+
+        int size = frames.size();
+        out.write(new byte[] { 'I', 'D', '3', (byte) version, 0, 0,
+                (byte) ((size >> 21) & 0x7F), (byte) ((size >> 14) & 0x7F), (byte) ((size >> 7) & 0x7F),
+                (byte) (size & 0x7F) });
+        frames.writeTo(out);
+    }
+
+    private static void id3Text(ByteArrayOutputStream out, int version, String id, String text, boolean corrupt)
+            throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(version == 4 ? 3 : 1);
+        frame.write(text.getBytes(version == 4 ? StandardCharsets.UTF_8 : StandardCharsets.UTF_16));
+        id3Frame(out, version, id, frame.toByteArray(), corrupt);
+    }
+
+    private static void id3Frame(ByteArrayOutputStream out, int version, String id, byte[] data, boolean corrupt)
+            throws IOException {
+        out.write(id.getBytes(StandardCharsets.ISO_8859_1));
+        int size = corrupt ? 0x0FFFFFFF : data.length;
+        if (version == 4)
+            out.write(new byte[] { (byte) ((size >> 21) & 0x7F), (byte) ((size >> 14) & 0x7F),
+                    (byte) ((size >> 7) & 0x7F), (byte) (size & 0x7F) });
+        else
+            writeIntBE(out, size);
+        out.write(0);
+        out.write(0);
+        out.write(data);
+    }
+
+    /** Vendor string and comment list, little-endian lengths, as in FLAC and Vorbis. */
+    private static void vorbisComment(ByteArrayOutputStream out, Track track) throws IOException {
+        List<String> comments = new ArrayList<>();
+        comments.add("TITLE=" + track.title());
+        if (track.tags() == Layout.FULL) {
+            comments.add("ARTIST=" + track.artist());
+            comments.add("ALBUM=" + track.album());
+            comments.add("TRACKNUMBER=" + track.number());
+        }
+        byte[] vendor = "musicfilter LibraryGenerator".getBytes(StandardCharsets.UTF_8);
+        writeIntLE(out, vendor.length);
+        out.write(vendor);
+        writeIntLE(out, track.defect() == Defect.CORRUPT_TAG ? 0x7FFFFFFF : comments.size());
+        for (String comment : comments) {
+            byte[] bytes = comment.getBytes(StandardCharsets.UTF_8);
+            writeIntLE(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] zeroTerminated(String text) {
+        return (text + "\0").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ---- bytes ----
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.writeBytes(part);
+        return out.toByteArray();
+    }
+
+    private static void utf8Number(ByteArrayOutputStream out, int n) {
+        if (n < 0x80) {
+            out.write(n);
+        } else if (n < 0x800) {
+            out.write(0xC0 | (n >> 6));
+            out.write(0x80 | (n & 0x3F));
+        } else if (n < 0x10000) {
+            out.write(0xE0 | (n >> 12));
+            out.write(0x80 | ((n >> 6) & 0x3F));
+            out.write(0x80 | (n & 0x3F));
+        } else {
+            out.write(0xF0 | (n >> 18));
+            out.write(0x80 | ((n >> 12) & 0x3F));
+            out.write(0x80 | ((n >> 6) & 0x3F));
+            out.write(0x80 | (n & 0x3F));
+        }
+    }
+
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int b = 0; b < 8; b++)
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data) {
+        int crc = 0;
+        for (byte value : data) {
+            crc ^= (value & 0xFF) << 8;
+            for (int b = 0; b < 8; b++)
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xFFFF : (crc << 1) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    private static final int[] OGG_CRC = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int r = i << 24;
+            for (int b = 0; b < 8; b++)
+                r = (r & 0x80000000) != 0 ? (r << 1) ^ 0x04C11DB7 : r << 1;
+            OGG_CRC[i] = r;
+        }
+    }
+
+    private static int oggCrc(byte[] page) {
+        int crc = 0;
+        for (byte value : page)
+            crc = (crc << 8) ^ OGG_CRC[((crc >>> 24) ^ value) & 0xFF];
+        return crc;
+    }
+
+    private static void writeIntBE(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 8);
+        b[off + 1] = (byte) value;
+    }
+
+    private static void putIntLE(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    private static void putShortLE(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    /**
+     * {@code LibraryGenerator <target> [--seed N] [--files N] [--mix mp3=5,flac=3,...] [--tags full|minimal|none|mixed]
+     * [--art KB] [--depth N] [--defects FRACTION] [--seconds N] [--tone]}
+     */
+    public static void main(String[] args) throws Exception {
+        File target = null;
+        long seed = 1;
+        int files = 1000;
+        Map<AudioFileType, Integer> mix = new LinkedHashMap<>();
+        for (AudioFileType type : AudioFileType.values())
+            mix.put(type, 1);
+        Layout tags = Layout.MIXED;
+        int art = 64;
+        int depth = 2;
+        double defects = 0;
+        int seconds = 2;
+        boolean tone = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                case "--files" -> files = Integer.parseInt(args[++i]);
+                case "--tags" -> tags = Layout.valueOf(args[++i].toUpperCase());
+                case "--art" -> art = Integer.parseInt(args[++i]);
+                case "--depth" -> depth = Integer.parseInt(args[++i]);
+                case "--defects" -> defects = Double.parseDouble(args[++i]);
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--tone" -> tone = true;
+                case "--mix" -> {
+                    mix.clear();
+                    for (String entry : args[++i].split(",")) {
+                        String[] parts = entry.split("=");
+                        mix.put(typeOf(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+                    }
+                }
+                default -> target = new File(arg);
+            }
+        }
+        if (target == null) {
+            System.err.println("Usage: LibraryGenerator <target> [--seed N] [--files N] [--mix mp3=5,flac=3,...] "
+                    + "[--tags full|minimal|none|mixed] [--art KB] [--depth N] [--defects FRACTION] [--seconds N] [--tone]");
+            System.exit(2);
+        }
+        new LibraryGenerator(new Options(target, seed, files, mix, tags, art, depth, defects, seconds, tone))
+                .generate();
+    }
+
+    /** Accepts extensions as well as type names ("m4a" or "MP4"). */
+    private static AudioFileType typeOf(String name) {
+        for (AudioFileType type : AudioFileType.values()) {
+            if (type.name().equalsIgnoreCase(name) || extension(type).equalsIgnoreCase(name))
+                return type;
+        }
+        if (name.equalsIgnoreCase("aif"))
+            return AudioFileType.AIFF;
+        throw new IllegalArgumentException("Unknown format: " + name);
+    }
+}
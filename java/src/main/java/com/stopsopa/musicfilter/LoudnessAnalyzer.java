@@ -0,0 +1,280 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * EBU R128 / ITU-R BS.1770-4 loudness meter. Computes gated integrated
+ * loudness and 4x oversampled true peak, and derives a ReplayGain 2.0 style
+ * track gain relative to {@link #REFERENCE_LUFS}.
+ */
+public class LoudnessAnalyzer {
+
+    /** ReplayGain 2.0 reference level. */
+    public static final double REFERENCE_LUFS = -18.0;
+
+    /** The meter as one of the {@link PcmAnalysis} analysers; the result is "integrated LUFS, true peak". */
+    static final PcmAnalysis.Analyzer ANALYZER = new PcmAnalysis.Analyzer() {
+        @Override
+        public String name() {
+            return "loudness";
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public PcmAnalysis.Pass start(AudioFormat format) {
+            Meter meter = new Meter(format.getSampleRate(), format.getChannels());
+            return new PcmAnalysis.Pass() {
+                @Override
+                public void process(byte[] data, int frames, int bytesPerSample) {
+                    meter.process(data, frames, bytesPerSample);
+                }
+
+                @Override
+                public String finish() {
+                    Result result = meter.result();
+                    return result.integratedLufs() + " " + result.truePeak();
+                }
+            };
+        }
+    };
+
+    public record Result(double integratedLufs, double truePeak, double gainDb) {
+
+        static Result of(double integratedLufs, double truePeak) {
+            double gain = Double.isInfinite(integratedLufs) ? 0.0 : REFERENCE_LUFS - integratedLufs;
+            return new Result(integratedLufs, truePeak, gain);
+        }
+
+        /** Builds a result from REPLAYGAIN_TRACK_GAIN / REPLAYGAIN_TRACK_PEAK tags. */
+        static Result fromTags(double gainDb, double truePeak) {
+            return new Result(REFERENCE_LUFS - gainDb, truePeak, gainDb);
+        }
+
+        public double truePeakDbtp() {
+            return truePeak > 0 ? 20 * Math.log10(truePeak) : Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Linear factor for {@code gainDb}, reduced so that {@code truePeak} never
+     * exceeds full scale after amplification.
+     */
+    public static double linearGain(double gainDb, double truePeak) {
+        double factor = Math.pow(10, gainDb / 20.0);
+        if (truePeak > 0 && factor * truePeak > 1.0)
+            factor = 1.0 / truePeak;
+        return factor;
+    }
+
+    /**
+     * Analyses {@code files} together with the other {@link PcmAnalysis}
+     * analysers, in one decode per track. Results are delivered on the worker
+     * threads; failures are logged and skipped.
+     */
+    public static CompletableFuture<Void> analyzeAll(List<File> files, BiConsumer<File, Result> onResult) {
+        return PcmAnalysis.get().analyzeAll(files, (file, results) -> {
+            String[] value = results.get(ANALYZER.name()).split(" ");
+            onResult.accept(file, Result.of(Double.parseDouble(value[0]), Double.parseDouble(value[1])));
+        });
+    }
+
+    /** Streaming BS.1770 meter for one track. */
+    static class Meter {
+        private static final int OVERSAMPLE = 4;
+        private static final int TAPS_PER_PHASE = 12;
+        private static final double ABSOLUTE_GATE = energy(-70.0);
+
+        private final int channels;
+        private final double[] weights;
+        private final double b0, b1, b2, a1, a2; // high shelf
+        private final double c0, c1, c2, d1, d2; // high pass
+        private final double[] z; // 4 filter states per channel
+
+        private final float[] interpolator = new float[OVERSAMPLE * TAPS_PER_PHASE];
+        private final float[] history; // 2 * TAPS_PER_PHASE per channel, mirrored
+        private int historyPos = 0;
+        private float peak = 0f;
+
+        private final int subBlockFrames;
+        private int subBlockFill = 0;
+        private double subBlockSum = 0;
+        private final double[] lastSubBlocks = new double[4];
+        private long subBlockCount = 0;
+        private double[] blocks = new double[1024];
+        private int blockCount = 0;
+
+        Meter(float sampleRate, int channels) {
+            this.channels = channels;
+            this.weights = new double[channels];
+            Arrays.fill(weights, 1.0);
+            if (channels == 6) { // L R C LFE Ls Rs
+                weights[3] = 0.0;
+                weights[4] = 1.41;
+                weights[5] = 1.41;
+            }
+
+            // K-weighting pre-filter, coefficients re-derived for any sample rate
+            double f0 = 1681.974450955533;
+            double gain = 3.999843853973347;
+            double q = 0.7071752369554196;
+            double k = Math.tan(Math.PI * f0 / sampleRate);
+            double vh = Math.pow(10.0, gain / 20.0);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1.0 + k / q + k * k;
+            b0 = (vh + vb * k / q + k * k) / a0;
+            b1 = 2.0 * (k * k - vh) / a0;
+            b2 = (vh - vb * k / q + k * k) / a0;
+            a1 = 2.0 * (k * k - 1.0) / a0;
+            a2 = (1.0 - k / q + k * k) / a0;
+
+            // RLB high pass
+            f0 = 38.13547087602444;
+            q = 0.5003270373238773;
+            k = Math.tan(Math.PI * f0 / sampleRate);
+            a0 = 1.0 + k / q + k * k;
+            c0 = 1.0;
+            c1 = -2.0;
+            c2 = 1.0;
+            d1 = 2.0 * (k * k - 1.0) / a0;
+            d2 = (1.0 - k / q + k * k) / a0;
+
+            z = new double[channels * 4];
+
+            // Hann-windowed sinc interpolator, split into OVERSAMPLE phases
+            double centre = (interpolator.length - 1) / 2.0;
+            for (int i = 0; i < interpolator.length; i++) {
+                double x = (i - centre) / OVERSAMPLE;
+                double sinc = x == 0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+                double window = 0.5 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / interpolator.length);
+                interpolator[i] = (float) (sinc * window);
+            }
+            history = new float[channels * TAPS_PER_PHASE * 2];
+
+            subBlockFrames = Math.max(1, Math.round(sampleRate * 0.1f));
+        }
+
+        void process(byte[] data, int frames, int bytesPerSample) {
+            int offset = 0;
+            for (int f = 0; f < frames; f++) {
+                historyPos = historyPos == 0 ? TAPS_PER_PHASE - 1 : historyPos - 1;
+                double frameSum = 0;
+                for (int ch = 0; ch < channels; ch++) {
+                    float x = PcmStreams.sampleAt(data, offset, bytesPerSample);
+                    offset += bytesPerSample;
+
+                    truePeak(ch, x);
+
+                    int s = ch * 4;
+                    double y = b0 * x + z[s];
+                    z[s] = b1 * x - a1 * y + z[s + 1];
+                    z[s + 1] = b2 * x - a2 * y;
+                    double w = c0 * y + z[s + 2];
+                    z[s + 2] = c1 * y - d1 * w + z[s + 3];
+                    z[s + 3] = c2 * y - d2 * w;
+
+                    frameSum += weights[ch] * w * w;
+                }
+                subBlockSum += frameSum;
+                if (++subBlockFill == subBlockFrames)
+                    finishSubBlock();
+            }
+        }
+
+        private void truePeak(int ch, float x) {
+            int base = ch * TAPS_PER_PHASE * 2;
+            history[base + historyPos] = x;
+            history[base + historyPos + TAPS_PER_PHASE] = x;
+
+            float abs = Math.abs(x);
+            if (abs > peak)
+                peak = abs;
+            for (int phase = 0; phase < OVERSAMPLE; phase++) {
+                float acc = 0f;
+                for (int j = 0; j < TAPS_PER_PHASE; j++) {
+                    acc += interpolator[phase + j * OVERSAMPLE] * history[base + historyPos + j];
+                }
+                abs = Math.abs(acc);
+                if (abs > peak)
+                    peak = abs;
+            }
+        }
+
+        private void finishSubBlock() {
+            lastSubBlocks[(int) (subBlockCount++ % 4)] = subBlockSum / subBlockFrames;
+            subBlockSum = 0;
+            subBlockFill = 0;
+            if (subBlockCount >= 4) {
+                double block = (lastSubBlocks[0] + lastSubBlocks[1] + lastSubBlocks[2] + lastSubBlocks[3]) / 4;
+                if (blockCount == blocks.length)
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                blocks[blockCount++] = block;
+            }
+        }
+
+        Result result() {
+            double sum = 0;
+            int count = 0;
+            for (int i = 0; i < blockCount; i++) {
+                if (blocks[i] > ABSOLUTE_GATE) {
+                    sum += blocks[i];
+                    count++;
+                }
+            }
+            if (count == 0)
+                return Result.of(Double.NEGATIVE_INFINITY, peak);
+
+            double relativeGate = Math.max(ABSOLUTE_GATE, sum / count / 10.0); // -10 LU
+            sum = 0;
+            count = 0;
+            for (int i = 0; i < blockCount; i++) {
+                if (blocks[i] > relativeGate) {
+                    sum += blocks[i];
+                    count++;
+                }
+            }
+            double integrated = count == 0 ? Double.NEGATIVE_INFINITY : -0.691 + 10 * Math.log10(sum / count);
+            return Result.of(integrated, peak);
+        }
+
+        private static double energy(double lufs) {
+            return Math.pow(10.0, (lufs + 0.691) / 10.0);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(args.length > 0 ? args[0] : "music-sample");
+        if (!root.exists()) {
+            System.err.println(root + " not found!");
+            return;
+        }
+
+        List<File> files = new ArrayList<>();
+        collect(root, files);
+        System.out.println("Analysing " + files.size() + " files on " + FileBatch.THREADS + " threads");
+
+        analyzeAll(files, (file, r) -> System.out.printf("%-40s %7.2f LUFS  %6.2f dBTP  gain %+6.2f dB%n",
+                file.getName(), r.integratedLufs(), r.truePeakDbtp(), r.gainDb())).join();
+    }
+
+    private static void collect(File file, List<File> out) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children)
+                    collect(child, out);
+            }
+        } else if (!file.getName().startsWith(".")) {
+            out.add(file);
+        }
+    }
+}
@@ -1,14 +1,41 @@
 package com.stopsopa.musicfilter;
 
 import java.io.File;
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
 public class MetadataParser {
 
+    /** Embedded pictures above this size are ignored. */
+    static final int MAX_PICTURE_BYTES = 16 * 1024 * 1024;
+
+    /** ID3v1 genre table (including Winamp extensions), also used by MP4 {@code gnre}. */
+    static final String[] ID3V1_GENRES = {
+            "Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop", "Jazz", "Metal",
+            "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock", "Techno", "Industrial",
+            "Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack", "Euro-Techno", "Ambient", "Trip-Hop",
+            "Vocal", "Jazz+Funk", "Fusion", "Trance", "Classical", "Instrumental", "Acid", "House", "Game",
+            "Sound Clip", "Gospel", "Noise", "AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative",
+            "Instrumental Pop", "Instrumental Rock", "Ethnic", "Gothic", "Darkwave", "Techno-Industrial",
+            "Electronic", "Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult", "Gangsta",
+            "Top 40", "Christian Rap", "Pop/Funk", "Jungle", "Native American", "Cabaret", "New Wave",
+            "Psychadelic", "Rave", "Showtunes", "Trailer", "Lo-Fi", "Tribal", "Acid Punk", "Acid Jazz", "Polka",
+            "Retro", "Musical", "Rock & Roll", "Hard Rock", "Folk", "Folk-Rock", "National Folk", "Swing",
+            "Fast Fusion", "Bebob", "Latin", "Revival", "Celtic", "Bluegrass", "Avantgarde", "Gothic Rock",
+            "Progressive Rock", "Psychedelic Rock", "Symphonic Rock", "Slow Rock", "Big Band", "Chorus",
+            "Easy Listening", "Acoustic", "Humour", "Speech", "Chanson", "Opera", "Chamber Music", "Sonata",
+            "Symphony", "Booty Bass", "Primus", "Porn Groove", "Satire", "Slow Jam", "Club", "Tango", "Samba",
+            "Folklore", "Ballad", "Power Ballad", "Rhythmic Soul", "Freestyle", "Duet", "Punk Rock", "Drum Solo",
+            "A capella", "Euro-House", "Dance Hall", "Goa", "Drum & Bass", "Club-House", "Hardcore", "Terror",
+            "Indie", "BritPop", "Negerpunk", "Polsk Punk", "Beat", "Christian Gangsta Rap", "Heavy Metal",
+            "Black Metal", "Crossover", "Contemporary Christian", "Christian Rock", "Merengue", "Salsa",
+            "Thrash Metal", "Anime", "JPop", "Synthpop"
+    };
+
     public static Map<String, Object> parse(File file) {
+        TrackEvents.Parse event = new TrackEvents.Parse();
+        event.begin();
         Map<String, Object> metadata = new HashMap<>();
         String name = file.getName().toLowerCase();
 
@@ -20,44 +47,25 @@ public class MetadataParser {
         // 2. Try ID3v1 (Common in MP3, AAC) - Check end of file
         metadata.putAll(parseId3v1(file));
 
-        // 3. Format specific parsing
-        if (name.endsWith(".flac")) {
-            metadata.putAll(parseFlac(file));
-        } else if (name.endsWith(".ogg")) {
-            metadata.putAll(parseOgg(file));
-        } else if (name.endsWith(".m4a") || name.endsWith(".aac") || name.endsWith(".mp4")) {
-            // Check if it's an ADTS stream (starts with 0xFFF)
-            if (isAdts(file)) {
-                System.out.println("Identified as ADTS AAC: " + name);
-                // ADTS usually uses ID3v1/v2 which are already checked.
-            } else {
-                metadata.putAll(parseM4a(file));
-            }
-        } else if (name.endsWith(".wav")) {
-            metadata.putAll(parseWav(file));
-        } else if (name.endsWith(".aif") || name.endsWith(".aiff")) {
-            metadata.putAll(parseAiff(file));
+        // 3. Format specific parsing, routed on the sniffed format rather than the extension
+        FormatProvider provider = FormatRegistry.get().detect(file);
+        if (provider != null) {
+            System.out.println("Identified as " + provider.type() + ": " + name);
+            metadata.putAll(provider.parse(file));
         }
 
-        return metadata;
-    }
-
-    private static boolean isAdts(File file) {
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
-            if (raf.length() < 2)
-                return false;
-            byte[] header = new byte[2];
-            raf.readFully(header);
-            // Sync word is 12 bits of 1s: 0xFFF
-            return (header[0] & 0xFF) == 0xFF && (header[1] & 0xF0) == 0xF0;
-        } catch (IOException e) {
-            return false;
+        if (event.shouldCommit()) {
+            event.track(file);
+            event.parser = provider == null ? "ID3" : provider.type().toString();
+            event.fields = metadata.size();
+            event.commit();
         }
+        return metadata;
     }
 
     private static Map<String, Object> parseId3v1(File file) {
         Map<String, Object> metadata = new HashMap<>();
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
+        try (CachedFile raf = BlockCache.get().open(file)) {
             if (raf.length() < 128)
                 return metadata;
             raf.seek(raf.length() - 128);
@@ -76,6 +84,9 @@ public class MetadataParser {
                     metadata.put("artist", artist);
                 if (!album.isEmpty())
                     metadata.put("album", album);
+                int genre = tag[127] & 0xFF;
+                if (genre < ID3V1_GENRES.length)
+                    metadata.put("genre", ID3V1_GENRES[genre]);
             }
         } catch (Exception e) {
             System.err.println("Error parsing ID3v1: " + e.getMessage());
@@ -83,9 +94,9 @@ public class MetadataParser {
         return metadata;
     }
 
-    private static Map<String, Object> parseId3v2(File file, long offset) {
+    static Map<String, Object> parseId3v2(File file, long offset) {
         Map<String, Object> metadata = new HashMap<>();
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
+        try (CachedFile raf = BlockCache.get().open(file)) {
             if (offset >= raf.length())
                 return metadata;
             raf.seek(offset);
@@ -126,31 +137,46 @@ public class MetadataParser {
                 if (frameSize <= 0 || frameSize > endPos - pos)
                     break;
 
+                // Only text frames are needed here; APIC and friends are skipped without reading
+                if (!frameId.startsWith("T")) {
+                    pos += frameSize;
+                    continue;
+                }
+
                 byte[] frameData = new byte[frameSize];
                 raf.readFully(frameData);
                 pos += frameSize;
 
-                if (frameId.startsWith("T")) {
-                    int encoding = frameData[0];
-                    String text = "";
-                    if (frameSize > 1) { // Ensure there's actual data after encoding byte
-                        if (encoding == 0)
-                            text = new String(frameData, 1, frameSize - 1, StandardCharsets.ISO_8859_1);
-                        else if (encoding == 1)
-                            text = new String(frameData, 1, frameSize - 1, StandardCharsets.UTF_16);
-                        else if (encoding == 3)
-                            text = new String(frameData, 1, frameSize - 1, StandardCharsets.UTF_8);
-                    }
+                int encoding = frameData[0];
+                String text = "";
+                if (frameSize > 1) { // Ensure there's actual data after encoding byte
+                    if (encoding == 0)
+                        text = new String(frameData, 1, frameSize - 1, StandardCharsets.ISO_8859_1);
+                    else if (encoding == 1)
+                        text = new String(frameData, 1, frameSize - 1, StandardCharsets.UTF_16);
+                    else if (encoding == 3)
+                        text = new String(frameData, 1, frameSize - 1, StandardCharsets.UTF_8);
+                }
 
-                    text = text.trim();
-                    if (!text.isEmpty()) {
-                        if (frameId.equals("TIT2"))
-                            metadata.put("title", text);
-                        if (frameId.equals("TPE1"))
-                            metadata.put("artist", text);
-                        if (frameId.equals("TALB"))
-                            metadata.put("album", text);
-                    }
+                if (frameId.equals("TXXX")) {
+                    // <description>\0<value>, used for REPLAYGAIN_* among others
+                    int sep = text.indexOf('\0');
+                    if (sep > 0)
+                        parseCommentString(text.substring(0, sep) + "=" + text.substring(sep + 1).trim(),
+                                metadata);
+                    continue;
+                }
+
+                text = text.trim();
+                if (!text.isEmpty()) {
+                    if (frameId.equals("TIT2"))
+                        metadata.put("title", text);
+                    if (frameId.equals("TPE1"))
+                        metadata.put("artist", text);
+                    if (frameId.equals("TALB"))
+                        metadata.put("album", text);
+                    if (frameId.equals("TCON"))
+                        metadata.put("genre", resolveGenre(text));
                 }
             }
         } catch (Exception e) {
@@ -159,192 +185,124 @@ public class MetadataParser {
         return metadata;
     }
 
-    private static Map<String, Object> parseWav(File file) {
-        Map<String, Object> metadata = new HashMap<>();
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
-            byte[] header = new byte[12];
+    /**
+     * Returns the embedded picture of the ID3v2 tag at {@code offset}, preferring
+     * the front cover (APIC picture type 3), or null.
+     */
+    static byte[] readId3Picture(File file, long offset) {
+        byte[] picture = null;
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            if (offset >= raf.length())
+                return null;
+            raf.seek(offset);
+            byte[] header = new byte[10];
             raf.readFully(header);
-            if (header[0] != 'R' || header[1] != 'I' || header[2] != 'F' || header[3] != 'F')
-                return metadata;
-            if (header[8] != 'W' || header[9] != 'A' || header[10] != 'V' || header[11] != 'E')
-                return metadata;
-
-            long fileSize = raf.length();
-            long pos = 12;
+            if (header[0] != 'I' || header[1] != 'D' || header[2] != '3')
+                return null;
 
-            System.out.println("Parsing WAV chunks for: " + file.getName());
+            int size = ((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14) |
+                    ((header[8] & 0x7F) << 7) | (header[9] & 0x7F);
+            long pos = offset + 10;
+            long endPos = pos + size;
+            byte[] frameHeader = new byte[10];
 
-            while (pos < fileSize) {
+            while (pos < endPos) {
                 raf.seek(pos);
-                if (fileSize - pos < 8)
-                    break;
-
-                byte[] chunkHeader = new byte[8];
-                raf.readFully(chunkHeader);
-                String chunkId = new String(chunkHeader, 0, 4, StandardCharsets.ISO_8859_1);
-                int chunkSize = Integer.reverseBytes(getIntBE(chunkHeader, 4)); // WAV is Little Endian
-
-                System.out.println("  Found chunk: " + chunkId + ", size: " + chunkSize + " at " + pos);
-
-                if (chunkId.equals("LIST")) {
-                    byte[] typeBytes = new byte[4];
-                    raf.readFully(typeBytes);
-                    String type = new String(typeBytes, StandardCharsets.ISO_8859_1);
-                    System.out.println("    LIST type: " + type);
-
-                    if (type.equals("INFO")) {
-                        long listEnd = pos + 8 + chunkSize;
-                        long subPos = pos + 12;
-
-                        while (subPos < listEnd) {
-                            raf.seek(subPos);
-                            if (listEnd - subPos < 8)
-                                break;
-
-                            byte[] subHeader = new byte[8];
-                            raf.readFully(subHeader);
-                            String subId = new String(subHeader, 0, 4, StandardCharsets.ISO_8859_1);
-                            int subSize = Integer.reverseBytes(getIntBE(subHeader, 4));
-
-                            System.out.println("      Sub-chunk: " + subId + ", size: " + subSize);
-
-                            if (subSize > listEnd - subPos - 8)
-                                break;
+                raf.readFully(frameHeader);
+                pos += 10;
 
-                            byte[] subData = new byte[subSize];
-                            raf.readFully(subData);
-                            String value = new String(subData, StandardCharsets.UTF_8).trim();
-                            if (value.endsWith("\0"))
-                                value = value.substring(0, value.length() - 1);
+                if (frameHeader[0] == 0)
+                    break; // Padding
 
-                            System.out.println("      Value: " + value);
+                int frameSize = getIntBE(frameHeader, 4);
+                if (header[3] == 4) {
+                    frameSize = ((frameHeader[4] & 0x7F) << 21) | ((frameHeader[5] & 0x7F) << 14) |
+                            ((frameHeader[6] & 0x7F) << 7) | (frameHeader[7] & 0x7F);
+                }
+                if (frameSize <= 0 || frameSize > endPos - pos)
+                    break;
 
-                            if (subId.equals("INAM"))
-                                metadata.put("title", value);
-                            if (subId.equals("IART"))
-                                metadata.put("artist", value);
-                            if (subId.equals("IPRD"))
-                                metadata.put("album", value);
+                if (frameHeader[0] == 'A' && frameHeader[1] == 'P' && frameHeader[2] == 'I' && frameHeader[3] == 'C'
+                        && frameSize <= MAX_PICTURE_BYTES) {
+                    byte[] frameData = new byte[frameSize];
+                    raf.readFully(frameData);
 
-                            if (subSize % 2 != 0)
-                                subSize++;
-                            subPos += 8 + subSize;
-                        }
+                    // encoding(1) mime\0 pictureType(1) description\0 data
+                    int encoding = frameData[0];
+                    int i = 1;
+                    while (i < frameSize && frameData[i] != 0)
+                        i++;
+                    int pictureType = i + 1 < frameSize ? frameData[i + 1] : 0;
+                    i += 2;
+                    if (encoding == 1 || encoding == 2) {
+                        while (i + 1 < frameSize && (frameData[i] != 0 || frameData[i + 1] != 0))
+                            i += 2;
+                        i += 2;
+                    } else {
+                        while (i < frameSize && frameData[i] != 0)
+                            i++;
+                        i++;
+                    }
+                    if (i < frameSize) {
+                        byte[] image = java.util.Arrays.copyOfRange(frameData, i, frameSize);
+                        if (pictureType == 3)
+                            return image;
+                        if (picture == null)
+                            picture = image;
                     }
-                } else if (chunkId.equals("id3 ") || chunkId.equals("ID3 ")) { // Lowercase id3 in WAV?
-                    metadata.putAll(parseId3v2(file, pos + 8));
                 }
-
-                if (chunkSize % 2 != 0)
-                    chunkSize++;
-                pos += 8 + chunkSize;
+                pos += frameSize;
             }
         } catch (Exception e) {
-            System.err.println("Error parsing WAV metadata: " + e.getMessage());
+            System.err.println("Error reading ID3v2 picture: " + e.getMessage());
         }
-        return metadata;
+        return picture;
     }
 
-    private static Map<String, Object> parseAiff(File file) {
-        Map<String, Object> metadata = new HashMap<>();
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
-            byte[] header = new byte[12];
-            raf.readFully(header);
-            if (header[0] != 'F' || header[1] != 'O' || header[2] != 'R' || header[3] != 'M')
-                return metadata;
-            if (header[8] != 'A' || header[9] != 'I' || header[10] != 'F' || header[11] != 'F')
-                return metadata;
-
-            long fileSize = raf.length();
-            long pos = 12;
-
-            System.out.println("Parsing AIFF chunks for: " + file.getName());
-
-            while (pos < fileSize) {
-                raf.seek(pos);
-                if (fileSize - pos < 8)
-                    break;
-
-                byte[] chunkHeader = new byte[8];
-                raf.readFully(chunkHeader);
-                String chunkId = new String(chunkHeader, 0, 4, StandardCharsets.ISO_8859_1);
-                int chunkSize = getIntBE(chunkHeader, 4);
-
-                System.out.println("  Found chunk: " + chunkId + ", size: " + chunkSize + " at " + pos);
-
-                if (chunkId.equals("NAME")) {
-                    byte[] data = new byte[chunkSize];
-                    raf.readFully(data);
-                    metadata.put("title", new String(data, StandardCharsets.ISO_8859_1).trim());
-                } else if (chunkId.equals("AUTH")) {
-                    byte[] data = new byte[chunkSize];
-                    raf.readFully(data);
-                    metadata.put("artist", new String(data, StandardCharsets.ISO_8859_1).trim());
-                } else if (chunkId.equals("ID3 ")) {
-                    // ID3 chunk in AIFF
-                    metadata.putAll(parseId3v2(file, pos + 8));
-                } else if (chunkId.equals("LIST")) {
-                    // AIFF can also have LIST chunks similar to WAV
-                    byte[] typeBytes = new byte[4];
-                    raf.readFully(typeBytes);
-                    String type = new String(typeBytes, StandardCharsets.ISO_8859_1);
-                    System.out.println("    LIST type: " + type);
-
-                    if (type.equals("INFO")) {
-                        long listEnd = pos + 8 + chunkSize;
-                        long subPos = pos + 12;
-
-                        while (subPos < listEnd) {
-                            raf.seek(subPos);
-                            if (listEnd - subPos < 8)
-                                break;
-
-                            byte[] subHeader = new byte[8];
-                            raf.readFully(subHeader);
-                            String subId = new String(subHeader, 0, 4, StandardCharsets.ISO_8859_1);
-                            int subSize = getIntBE(subHeader, 4); // AIFF is Big Endian
-
-                            System.out.println("      Sub-chunk: " + subId + ", size: " + subSize);
-
-                            if (subSize > listEnd - subPos - 8)
-                                break;
-
-                            byte[] subData = new byte[subSize];
-                            raf.readFully(subData);
-                            String value = new String(subData, StandardCharsets.UTF_8).trim();
-                            if (value.endsWith("\0"))
-                                value = value.substring(0, value.length() - 1);
-
-                            System.out.println("      Value: " + value);
-
-                            if (subId.equals("INAM"))
-                                metadata.put("title", value);
-                            if (subId.equals("IART"))
-                                metadata.put("artist", value);
-                            if (subId.equals("IPRD"))
-                                metadata.put("album", value);
+    /** Front cover (or first picture) from FLAC PICTURE metadata blocks, or null. */
+    static byte[] readFlacPicture(File file) {
+        byte[] picture = null;
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            byte[] magic = new byte[4];
+            raf.readFully(magic);
+            if (!"fLaC".equals(new String(magic)))
+                return null;
 
-                            if (subSize % 2 != 0)
-                                subSize++;
-                            subPos += 8 + subSize;
-                        }
+            boolean lastBlock = false;
+            while (!lastBlock) {
+                byte header = raf.readByte();
+                lastBlock = (header & 0x80) != 0;
+                int type = header & 0x7F;
+                int length = ((raf.readByte() & 0xFF) << 16) | ((raf.readByte() & 0xFF) << 8) | (raf.readByte() & 0xFF);
+                long next = raf.getFilePointer() + length;
+
+                if (type == 6) { // PICTURE, all fields big-endian
+                    int pictureType = raf.readInt();
+                    raf.skipBytes(raf.readInt()); // mime
+                    raf.skipBytes(raf.readInt()); // description
+                    raf.skipBytes(16); // width, height, depth, colours
+                    int dataLength = raf.readInt();
+                    if (dataLength > 0 && dataLength <= MAX_PICTURE_BYTES
+                            && raf.getFilePointer() + dataLength <= next) {
+                        byte[] image = new byte[dataLength];
+                        raf.readFully(image);
+                        if (pictureType == 3)
+                            return image;
+                        if (picture == null)
+                            picture = image;
                     }
                 }
-
-                // Chunks are padded to even number of bytes
-                if (chunkSize % 2 != 0)
-                    chunkSize++;
-                pos += 8 + chunkSize;
+                raf.seek(next);
             }
         } catch (Exception e) {
-            System.err.println("Error parsing AIFF metadata: " + e.getMessage());
+            System.err.println("Error reading FLAC picture: " + e.getMessage());
         }
-        return metadata;
+        return picture;
     }
 
-    private static Map<String, Object> parseFlac(File file) {
+    static Map<String, Object> parseFlac(File file) {
         Map<String, Object> metadata = new HashMap<>();
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
+        try (CachedFile raf = BlockCache.get().open(file)) {
             byte[] magic = new byte[4];
             raf.readFully(magic);
             if (!"fLaC".equals(new String(magic)))
@@ -383,9 +341,9 @@ public class MetadataParser {
         return metadata;
     }
 
-    private static Map<String, Object> parseOgg(File file) {
+    static Map<String, Object> parseOgg(File file) {
         Map<String, Object> metadata = new HashMap<>();
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
+        try (CachedFile raf = BlockCache.get().open(file)) {
             // Scan first 5MB for "\x03vorbis" signature (increased from 100KB)
             int maxScan = 5 * 1024 * 1024;
             if (raf.length() < maxScan)
@@ -453,7 +411,18 @@ public class MetadataParser {
         return metadata;
     }
 
-    private static void parseCommentString(String comment, Map<String, Object> metadata) {
+    /** TCON may reference the ID3v1 table as "(17)" or plain "17". */
+    private static String resolveGenre(String text) {
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("^\\(?(\\d{1,3})\\)?$").matcher(text);
+        if (m.find()) {
+            int index = Integer.parseInt(m.group(1));
+            if (index < ID3V1_GENRES.length)
+                return ID3V1_GENRES[index];
+        }
+        return text;
+    }
+
+    static void parseCommentString(String comment, Map<String, Object> metadata) {
         int equalsIndex = comment.indexOf('=');
         if (equalsIndex > 0) {
             String key = comment.substring(0, equalsIndex).toUpperCase();
@@ -465,6 +434,10 @@ public class MetadataParser {
                 metadata.put("artist", value);
             if (key.equals("ALBUM"))
                 metadata.put("album", value);
+            if (key.equals("REPLAYGAIN_TRACK_GAIN"))
+                metadata.put("replaygain_track_gain", value);
+            if (key.equals("REPLAYGAIN_TRACK_PEAK"))
+                metadata.put("replaygain_track_peak", value);
         }
     }
 
@@ -475,133 +448,10 @@ public class MetadataParser {
                 ((data[offset + 3] & 0xFF) << 24);
     }
 
-    private static int getIntBE(byte[] data, int offset) {
+    static int getIntBE(byte[] data, int offset) {
         return ((data[offset] & 0xFF) << 24) |
                 ((data[offset + 1] & 0xFF) << 16) |
                 ((data[offset + 2] & 0xFF) << 8) |
                 (data[offset + 3] & 0xFF);
     }
-
-    private static Map<String, Object> parseM4a(File file) {
-        Map<String, Object> metadata = new HashMap<>();
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r")) {
-            long fileSize = raf.length();
-            long pos = 0;
-
-            System.out.println("Parsing M4A atoms for: " + file.getName());
-
-            while (pos < fileSize) {
-                raf.seek(pos);
-                if (fileSize - pos < 8)
-                    break;
-
-                byte[] sizeBytes = new byte[4];
-                raf.readFully(sizeBytes);
-                int size = getIntBE(sizeBytes, 0);
-
-                byte[] typeBytes = new byte[4];
-                raf.readFully(typeBytes);
-                String type = new String(typeBytes, StandardCharsets.ISO_8859_1);
-
-                System.out.println("  Found atom: " + type + ", size: " + size + " at " + pos);
-
-                if (type.equals("moov")) {
-                    // Dive into moov
-                    parseAtomChildren(raf, pos + 8, size - 8, metadata, "  ");
-                    break;
-                }
-
-                if (size == 1) {
-                    raf.readLong(); // skip extended size
-                    // Assuming standard atoms for now
-                }
-
-                if (size == 0)
-                    break;
-
-                pos += size;
-            }
-        } catch (Exception e) {
-            System.err.println("Error parsing M4A metadata: " + e.getMessage());
-        }
-
-        return metadata;
-    }
-
-    private static void parseAtomChildren(java.io.RandomAccessFile raf, long startPos, long length,
-            Map<String, Object> metadata, String indent) throws IOException {
-        long pos = startPos;
-        long endPos = startPos + length;
-
-        while (pos < endPos) {
-            raf.seek(pos);
-            if (endPos - pos < 8)
-                break;
-
-            byte[] sizeBytes = new byte[4];
-            raf.readFully(sizeBytes);
-            int size = getIntBE(sizeBytes, 0);
-
-            byte[] typeBytes = new byte[4];
-            raf.readFully(typeBytes);
-            String type = new String(typeBytes, StandardCharsets.ISO_8859_1);
-
-            System.out.println(indent + "Found sub-atom: " + type + ", size: " + size);
-
-            // Recursively search for metadata atoms
-            if (type.equals("udta") || type.equals("ilst") || type.equals("moov") || type.equals("trak")
-                    || type.equals("mdia") || type.equals("minf") || type.equals("stbl")) {
-                parseAtomChildren(raf, pos + 8, size - 8, metadata, indent + "  ");
-            } else if (type.equals("meta")) {
-                // meta atom usually has 4 bytes version/flags
-                raf.skipBytes(4);
-                parseAtomChildren(raf, pos + 12, size - 12, metadata, indent + "  ");
-            } else if (isMetadataAtom(type)) {
-                parseMetadataAtom(raf, pos + 8, size - 8, type, metadata);
-            }
-
-            pos += size;
-        }
-    }
-
-    private static boolean isMetadataAtom(String type) {
-        return type.equals("\u00A9nam") || type.equals("\u00A9ART") || type.equals("\u00A9alb") ||
-                type.equals("gnre") || type.equals("\u00A9day") || type.equals("trkn") || type.equals("disk");
-    }
-
-    private static void parseMetadataAtom(java.io.RandomAccessFile raf, long contentPos, long contentLength,
-            String type, Map<String, Object> metadata) throws IOException {
-        // Inside metadata atom is usually a 'data' atom
-        raf.seek(contentPos);
-        if (contentLength < 8)
-            return;
-
-        byte[] sizeBytes = new byte[4];
-        raf.readFully(sizeBytes);
-        int size = getIntBE(sizeBytes, 0);
-
-        byte[] typeBytes = new byte[4];
-        raf.readFully(typeBytes);
-        String subType = new String(typeBytes, StandardCharsets.ISO_8859_1);
-
-        if (subType.equals("data")) {
-            raf.skipBytes(8); // version/flags + reserved
-            int dataLen = size - 16;
-            if (dataLen > 0) {
-                byte[] data = new byte[dataLen];
-                raf.readFully(data);
-
-                // Try to guess encoding or just use UTF-8
-                String value = new String(data, StandardCharsets.UTF_8);
-                System.out.println("    Extracted " + type + ": " + value);
-
-                if (type.equals("\u00A9nam"))
-                    metadata.put("title", value);
-                if (type.equals("\u00A9ART"))
-                    metadata.put("artist", value);
-                if (type.equals("\u00A9alb"))
-                    metadata.put("album", value);
-            }
-        }
-    }
 }
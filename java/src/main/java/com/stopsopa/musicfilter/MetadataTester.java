@@ -1,10 +1,38 @@
 package com.stopsopa.musicfilter;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Without arguments, prints what {@link MetadataParser} finds in
+ * {@code music-sample} and in {@code tagged_test*} files. With a directory
+ * ({@code [--quiet] <dir>}), parses every audio file below it, reports the
+ * throughput and, for a {@link LibraryGenerator} library, compares the results
+ * with its manifest; exits with 1 on any mismatch.
+ */
 public class MetadataTester {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        boolean quiet = false;
+        File dir = null;
+        for (String arg : args) {
+            if (arg.equals("--quiet"))
+                quiet = true;
+            else
+                dir = new File(arg);
+        }
+        if (dir != null) {
+            System.exit(testLibrary(dir, quiet) == 0 ? 0 : 1);
+            return;
+        }
+
         File sampleDir = new File("music-sample");
         if (!sampleDir.exists()) {
             System.err.println("music-sample directory not found!");
@@ -22,7 +50,7 @@ public class MetadataTester {
         }
 
         // Also test generated files in root
-        File[] rootFiles = new File(".").listFiles((dir, name) -> name.startsWith("tagged_test"));
+        File[] rootFiles = new File(".").listFiles((dir2, name) -> name.startsWith("tagged_test"));
         if (rootFiles != null) {
             for (File file : rootFiles) {
                 testFile(file);
@@ -41,4 +69,69 @@ public class MetadataTester {
             e.printStackTrace();
         }
     }
+
+    /** Returns the number of mismatches; {@code quiet} silences the parser's own logging. */
+    private static int testLibrary(File dir, boolean quiet) throws IOException {
+        long scanStart = System.nanoTime();
+        List<File> files = new ArrayList<>();
+        collect(dir, files);
+        long scanNanos = System.nanoTime() - scanStart;
+
+        Map<String, String[]> expected = new HashMap<>();
+        File manifest = new File(dir, LibraryGenerator.MANIFEST);
+        if (manifest.isFile()) {
+            for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.startsWith("#"))
+                    expected.put(line.substring(0, line.indexOf('\t')), line.split("\t", -1));
+            }
+        }
+
+        PrintStream out = System.out;
+        if (quiet)
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int mismatches = 0;
+        int checked = 0;
+        long parseStart = System.nanoTime();
+        try {
+            for (File file : files) {
+                Map<String, Object> metadata = MetadataParser.parse(file);
+                String relative = dir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+                String[] fields = expected.get(relative);
+                if (fields == null)
+                    continue;
+                checked++;
+                String[] keys = { "title", "artist", "album" };
+                for (int i = 0; i < keys.length; i++) {
+                    String want = fields[3 + i];
+                    Object got = metadata.get(keys[i]);
+                    if (want.equals("?") || want.equals(got == null ? "" : got.toString()))
+                        continue;
+                    mismatches++;
+                    System.err.printf("%s (%s, %s): %s is '%s', expected '%s'%n", relative, fields[1], fields[2],
+                            keys[i], got, want);
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        double parseSeconds = (System.nanoTime() - parseStart) / 1e9;
+
+        System.out.printf("Scanned %d files in %.2f s, parsed in %.2f s (%.0f files/s)%n", files.size(),
+                scanNanos / 1e9, parseSeconds, files.size() / Math.max(parseSeconds, 1e-9));
+        if (!expected.isEmpty())
+            System.out.printf("Checked %d of %d manifest entries: %d mismatches%n", checked, expected.size(), mismatches);
+        return mismatches;
+    }
+
+    private static void collect(File file, List<File> into) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children)
+                    collect(child, into);
+            }
+        } else if (FormatRegistry.get().isCandidate(file)) {
+            into.add(file);
+        }
+    }
 }
@@ -0,0 +1,255 @@
+package com.stopsopa.musicfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Targeted ISO BMFF (MP4/M4A) tag reader. Instead of walking the whole atom
+ * tree it follows {@code moov/udta/meta/ilst} directly, reading only atom
+ * headers on the way, so {@code mdat} and the {@code trak} sample tables are
+ * never touched no matter where {@code moov} sits or how long the track is.
+ * Handles 64-bit {@code largesize} atoms and size-0 ("to end of parent") atoms.
+ */
+public class Mp4Atoms {
+
+    /** Upper bound for a single tag payload; larger items (cover art etc.) are skipped. */
+    private static final int MAX_ITEM_BYTES = 64 * 1024;
+
+    record Atom(String type, long start, long bodyStart, long end) {
+    }
+
+    /** Reads atom headers with one reusable buffer. */
+    static class Navigator {
+        private final CachedFile raf;
+        private final byte[] header = new byte[16];
+
+        Navigator(CachedFile raf) {
+            this.raf = raf;
+        }
+
+        /** Header of the atom at {@code pos}, or null if it is malformed / runs past {@code limit}. */
+        Atom read(long pos, long limit) throws IOException {
+            if (limit - pos < 8)
+                return null;
+            raf.seek(pos);
+            raf.readFully(header, 0, 8);
+            long size = MetadataParser.getIntBE(header, 0) & 0xFFFFFFFFL;
+            String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+            long bodyStart = pos + 8;
+
+            if (size == 1) {
+                if (limit - pos < 16)
+                    return null;
+                raf.readFully(header, 8, 8);
+                size = ((long) MetadataParser.getIntBE(header, 8) << 32)
+                        | (MetadataParser.getIntBE(header, 12) & 0xFFFFFFFFL);
+                bodyStart = pos + 16;
+            } else if (size == 0) {
+                size = limit - pos; // extends to the end of the enclosing atom / file
+            }
+
+            if (size < bodyStart - pos || size > limit - pos)
+                return null;
+            return new Atom(type, pos, bodyStart, pos + size);
+        }
+
+        /** First child of type {@code type} in [{@code from}, {@code to}), skipping siblings by size. */
+        Atom find(long from, long to, String type) throws IOException {
+            long pos = from;
+            while (pos < to) {
+                Atom atom = read(pos, to);
+                if (atom == null)
+                    return null;
+                if (atom.type().equals(type))
+                    return atom;
+                pos = atom.end();
+            }
+            return null;
+        }
+
+        Atom child(Atom parent, String type) throws IOException {
+            return parent == null ? null : find(parent.bodyStart(), parent.end(), type);
+        }
+
+        /**
+         * {@code meta} is a full box in MP4 but a plain container in QuickTime
+         * files; the latter starts straight with its {@code hdlr} child.
+         */
+        long metaChildrenStart(Atom meta) throws IOException {
+            if (meta.end() - meta.bodyStart() >= 8) {
+                raf.seek(meta.bodyStart() + 4);
+                raf.readFully(header, 0, 4);
+                if (header[0] == 'h' && header[1] == 'd' && header[2] == 'l' && header[3] == 'r')
+                    return meta.bodyStart();
+            }
+            return meta.bodyStart() + 4;
+        }
+    }
+
+    public static Map<String, Object> parse(File file) {
+        Map<String, Object> metadata = new HashMap<>();
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            System.out.println("Parsing M4A atoms for: " + file.getName());
+            Navigator nav = new Navigator(raf);
+
+            Atom moov = nav.find(0, raf.length(), "moov");
+            if (moov == null)
+                return metadata;
+
+            parseMvhd(raf, nav.child(moov, "mvhd"), metadata);
+
+            Atom meta = nav.child(nav.child(moov, "udta"), "meta");
+            if (meta == null)
+                meta = nav.child(moov, "meta"); // some muxers put it straight under moov
+            if (meta == null)
+                return metadata;
+
+            Atom ilst = nav.find(nav.metaChildrenStart(meta), meta.end(), "ilst");
+            if (ilst == null)
+                return metadata;
+
+            long pos = ilst.bodyStart();
+            while (pos < ilst.end()) {
+                Atom item = nav.read(pos, ilst.end());
+                if (item == null)
+                    break;
+                parseItem(raf, nav, item, metadata);
+                pos = item.end();
+            }
+        } catch (Exception e) {
+            System.err.println("Error parsing M4A metadata: " + e.getMessage());
+        }
+        return metadata;
+    }
+
+    /** Payload of {@code moov/udta/meta/ilst/covr/data}, or null. */
+    public static byte[] coverArt(File file) {
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            Navigator nav = new Navigator(raf);
+            Atom moov = nav.find(0, raf.length(), "moov");
+            Atom meta = nav.child(nav.child(moov, "udta"), "meta");
+            if (meta == null)
+                meta = nav.child(moov, "meta");
+            if (meta == null)
+                return null;
+
+            Atom ilst = nav.find(nav.metaChildrenStart(meta), meta.end(), "ilst");
+            Atom data = nav.child(nav.child(ilst, "covr"), "data");
+            if (data == null)
+                return null;
+
+            long length = data.end() - data.bodyStart() - 8; // type indicator + locale
+            if (length <= 0 || length > MetadataParser.MAX_PICTURE_BYTES)
+                return null;
+            byte[] image = new byte[(int) length];
+            raf.seek(data.bodyStart() + 8);
+            raf.readFully(image);
+            return image;
+        } catch (Exception e) {
+            System.err.println("Error reading M4A cover art: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void parseMvhd(CachedFile raf, Atom mvhd, Map<String, Object> metadata) throws IOException {
+        if (mvhd == null || mvhd.end() - mvhd.bodyStart() < 20)
+            return;
+        raf.seek(mvhd.bodyStart());
+        int version = raf.readUnsignedByte();
+        raf.skipBytes(3);
+        long timescale;
+        long duration;
+        if (version == 1) {
+            raf.skipBytes(16);
+            timescale = raf.readInt() & 0xFFFFFFFFL;
+            duration = raf.readLong();
+        } else {
+            raf.skipBytes(8);
+            timescale = raf.readInt() & 0xFFFFFFFFL;
+            duration = raf.readInt() & 0xFFFFFFFFL;
+        }
+        if (timescale > 0 && duration > 0)
+            metadata.put("duration", duration * 1_000_000L / timescale); // microseconds, like the SPIs
+    }
+
+    private static void parseItem(CachedFile raf, Navigator nav, Atom item, Map<String, Object> metadata)
+            throws IOException {
+        String freeformName = null;
+        long pos = item.bodyStart();
+        while (pos < item.end()) {
+            Atom child = nav.read(pos, item.end());
+            if (child == null)
+                return;
+            pos = child.end();
+
+            long length = child.end() - child.bodyStart();
+            if (child.type().equals("name") && length > 4 && length <= MAX_ITEM_BYTES) {
+                // '----' freeform item, e.g. com.apple.iTunes:replaygain_track_gain
+                byte[] name = new byte[(int) length - 4];
+                raf.seek(child.bodyStart() + 4);
+                raf.readFully(name);
+                freeformName = new String(name, StandardCharsets.UTF_8);
+            } else if (child.type().equals("data") && length >= 8) {
+                if (length - 8 > MAX_ITEM_BYTES) {
+                    System.out.println("    Skipping " + item.type() + " (" + length + " bytes)");
+                    continue;
+                }
+                raf.seek(child.bodyStart());
+                int dataType = raf.readInt() & 0x00FFFFFF; // version byte + 24 bit well-known type
+                raf.skipBytes(4); // locale
+                byte[] payload = new byte[(int) length - 8];
+                raf.readFully(payload);
+                decode(item.type(), freeformName, dataType, payload, metadata);
+            }
+        }
+    }
+
+    private static void decode(String type, String freeformName, int dataType, byte[] payload,
+            Map<String, Object> metadata) {
+        switch (type) {
+            case "\u00A9nam" -> putText(metadata, "title", payload);
+            case "\u00A9ART" -> putText(metadata, "artist", payload);
+            case "\u00A9alb" -> putText(metadata, "album", payload);
+            case "aART" -> putText(metadata, "albumartist", payload);
+            case "\u00A9day" -> putText(metadata, "year", payload);
+            case "\u00A9gen" -> putText(metadata, "genre", payload);
+            case "gnre" -> {
+                // ID3v1 genre index, stored 1-based
+                if (payload.length >= 2) {
+                    int index = (((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF)) - 1;
+                    if (index >= 0 && index < MetadataParser.ID3V1_GENRES.length)
+                        metadata.put("genre", MetadataParser.ID3V1_GENRES[index]);
+                }
+            }
+            case "trkn" -> putNumberPair(metadata, "track", payload);
+            case "disk" -> putNumberPair(metadata, "disc", payload);
+            case "----" -> {
+                if (freeformName != null && dataType == 1)
+                    MetadataParser.parseCommentString(
+                            freeformName + "=" + new String(payload, StandardCharsets.UTF_8).trim(), metadata);
+            }
+            default -> {
+            }
+        }
+    }
+
+    private static void putText(Map<String, Object> metadata, String key, byte[] payload) {
+        String value = new String(payload, StandardCharsets.UTF_8).trim();
+        System.out.println("    Extracted " + key + ": " + value);
+        if (!value.isEmpty())
+            metadata.put(key, value);
+    }
+
+    /** trkn/disk: 2 reserved bytes, 16 bit number, 16 bit total. */
+    private static void putNumberPair(Map<String, Object> metadata, String key, byte[] payload) {
+        if (payload.length < 4)
+            return;
+        int number = ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+        int total = payload.length >= 6 ? ((payload[4] & 0xFF) << 8) | (payload[5] & 0xFF) : 0;
+        if (number > 0)
+            metadata.put(key, total > 0 ? number + "/" + total : String.valueOf(number));
+    }
+}
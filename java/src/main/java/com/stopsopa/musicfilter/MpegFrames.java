@@ -0,0 +1,136 @@
+package com.stopsopa.musicfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MPEG audio (MP1/2/3) frame headers and the Xing/Info header written by
+ * VBR encoders, read without decoding.
+ */
+public class MpegFrames {
+
+    private static final int[][] BITRATES = {
+            { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 }, // MPEG-1 layer I
+            { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 }, // MPEG-1 layer II
+            { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 }, // MPEG-1 layer III
+            { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 }, // MPEG-2/2.5 layer I
+            { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }, // MPEG-2/2.5 layer II and III
+    };
+    private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    /** {@code version} is 1, 2 or 25 (MPEG-2.5); {@code length} includes the header. */
+    record FrameHeader(int version, int layer, int bitrateKbps, int sampleRate, boolean mono, int length,
+            int samplesPerFrame) {
+    }
+
+    /** Xing/Info header contents; -1 where the encoder left a field out. */
+    record XingHeader(long frames, long bytes) {
+    }
+
+    /** Header at {@code off}, or null if those four bytes aren't a valid frame header. */
+    static FrameHeader parse(byte[] b, int off) {
+        if ((b[off] & 0xFF) != 0xFF || (b[off + 1] & 0xE0) != 0xE0)
+            return null;
+        int versionBits = (b[off + 1] >> 3) & 0x03;
+        int layerBits = (b[off + 1] >> 1) & 0x03;
+        int bitrateIndex = (b[off + 2] >> 4) & 0x0F;
+        int rateIndex = (b[off + 2] >> 2) & 0x03;
+        if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3)
+            return null; // reserved values; free-format streams aren't supported either
+
+        int version = versionBits == 3 ? 1 : versionBits == 2 ? 2 : 25;
+        int layer = 4 - layerBits;
+        int bitrate = BITRATES[version == 1 ? layer - 1 : (layer == 1 ? 3 : 4)][bitrateIndex];
+        int sampleRate = SAMPLE_RATES[rateIndex] / (version == 1 ? 1 : version == 2 ? 2 : 4);
+        int padding = (b[off + 2] >> 1) & 1;
+        boolean mono = ((b[off + 3] >> 6) & 0x03) == 3;
+
+        int samples = layer == 1 ? 384 : (layer == 3 && version != 1) ? 576 : 1152;
+        int length = layer == 1
+                ? (12 * bitrate * 1000 / sampleRate + padding) * 4
+                : samples / 8 * bitrate * 1000 / sampleRate + padding;
+        return new FrameHeader(version, layer, bitrate, sampleRate, mono, length, samples);
+    }
+
+    /** Offset after a leading ID3v2 tag, or 0. */
+    static long audioStart(CachedFile raf) throws IOException {
+        if (raf.length() < 10)
+            return 0;
+        byte[] b = new byte[10];
+        raf.seek(0);
+        raf.readFully(b);
+        if (b[0] != 'I' || b[1] != 'D' || b[2] != '3')
+            return 0;
+        long size = ((b[6] & 0x7F) << 21) | ((b[7] & 0x7F) << 14) | ((b[8] & 0x7F) << 7) | (b[9] & 0x7F);
+        return 10 + size + ((b[5] & 0x10) != 0 ? 10 : 0);
+    }
+
+    /**
+     * Stream properties of an MPEG audio file: {@code duration} in
+     * microseconds (like the SPIs), from the Xing/Info frame count or, for
+     * CBR files without one, from the audio byte count; plus
+     * {@code mp3.bitrate} and {@code mp3.frequency.hz}. Tags are left to
+     * {@link MetadataParser}.
+     */
+    static Map<String, Object> metadata(File file) {
+        Map<String, Object> metadata = new HashMap<>();
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            long start = audioStart(raf);
+            if (start + 4 > raf.length())
+                return metadata;
+            byte[] header = new byte[4];
+            raf.seek(start);
+            raf.readFully(header);
+            FrameHeader first = parse(header, 0);
+            if (first == null)
+                return metadata;
+            metadata.put("mp3.bitrate", first.bitrateKbps() * 1000);
+            metadata.put("mp3.frequency.hz", first.sampleRate());
+
+            XingHeader xing = readXing(raf, start, first);
+            if (xing != null && xing.frames() > 0) {
+                metadata.put("duration", xing.frames() * first.samplesPerFrame() * 1_000_000L / first.sampleRate());
+            } else {
+                long end = raf.length();
+                if (end - start >= 128) {
+                    raf.seek(end - 128);
+                    raf.readFully(header, 0, 3);
+                    if (header[0] == 'T' && header[1] == 'A' && header[2] == 'G')
+                        end -= 128;
+                }
+                metadata.put("duration", (end - start) * 8_000L / first.bitrateKbps());
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading MPEG frames of " + file.getName() + ": " + e.getMessage());
+        }
+        return metadata;
+    }
+
+    /** Xing/Info header inside the frame at {@code offset}, or null. */
+    static XingHeader readXing(CachedFile raf, long offset, FrameHeader frame) throws IOException {
+        int sideInfo = frame.version() == 1 ? (frame.mono() ? 17 : 32) : (frame.mono() ? 9 : 17);
+        long pos = offset + 4 + sideInfo;
+        if (frame.layer() != 3 || pos + 16 > raf.length() || 4 + sideInfo + 16 > frame.length())
+            return null;
+        byte[] b = new byte[16];
+        raf.seek(pos);
+        raf.readFully(b);
+        boolean xing = (b[0] == 'X' && b[1] == 'i' && b[2] == 'n' && b[3] == 'g')
+                || (b[0] == 'I' && b[1] == 'n' && b[2] == 'f' && b[3] == 'o');
+        if (!xing)
+            return null;
+        int flags = MetadataParser.getIntBE(b, 4);
+        int field = 8;
+        long frames = -1;
+        long bytes = -1;
+        if ((flags & 1) != 0) {
+            frames = MetadataParser.getIntBE(b, field) & 0xFFFFFFFFL;
+            field += 4;
+        }
+        if ((flags & 2) != 0)
+            bytes = MetadataParser.getIntBE(b, field) & 0xFFFFFFFFL;
+        return new XingHeader(frames, bytes);
+    }
+}
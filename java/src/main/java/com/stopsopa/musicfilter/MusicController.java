@@ -1,19 +1,34 @@
 package com.stopsopa.musicfilter;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
 import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
-import javafx.collections.MapChangeListener;
+import javafx.collections.ListChangeListener;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Parent;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.Label;
+import javafx.scene.control.MenuButton;
+import javafx.scene.control.MenuItem;
+import javafx.scene.control.RadioMenuItem;
 import javafx.scene.control.Slider;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.Spinner;
+import javafx.scene.control.SplitMenuButton;
+import javafx.scene.control.TableCell;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TableRow;
+import javafx.scene.control.ToggleButton;
+import javafx.scene.control.ToggleGroup;
+import javafx.scene.control.Tooltip;
+import javafx.scene.image.ImageView;
 import javafx.scene.input.DragEvent;
 import javafx.scene.input.Dragboard;
 import javafx.scene.input.KeyCode;
@@ -22,29 +37,107 @@ import javafx.scene.input.TransferMode;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
-import javafx.scene.media.Media;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Mixer;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.text.CollationKey;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.prefs.Preferences;
 
 public class MusicController {
 
+    private static final int NEARBY_ROWS = 5;
+    private static final long SESSION_SAVE_SECONDS = 60;
+    private static final int VALIDATION_BATCH = 1000;
+    // up to this many rows are inserted/moved one by one, more are merged in one pass
+    private static final int SMALL_CHANGE = 32;
+    // selection changes closer together than this are navigation; playback waits for the row to settle
+    private static final Duration SETTLE_DELAY = Duration.millis(250);
+    private static final Preferences PREFS = Preferences.userNodeForPackage(MusicController.class);
+
     private final TableView<AudioFile> tableView;
+    private final TableColumn<AudioFile, String> filenameCol;
     private AudioPlayer audioPlayer;
     private final Slider timeSlider;
     private final Button playPauseButton;
     private final Label timeLabel;
+    private final Button loudnessButton;
+    private final ImageView nowPlayingArt;
+    private final SpectrumMeter spectrumMeter = new SpectrumMeter(140, 32);
+    private final SkimMode skim = new SkimMode();
+    private final SplitMenuButton checkButton;
+    private final SplitMenuButton exportButton;
+    private final CheckMenuItem verifyExport;
+    private final MenuButton outputButton;
+    private Duration resumeAt; // position to restore once the replacement player is up
+    private Exporter exporter;
+    private final ToggleButton skimButton;
+    private final Spinner<Integer> skimSecondsSpinner;
+    private final Spinner<Integer> skimStartSpinner;
     private boolean isSliderDragging = false;
     private Duration duration;
+    private Duration skimStop; // end of the current excerpt in skim mode
+    private long advanceRequestedAt;
+    private boolean quietSelection; // selection changes don't start playback meanwhile
+    // bumped on the FX thread by every change the session snapshot holds (rows, their values, sort, selection)
+    private long sessionChanges;
+    private volatile long savedSessionChanges = -1;
+    private final InvalidationListener sessionChangeListener = obs -> sessionChanges++;
+    private long itemsGeneration; // bumped on every change to the rows, to detect stale background sorts
+    private final Set<AudioFile> unsortedRows = new LinkedHashSet<>();
+    private final PauseTransition repositionDelay = new PauseTransition(Duration.millis(200));
+    private final PauseTransition playbackSettle = new PauseTransition(SETTLE_DELAY);
+    private long lastSelectionChange;
+    private volatile int playGeneration; // bumped whenever the player to create changes; stale ones are dropped
+    private final Consumer<AudioFile> sortValueListener = row -> {
+        sessionChanges++;
+        sortValueChanged(row);
+    };
+    private final ExecutorService rowWorker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "table-rows");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService playerOpener = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "player-open");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService sessionSaver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Tag parsing for new rows: a bounded pool rather than a thread per file, so a big drop doesn't spawn thousands
+    private static final AtomicInteger METADATA_THREADS = new AtomicInteger();
+    private static final ExecutorService METADATA_LOADER = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "metadata-" + METADATA_THREADS.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
 
     public static class AudioFile {
         private final ObjectProperty<File> file;
@@ -52,6 +145,25 @@ public class MusicController {
         private final SimpleStringProperty title;
         private final SimpleStringProperty artist;
         private final SimpleStringProperty album;
+        private final SimpleStringProperty gain;
+        private final ObjectProperty<LoudnessAnalyzer.Result> loudness;
+        private final ObjectProperty<IntegrityScanner.Result> integrity = new SimpleObjectProperty<>();
+        // file size and mtime as of the last metadata parse, kept in the session snapshot
+        private volatile long length;
+        private volatile long modified;
+        // collation keys for RowOrder, computed on first use and whenever the value changes
+        private volatile SortKey filenameKey;
+        private volatile SortKey titleKey;
+        private volatile SortKey artistKey;
+        private volatile SortKey albumKey;
+        Consumer<AudioFile> onSortValueChanged;
+
+        /** A key and the exact string it was computed from; a stale key is recomputed. */
+        private record SortKey(String source, CollationKey key) {
+            static SortKey of(String source) {
+                return new SortKey(source, RowOrder.naturalKey(source));
+            }
+        }
 
         public AudioFile(File file) {
             this.file = new SimpleObjectProperty<>(file);
@@ -59,39 +171,50 @@ public class MusicController {
             this.title = new SimpleStringProperty("<not available>");
             this.artist = new SimpleStringProperty("<not available>");
             this.album = new SimpleStringProperty("<not available>");
+            this.gain = new SimpleStringProperty("");
+            this.loudness = new SimpleObjectProperty<>();
             loadMetadata();
         }
 
+        /** A row restored from the session snapshot; nothing is parsed. */
+        AudioFile(SessionSnapshot.Track track) {
+            this.file = new SimpleObjectProperty<>(track.file());
+            this.filename = new SimpleStringProperty(track.file().getName());
+            this.title = new SimpleStringProperty(track.title());
+            this.artist = new SimpleStringProperty(track.artist());
+            this.album = new SimpleStringProperty(track.album());
+            this.gain = new SimpleStringProperty("");
+            this.loudness = new SimpleObjectProperty<>();
+            this.length = track.length();
+            this.modified = track.modified();
+            setLoudness(track.loudness());
+        }
+
+        SessionSnapshot.Track toTrack() {
+            return new SessionSnapshot.Track(file.get(), length, modified, title.get(), artist.get(), album.get(),
+                    loudness.get());
+        }
+
         private void loadMetadata() {
             File f = file.get();
             String name = f.getName().toLowerCase();
 
-            if (isJavaFXSupported(name)) {
+            // Format detection reads the file, so it happens off the FX thread
+            METADATA_LOADER.execute(() -> {
+                length = f.length();
+                modified = f.lastModified();
+                AudioFileType type = FormatRegistry.get().typeOf(f);
                 try {
-                    Media media = new Media(f.toURI().toString());
-                    media.getMetadata().addListener((MapChangeListener<String, Object>) change -> {
-                        if (change.wasAdded()) {
-                            System.out.println("JavaFX Metadata for " + name + ": " + media.getMetadata());
-                            updateMetadata(media.getMetadata());
-                        }
-                    });
-                } catch (Exception e) {
-                    System.err.println("Error loading JavaFX metadata for " + name + ": " + e.getMessage());
-                    e.printStackTrace();
-                }
-            } else {
-                // Try JavaSound properties for FLAC/OGG/AAC
-                new Thread(() -> {
-                    try {
-                        Map<String, Object> props = new java.util.HashMap<>();
+                    Map<String, Object> props = new java.util.HashMap<>();
 
-                        // 1. Try manual parsing first (more reliable for standard tags)
-                        props.putAll(MetadataParser.parse(f));
+                    // 1. Try manual parsing first (more reliable for standard tags)
+                    props.putAll(MetadataParser.parse(f));
 
-                        // 2. Try SPI properties as fallback/supplement
+                    // 2. Try SPI properties as fallback/supplement (there is no MP3 SPI; ID3 and Xing cover it)
+                    if (type != AudioFileType.MP3) {
                         try {
                             AudioFileFormat aff;
-                            if (name.endsWith(".ogg")) {
+                            if (type == AudioFileType.OGG) {
                                 aff = new javazoom.spi.vorbis.sampled.file.VorbisAudioFileReader()
                                         .getAudioFileFormat(f);
                             } else {
@@ -101,89 +224,145 @@ public class MusicController {
                         } catch (Exception e) {
                             // Ignore SPI errors if manual parsing worked
                         }
-
-                        System.out.println("Metadata properties for " + name + ": " + props);
-                        updateMetadata(props);
-                    } catch (Exception e) {
-                        System.err.println("Error loading metadata for " + name + ": " + e.getMessage());
-                        e.printStackTrace();
                     }
-                }).start();
-            }
-        }
 
-        private boolean isJavaFXSupported(String name) {
-            return name.endsWith(".mp3");
-            // Removed m4a/aac/wav/aiff from JavaFX support to force manual parsing
+                    System.out.println("Metadata properties for " + name + ": " + props);
+                    updateMetadata(props);
+                } catch (Exception e) {
+                    System.err.println("Error loading metadata for " + name + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+            });
         }
 
         private void updateMetadata(Map<String, Object> metadata) {
-            Platform.runLater(() -> {
-                // 1. Standard keys (lowercase from MetadataParser)
-                String newTitle = "";
-                String newArtist = "";
-                String newAlbum = "";
-
-                if (metadata.containsKey("title"))
-                    newTitle = (String) metadata.get("title");
-                if (metadata.containsKey("artist"))
-                    newArtist = (String) metadata.get("artist");
-                if (metadata.containsKey("album"))
-                    newAlbum = (String) metadata.get("album");
-
-                // 2. Case-insensitive keys (from SPIs)
-                if (newTitle.isEmpty() || newArtist.isEmpty() || newAlbum.isEmpty()) {
-                    for (String key : metadata.keySet()) {
-                        String k = key.toLowerCase();
-                        if (newTitle.isEmpty() && k.equals("title"))
-                            newTitle = metadata.get(key).toString();
-                        if (newArtist.isEmpty() && k.equals("artist"))
-                            newArtist = metadata.get(key).toString();
-                        if (newAlbum.isEmpty() && k.equals("album"))
-                            newAlbum = metadata.get(key).toString();
-                    }
+            // 1. Standard keys (lowercase from MetadataParser)
+            String newTitle = "";
+            String newArtist = "";
+            String newAlbum = "";
+
+            if (metadata.containsKey("title"))
+                newTitle = (String) metadata.get("title");
+            if (metadata.containsKey("artist"))
+                newArtist = (String) metadata.get("artist");
+            if (metadata.containsKey("album"))
+                newAlbum = (String) metadata.get("album");
+
+            // 2. Case-insensitive keys (from SPIs)
+            if (newTitle.isEmpty() || newArtist.isEmpty() || newAlbum.isEmpty()) {
+                for (String key : metadata.keySet()) {
+                    String k = key.toLowerCase();
+                    if (newTitle.isEmpty() && k.equals("title"))
+                        newTitle = metadata.get(key).toString();
+                    if (newArtist.isEmpty() && k.equals("artist"))
+                        newArtist = metadata.get(key).toString();
+                    if (newAlbum.isEmpty() && k.equals("album"))
+                        newAlbum = metadata.get(key).toString();
                 }
+            }
 
-                // 3. Scan values for "KEY=VALUE" patterns (Vorbis comments via SPI)
-                if (newTitle.isEmpty() || newArtist.isEmpty() || newAlbum.isEmpty()) {
-                    for (Object value : metadata.values()) {
-                        if (value instanceof String) {
-                            String v = (String) value;
-                            int eq = v.indexOf('=');
-                            if (eq > 0) {
-                                String k = v.substring(0, eq).toUpperCase();
-                                String val = v.substring(eq + 1);
-                                if (newTitle.isEmpty() && k.equals("TITLE"))
-                                    newTitle = val;
-                                if (newArtist.isEmpty() && k.equals("ARTIST"))
-                                    newArtist = val;
-                                if (newAlbum.isEmpty() && k.equals("ALBUM"))
-                                    newAlbum = val;
-                            }
+            // 3. Scan values for "KEY=VALUE" patterns (Vorbis comments via SPI)
+            if (newTitle.isEmpty() || newArtist.isEmpty() || newAlbum.isEmpty()) {
+                for (Object value : metadata.values()) {
+                    if (value instanceof String) {
+                        String v = (String) value;
+                        int eq = v.indexOf('=');
+                        if (eq > 0) {
+                            String k = v.substring(0, eq).toUpperCase();
+                            String val = v.substring(eq + 1);
+                            if (newTitle.isEmpty() && k.equals("TITLE"))
+                                newTitle = val;
+                            if (newArtist.isEmpty() && k.equals("ARTIST"))
+                                newArtist = val;
+                            if (newAlbum.isEmpty() && k.equals("ALBUM"))
+                                newAlbum = val;
                         }
                     }
                 }
+            }
+
+            // 4. Fallback for specific SPI keys
+            if (newTitle.isEmpty() && metadata.containsKey("ogg.comment.title"))
+                newTitle = metadata.get("ogg.comment.title").toString();
+            if (newArtist.isEmpty() && metadata.containsKey("ogg.comment.artist"))
+                newArtist = metadata.get("ogg.comment.artist").toString();
+            if (newAlbum.isEmpty() && metadata.containsKey("ogg.comment.album"))
+                newAlbum = metadata.get("ogg.comment.album").toString();
+
+            String resolvedTitle = newTitle.isEmpty() ? file.get().getName() : newTitle;
+            String resolvedArtist = newArtist;
+            String resolvedAlbum = newAlbum;
+            // keys only for columns that have been sorted by, computed here rather than on the FX thread
+            SortKey newTitleKey = titleKey == null ? null : SortKey.of(resolvedTitle);
+            SortKey newArtistKey = artistKey == null || resolvedArtist.isEmpty() ? null : SortKey.of(resolvedArtist);
+            SortKey newAlbumKey = albumKey == null || resolvedAlbum.isEmpty() ? null : SortKey.of(resolvedAlbum);
 
-                // 4. Fallback for specific SPI keys
-                if (newTitle.isEmpty() && metadata.containsKey("ogg.comment.title"))
-                    newTitle = metadata.get("ogg.comment.title").toString();
-                if (newArtist.isEmpty() && metadata.containsKey("ogg.comment.artist"))
-                    newArtist = metadata.get("ogg.comment.artist").toString();
-                if (newAlbum.isEmpty() && metadata.containsKey("ogg.comment.album"))
-                    newAlbum = metadata.get("ogg.comment.album").toString();
-
-                if (!newTitle.isEmpty())
-                    this.title.set(newTitle);
-                else
-                    this.title.set(file.get().getName());
-
-                if (!newArtist.isEmpty())
-                    this.artist.set(newArtist);
-                if (!newAlbum.isEmpty())
-                    this.album.set(newAlbum);
+            Platform.runLater(() -> {
+                title.set(resolvedTitle);
+                if (!resolvedArtist.isEmpty())
+                    artist.set(resolvedArtist);
+                if (!resolvedAlbum.isEmpty())
+                    album.set(resolvedAlbum);
+                if (newTitleKey != null)
+                    titleKey = newTitleKey;
+                if (newArtistKey != null)
+                    artistKey = newArtistKey;
+                if (newAlbumKey != null)
+                    albumKey = newAlbumKey;
+
+                // 5. ReplayGain tags, unless we've measured the track ourselves
+                if (loudness.get() == null && metadata.get("replaygain_track_gain") instanceof String trackGain) {
+                    try {
+                        double gainDb = Double.parseDouble(trackGain.replaceAll("(?i)\\s*dB\\s*$", "").trim());
+                        double peak = metadata.get("replaygain_track_peak") instanceof String trackPeak
+                                ? Double.parseDouble(trackPeak.trim())
+                                : 0.0;
+                        setLoudness(LoudnessAnalyzer.Result.fromTags(gainDb, peak));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Ignoring malformed ReplayGain tag for " + getFilename() + ": " + trackGain);
+                    }
+                }
+                sortValueChanged();
             });
         }
 
+        public LoudnessAnalyzer.Result getLoudness() {
+            return loudness.get();
+        }
+
+        public void setLoudness(LoudnessAnalyzer.Result result) {
+            loudness.set(result);
+            gain.set(result == null ? "" : String.format("%+.1f dB", result.gainDb()));
+            sortValueChanged();
+        }
+
+        private void sortValueChanged() {
+            if (onSortValueChanged != null)
+                onSortValueChanged.accept(this);
+        }
+
+        static boolean hasSortKey(String columnId) {
+            return switch (columnId) {
+                case "filename", "title", "artist", "album" -> true;
+                default -> false;
+            };
+        }
+
+        /** Natural-order collation key of a text column's current value; any thread. */
+        CollationKey sortKey(String columnId) {
+            return switch (columnId) {
+                case "filename" -> (filenameKey = keyFor(filenameKey, filename.get())).key();
+                case "title" -> (titleKey = keyFor(titleKey, title.get())).key();
+                case "artist" -> (artistKey = keyFor(artistKey, artist.get())).key();
+                case "album" -> (albumKey = keyFor(albumKey, album.get())).key();
+                default -> throw new IllegalArgumentException("No sort key for column " + columnId);
+            };
+        }
+
+        private static SortKey keyFor(SortKey current, String value) {
+            return current != null && current.source() == value ? current : SortKey.of(value);
+        }
+
         public File getFile() {
             return file.get();
         }
@@ -212,53 +391,154 @@ public class MusicController {
             return album.get();
         }
 
+        public IntegrityScanner.Result getIntegrity() {
+            return integrity.get();
+        }
+
+        public ObjectProperty<IntegrityScanner.Result> integrityProperty() {
+            return integrity;
+        }
+
+        public void setIntegrity(IntegrityScanner.Result result) {
+            integrity.set(result);
+        }
+
         public boolean isDeleted() {
             return file.get().getParentFile().getName().equals("_deleted");
         }
     }
 
+    /** Thumbnail cell; art is requested lazily and dropped if the cell got reused meanwhile. */
+    private static class CoverArtCell extends TableCell<AudioFile, AudioFile> {
+        private final ImageView imageView = new ImageView();
+        // bumped on every updateItem; art requests compare against it off the FX thread
+        private volatile int generation;
+
+        CoverArtCell() {
+            imageView.setFitWidth(CoverArtCache.ROW_SIZE);
+            imageView.setFitHeight(CoverArtCache.ROW_SIZE);
+            imageView.setPreserveRatio(true);
+            setGraphic(imageView);
+        }
+
+        @Override
+        protected void updateItem(AudioFile item, boolean empty) {
+            super.updateItem(item, empty);
+            int requested = ++generation;
+            if (item == null || empty) {
+                imageView.setImage(null);
+                return;
+            }
+            File file = item.getFile();
+            imageView.setImage(CoverArtCache.get().getIfPresent(file, CoverArtCache.ROW_SIZE));
+            if (imageView.getImage() == null) {
+                CoverArtCache.get().request(file, CoverArtCache.ROW_SIZE, () -> generation == requested,
+                        imageView::setImage);
+            }
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public MusicController(Stage stage) {
         this.tableView = new TableView<>();
 
-        TableColumn<AudioFile, String> filenameCol = new TableColumn<>("Filename");
+        TableColumn<AudioFile, AudioFile> artCol = new TableColumn<>("");
+        artCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue()));
+        artCol.setCellFactory(col -> new CoverArtCell());
+        artCol.setSortable(false);
+        artCol.setMinWidth(CoverArtCache.ROW_SIZE + 8);
+        artCol.setMaxWidth(CoverArtCache.ROW_SIZE + 8);
+
+        filenameCol = new TableColumn<>("Filename");
+        filenameCol.setId("filename");
         filenameCol.setCellValueFactory(cellData -> cellData.getValue().filename);
 
         TableColumn<AudioFile, String> titleCol = new TableColumn<>("Title");
+        titleCol.setId("title");
         titleCol.setCellValueFactory(cellData -> cellData.getValue().title);
 
         TableColumn<AudioFile, String> artistCol = new TableColumn<>("Artist");
+        artistCol.setId("artist");
         artistCol.setCellValueFactory(cellData -> cellData.getValue().artist);
 
         TableColumn<AudioFile, String> albumCol = new TableColumn<>("Album");
+        albumCol.setId("album");
         albumCol.setCellValueFactory(cellData -> cellData.getValue().album);
 
-        tableView.getColumns().addAll(filenameCol, titleCol, artistCol, albumCol);
+        TableColumn<AudioFile, String> gainCol = new TableColumn<>("Gain");
+        gainCol.setId("gain");
+        gainCol.setCellValueFactory(cellData -> cellData.getValue().gain);
+        gainCol.setMaxWidth(90);
+
+        tableView.getColumns().addAll(artCol, filenameCol, titleCol, artistCol, albumCol, gainCol);
+        // Uniform rows let the virtual flow skip per-row layout while scrolling
+        tableView.setFixedCellSize(CoverArtCache.ROW_SIZE + 4);
         tableView.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY_FLEX_LAST_COLUMN);
 
+        // Header clicks sort in the background; drops and metadata updates merge into the sorted rows
+        tableView.setSortPolicy(tv -> {
+            sortRows();
+            return true;
+        });
+        tableView.getItems().addListener((ListChangeListener<AudioFile>) change -> {
+            itemsGeneration++;
+            sessionChanges++;
+            while (change.next()) {
+                for (AudioFile row : change.getRemoved())
+                    row.fileProperty().removeListener(sessionChangeListener);
+                if (change.wasAdded()) {
+                    for (AudioFile row : change.getAddedSubList()) {
+                        row.onSortValueChanged = sortValueListener;
+                        row.fileProperty().addListener(sessionChangeListener);
+                    }
+                }
+            }
+        });
+        repositionDelay.setOnFinished(e -> repositionUnsortedRows());
+
         tableView.setRowFactory(tv -> new TableRow<>() {
+            private final InvalidationListener refresh = obs -> updateState();
+            private AudioFile watched;
+
             @Override
             protected void updateItem(AudioFile item, boolean empty) {
                 super.updateItem(item, empty);
-                if (item == null || empty) {
-                    setStyle("");
-                    setOpacity(1.0);
-                } else {
-                    updateOpacity(item);
-                    item.fileProperty().addListener((obs, oldFile, newFile) -> updateOpacity(item));
+                if (watched != null) {
+                    watched.fileProperty().removeListener(refresh);
+                    watched.integrityProperty().removeListener(refresh);
+                }
+                watched = empty ? null : item;
+                if (watched != null) {
+                    watched.fileProperty().addListener(refresh);
+                    watched.integrityProperty().addListener(refresh);
                 }
+                updateState();
             }
 
-            private void updateOpacity(AudioFile item) {
-                setOpacity(item.isDeleted() ? 0.5 : 1.0);
+            /** Deleted rows are dimmed, rows that failed the integrity check are red. */
+            private void updateState() {
+                IntegrityScanner.Result integrity = watched == null ? null : watched.getIntegrity();
+                boolean failed = integrity != null && integrity.failed();
+                setOpacity(watched != null && watched.isDeleted() ? 0.5 : 1.0);
+                setStyle(failed ? "-fx-text-background-color: #c0392b;" : "");
+                setTooltip(failed ? new Tooltip(integrity.toString()) : null);
             }
         });
 
+        // several rows can be selected for export; playback follows the focused one
+        tableView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        tableView.getSelectionModel().selectedIndexProperty().addListener(sessionChangeListener);
         tableView.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
-            if (newValue != null) {
-                playFile(newValue);
+            if (newValue != null && !quietSelection) {
+                updateBlockCacheHints();
+                selectionChanged(newValue);
             }
         });
+        playbackSettle.setOnFinished(e -> {
+            AudioFile selected = tableView.getSelectionModel().getSelectedItem();
+            if (selected != null)
+                playFile(selected);
+        });
 
         timeSlider = new Slider();
         HBox.setHgrow(timeSlider, Priority.ALWAYS);
@@ -270,18 +550,225 @@ public class MusicController {
 
         timeLabel = new Label("00:00 / 00:00");
 
+        nowPlayingArt = new ImageView();
+        nowPlayingArt.setFitWidth(CoverArtCache.NOW_PLAYING_SIZE / 2.0);
+        nowPlayingArt.setFitHeight(CoverArtCache.NOW_PLAYING_SIZE / 2.0);
+        nowPlayingArt.setPreserveRatio(true);
+
+        loudnessButton = new Button("Loudness");
+        loudnessButton.setOnAction(e -> analyzeLoudness());
+
+        MenuItem fullCheck = new MenuItem("Full decode check");
+        fullCheck.setOnAction(e -> checkIntegrity(IntegrityScanner.Tier.FULL));
+        checkButton = new SplitMenuButton(fullCheck);
+        checkButton.setText("Check");
+        checkButton.setTooltip(new Tooltip("Look for truncated files in the selected rows, or all rows"));
+        checkButton.setOnAction(e -> checkIntegrity(IntegrityScanner.Tier.QUICK));
+
+        verifyExport = new CheckMenuItem("Verify copies");
+        verifyExport.setSelected(PREFS.getBoolean("export.verify", false));
+        verifyExport.selectedProperty().addListener((obs, was, verify) -> PREFS.putBoolean("export.verify", verify));
+        exportButton = new SplitMenuButton(verifyExport);
+        exportButton.setText("Export");
+        exportButton.setTooltip(new Tooltip("Copy the selected rows, or all rows not deleted, to a folder"));
+        exportButton.setOnAction(e -> exportTracks());
+
+        outputButton = new MenuButton("Output");
+        outputButton.setTooltip(new Tooltip("Audio device"));
+        outputButton.setOnShowing(e -> fillOutputMenu());
+
+        skimButton = new ToggleButton("Skim");
+        skimButton.selectedProperty().bindBidirectional(skim.enabledProperty());
+        skimButton.setTooltip(new Tooltip("Play an excerpt of each track and move on (S)"));
+        skimSecondsSpinner = new Spinner<>(3, 120, skim.excerptSecondsProperty().get());
+        skimSecondsSpinner.setPrefWidth(70);
+        skimSecondsSpinner.setTooltip(new Tooltip("Excerpt length (s)"));
+        skim.excerptSecondsProperty().bind(skimSecondsSpinner.valueProperty());
+        skimStartSpinner = new Spinner<>(0, 95, skim.startPercentProperty().get(), 5);
+        skimStartSpinner.setPrefWidth(70);
+        skimStartSpinner.setTooltip(new Tooltip("Excerpt start (% of track)"));
+        skim.startPercentProperty().bind(skimStartSpinner.valueProperty());
+        skim.enabledProperty().addListener((obs, wasEnabled, enabled) -> {
+            AudioFile selected = tableView.getSelectionModel().getSelectedItem();
+            if (enabled && selected != null)
+                playFile(selected); // restart the current row as an excerpt
+            else
+                skimStop = null;
+        });
+
+        // Every drag step seeks; the player only acts on the latest target
         timeSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
-            if (isSliderDragging && audioPlayer != null) {
-                audioPlayer.seek(duration.multiply(timeSlider.getValue() / 100.0));
-            }
+            if (isSliderDragging && audioPlayer != null)
+                seekTo(duration.multiply(timeSlider.getValue() / 100.0));
         });
 
         timeSlider.setOnMousePressed(e -> isSliderDragging = true);
         timeSlider.setOnMouseReleased(e -> {
             isSliderDragging = false;
-            if (audioPlayer != null) {
-                audioPlayer.seek(duration.multiply(timeSlider.getValue() / 100.0));
+            if (audioPlayer != null)
+                seekTo(duration.multiply(timeSlider.getValue() / 100.0));
+        });
+    }
+
+    /**
+     * Shows the rows, sort order and selection of the last session right away
+     * (without starting playback) and then checks the files in the background:
+     * missing rows are dropped, changed ones re-parsed. Also starts the
+     * periodic save.
+     */
+    public void restoreSession() {
+        long start = System.nanoTime();
+        SessionSnapshot.Session session = null;
+        try {
+            session = SessionSnapshot.read(SessionSnapshot.defaultFile());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to read session snapshot: " + e);
+        }
+
+        if (session != null && !session.tracks().isEmpty()) {
+            List<AudioFile> rows = new ArrayList<>(session.tracks().size());
+            for (SessionSnapshot.Track track : session.tracks())
+                rows.add(new AudioFile(track));
+
+            quietSelection = true;
+            // sort order first, while the table is empty: the rows were saved in display order
+            tableView.getSortOrder().clear();
+            for (SessionSnapshot.SortColumn sortColumn : session.sortOrder()) {
+                for (TableColumn<AudioFile, ?> column : tableView.getColumns()) {
+                    if (sortColumn.columnId().equals(column.getId())) {
+                        column.setSortType(sortColumn.ascending() ? TableColumn.SortType.ASCENDING
+                                : TableColumn.SortType.DESCENDING);
+                        tableView.getSortOrder().add(column);
+                    }
+                }
+            }
+            tableView.getItems().setAll(rows);
+            int selected = session.selectedIndex();
+            if (selected >= 0 && selected < rows.size()) {
+                tableView.getSelectionModel().select(selected);
+                tableView.scrollTo(Math.max(0, selected - NEARBY_ROWS));
+            }
+            quietSelection = false;
+
+            System.out.printf("Session restored: %d tracks in %.1f ms%n", rows.size(),
+                    (System.nanoTime() - start) / 1e6);
+            validateSession(rows, session.tracks());
+            List<SessionSnapshot.SortColumn> sortOrder = currentSortOrder();
+            rowWorker.execute(() -> RowOrder.prepareKeys(rows, sortOrder));
+        }
+
+        savedSessionChanges = sessionChanges;
+        sessionSaver.scheduleWithFixedDelay(() -> {
+            // nothing is captured (no Track built per row on the FX thread) unless something changed
+            CompletableFuture<Runnable> captured = new CompletableFuture<>();
+            Platform.runLater(() -> captured.complete(sessionWrite()));
+            Runnable write = captured.join();
+            if (write != null)
+                write.run();
+        }, SESSION_SAVE_SECONDS, SESSION_SAVE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** Saves the session now if it changed since the last save; called on exit. */
+    public void saveSession() {
+        sessionSaver.shutdownNow();
+        Runnable write = sessionWrite();
+        if (write != null)
+            write.run();
+    }
+
+    /** On the FX thread: the write of the current session, or null if it is saved already. */
+    private Runnable sessionWrite() {
+        long changes = sessionChanges;
+        if (changes == savedSessionChanges)
+            return null;
+        SessionSnapshot.Session session = captureSession();
+        return () -> writeSession(session, changes);
+    }
+
+    private SessionSnapshot.Session captureSession() {
+        List<SessionSnapshot.Track> tracks = new ArrayList<>(tableView.getItems().size());
+        for (AudioFile item : tableView.getItems())
+            tracks.add(item.toTrack());
+        return new SessionSnapshot.Session(tracks, currentSortOrder(), tableView.getSelectionModel().getSelectedIndex());
+    }
+
+    private synchronized void writeSession(SessionSnapshot.Session session, long changes) {
+        if (changes <= savedSessionChanges)
+            return; // a later capture is saved already
+        long start = System.nanoTime();
+        try {
+            SessionSnapshot.write(session, SessionSnapshot.defaultFile());
+            savedSessionChanges = changes;
+            System.out.printf("Session saved: %d tracks in %.1f ms%n", session.tracks().size(),
+                    (System.nanoTime() - start) / 1e6);
+        } catch (IOException e) {
+            System.err.println("Failed to save session snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compares each restored row with the disk off the FX thread and applies
+     * the differences in batches. {@code tracks} holds the rows' snapshot
+     * state; a row the user changed meanwhile (e.g. soft-deleted) is left alone.
+     */
+    private void validateSession(List<AudioFile> rows, List<SessionSnapshot.Track> tracks) {
+        Thread validator = new Thread(() -> {
+            long start = System.nanoTime();
+            List<AudioFile> missing = new ArrayList<>();
+            List<AudioFile> changed = new ArrayList<>();
+            Map<AudioFile, File> restored = new java.util.HashMap<>();
+            int missingCount = 0;
+            int changedCount = 0;
+
+            for (int i = 0; i < rows.size(); i++) {
+                SessionSnapshot.Track track = tracks.get(i);
+                File file = track.file();
+                if (!file.exists()) {
+                    // restored by hand from _deleted since the last session?
+                    File parent = file.getParentFile();
+                    File original = parent != null && parent.getName().equals("_deleted")
+                            ? new File(parent.getParentFile(), file.getName())
+                            : null;
+                    if (original != null && original.exists())
+                        restored.put(rows.get(i), original);
+                    else
+                        missing.add(rows.get(i));
+                    missingCount++;
+                } else if (file.length() != track.length() || file.lastModified() != track.modified()) {
+                    changed.add(rows.get(i));
+                    changedCount++;
+                }
+
+                if ((i + 1) % VALIDATION_BATCH == 0 || i == rows.size() - 1) {
+                    if (!missing.isEmpty() || !changed.isEmpty() || !restored.isEmpty())
+                        applyValidation(new java.util.HashSet<>(missing), new ArrayList<>(changed),
+                                new java.util.HashMap<>(restored));
+                    missing.clear();
+                    changed.clear();
+                    restored.clear();
+                }
             }
+            System.out.printf("Session validated: %d tracks, %d missing, %d changed in %.1f ms%n", rows.size(),
+                    missingCount, changedCount, (System.nanoTime() - start) / 1e6);
+        }, "session-validate");
+        validator.setDaemon(true);
+        validator.start();
+    }
+
+    private void applyValidation(Set<AudioFile> missing, List<AudioFile> changed,
+            Map<AudioFile, File> restored) {
+        Platform.runLater(() -> {
+            quietSelection = true;
+            tableView.getItems().removeIf(item -> missing.contains(item) && !item.getFile().exists());
+            quietSelection = false;
+            restored.forEach((item, original) -> {
+                if (item.isDeleted() && !item.getFile().exists()) {
+                    item.setFile(original);
+                    item.loadMetadata();
+                }
+            });
+            for (AudioFile item : changed)
+                item.loadMetadata();
         });
     }
 
@@ -292,7 +779,9 @@ public class MusicController {
         HBox controls = new HBox(10);
         controls.setPadding(new Insets(10));
         controls.setAlignment(Pos.CENTER);
-        controls.getChildren().addAll(playPauseButton, timeSlider, timeLabel);
+        controls.getChildren().addAll(nowPlayingArt, playPauseButton, timeSlider, timeLabel, spectrumMeter,
+                loudnessButton, skimButton, skimSecondsSpinner, skimStartSpinner, checkButton, exportButton,
+                outputButton);
 
         root.setBottom(controls);
         return root;
@@ -309,32 +798,182 @@ public class MusicController {
         Dragboard db = event.getDragboard();
         boolean success = false;
         if (db.hasFiles()) {
-            List<File> files = db.getFiles();
-            List<AudioFile> audioFiles = new ArrayList<>();
+            addFiles(new ArrayList<>(db.getFiles()));
+            success = true;
+        }
+        event.setDropCompleted(success);
+        event.consume();
+    }
 
+    /** Adds dropped files and folders (walked recursively) to the table. */
+    void addFiles(List<File> files) {
+        // Apply sorting on drop; a full sort only if the table isn't sorted by filename already
+        if (tableView.getSortOrder().size() != 1 || tableView.getSortOrder().get(0) != filenameCol
+                || filenameCol.getSortType() != TableColumn.SortType.ASCENDING) {
+            filenameCol.setSortType(TableColumn.SortType.ASCENDING);
+            tableView.getSortOrder().clear();
+            tableView.getSortOrder().add(filenameCol);
+        }
+        List<SessionSnapshot.SortColumn> sortOrder = currentSortOrder();
+        TrackEvents.Drop drop = new TrackEvents.Drop();
+        drop.begin();
+
+        // Directory walk, keys and sorting the new rows happen off the FX thread
+        rowWorker.execute(() -> {
+            List<AudioFile> audioFiles = new ArrayList<>();
             for (File file : files) {
                 if (file.isDirectory()) {
-                    audioFiles.addAll(findAudioFilesInDirectory(file));
+                    TrackEvents.Scan scan = new TrackEvents.Scan();
+                    scan.begin();
+                    List<AudioFile> found = findAudioFilesInDirectory(file);
+                    audioFiles.addAll(found);
+                    if (scan.shouldCommit()) {
+                        scan.directory = file.getPath();
+                        scan.files = found.size();
+                        scan.commit();
+                    }
                 } else {
                     if (isSupportedAudioFile(file)) {
                         audioFiles.add(new AudioFile(file));
                     }
                 }
             }
+            RowOrder.prepareKeys(audioFiles, sortOrder);
+            audioFiles.sort(RowOrder.comparator(sortOrder));
+            Platform.runLater(() -> {
+                insertRows(audioFiles, sortOrder);
+                if (drop.shouldCommit()) {
+                    drop.items = files.size();
+                    drop.rows = audioFiles.size();
+                    drop.commit();
+                }
+            });
+        });
+    }
 
-            // audioFiles.sort((a, b) -> a.getFilename().compareTo(b.getFilename()));
+    TableView<AudioFile> getTableView() {
+        return tableView;
+    }
 
-            tableView.getItems().addAll(audioFiles);
+    /** Merges rows sorted by {@code sortOrder} into the table, unless the order changed meanwhile. */
+    private void insertRows(List<AudioFile> rows, List<SessionSnapshot.SortColumn> sortOrder) {
+        long start = System.nanoTime();
+        List<AudioFile> items = tableView.getItems();
+        Comparator<AudioFile> order = RowOrder.comparator(sortOrder);
+        if (order == null || !sortOrder.equals(currentSortOrder())) {
+            items.addAll(rows);
+            sortRows();
+        } else if (rows.size() <= SMALL_CHANGE) {
+            withSelectionKept(() -> {
+                for (AudioFile row : rows)
+                    items.add(RowOrder.insertionPoint(items, row, order), row);
+            });
+        } else {
+            replaceRows(RowOrder.merge(items, rows, order));
+        }
+        System.out.printf("Inserted %d rows into %d in %.1f ms%n", rows.size(), items.size() - rows.size(),
+                (System.nanoTime() - start) / 1e6);
+    }
 
-            // Apply sorting on drop
-            tableView.getSortOrder().clear();
-            tableView.getSortOrder().add(tableView.getColumns().get(0)); // Filename column
-            tableView.getColumns().get(0).setSortType(TableColumn.SortType.ASCENDING);
-            tableView.sort();
-            success = true;
+    /**
+     * Full sort after the sort order changed: keys and sorting run on the row
+     * worker, and the result is dropped (and the sort redone) if the rows
+     * changed in the meantime.
+     */
+    private void sortRows() {
+        sessionChanges++; // the sort order or direction changed
+        List<SessionSnapshot.SortColumn> sortOrder = currentSortOrder();
+        Comparator<AudioFile> order = RowOrder.comparator(sortOrder);
+        if (order == null || tableView.getItems().isEmpty())
+            return;
+        List<AudioFile> rows = new ArrayList<>(tableView.getItems());
+        long generation = itemsGeneration;
+        rowWorker.execute(() -> {
+            long start = System.nanoTime();
+            RowOrder.prepareKeys(rows, sortOrder);
+            rows.sort(order);
+            long sorted = System.nanoTime();
+            Platform.runLater(() -> {
+                if (!sortOrder.equals(currentSortOrder()))
+                    return; // a newer sort is queued
+                if (generation != itemsGeneration) {
+                    sortRows();
+                    return;
+                }
+                replaceRows(rows);
+                System.out.printf("Sorted %d rows in %.1f ms (%.1f ms on the FX thread)%n", rows.size(),
+                        (System.nanoTime() - start) / 1e6, (System.nanoTime() - sorted) / 1e6);
+            });
+        });
+    }
+
+    /** A row's title/artist/album/gain changed; it's moved to its place shortly after, in a batch. */
+    private void sortValueChanged(AudioFile row) {
+        List<SessionSnapshot.SortColumn> sortOrder = currentSortOrder();
+        if (sortOrder.isEmpty() || (sortOrder.size() == 1 && sortOrder.get(0).columnId().equals("filename")))
+            return;
+        if (unsortedRows.add(row) && unsortedRows.size() == 1)
+            repositionDelay.playFromStart();
+    }
+
+    private void repositionUnsortedRows() {
+        List<AudioFile> moved = new ArrayList<>(unsortedRows);
+        unsortedRows.clear();
+        Comparator<AudioFile> order = RowOrder.comparator(currentSortOrder());
+        if (order == null)
+            return;
+        List<AudioFile> items = tableView.getItems();
+
+        if (moved.size() <= SMALL_CHANGE) {
+            withSelectionKept(() -> {
+                for (AudioFile row : moved) {
+                    int index = items.indexOf(row);
+                    if (index < 0 || RowOrder.inPlace(items, index, order))
+                        continue;
+                    items.remove(index);
+                    items.add(RowOrder.insertionPoint(items, row, order), row);
+                }
+            });
+            return;
+        }
+
+        Set<AudioFile> movedSet = new java.util.HashSet<>(moved);
+        List<AudioFile> kept = new ArrayList<>(items.size());
+        List<AudioFile> present = new ArrayList<>();
+        for (AudioFile row : items)
+            (movedSet.contains(row) ? present : kept).add(row);
+        present.sort(order);
+        replaceRows(RowOrder.merge(kept, present, order));
+    }
+
+    private void replaceRows(List<AudioFile> rows) {
+        withSelectionKept(() -> tableView.getItems().setAll(rows));
+    }
+
+    /** Applies a change to the rows without losing the selected row or starting playback. */
+    private void withSelectionKept(Runnable change) {
+        AudioFile selected = tableView.getSelectionModel().getSelectedItem();
+        quietSelection = true;
+        try {
+            change.run();
+            if (selected != null && tableView.getSelectionModel().getSelectedItem() != selected) {
+                int index = tableView.getItems().indexOf(selected);
+                if (index >= 0)
+                    tableView.getSelectionModel().select(index);
+            }
+        } finally {
+            quietSelection = false;
         }
-        event.setDropCompleted(success);
-        event.consume();
+    }
+
+    private List<SessionSnapshot.SortColumn> currentSortOrder() {
+        List<SessionSnapshot.SortColumn> sortOrder = new ArrayList<>();
+        for (TableColumn<AudioFile, ?> column : tableView.getSortOrder()) {
+            if (column.getId() != null)
+                sortOrder.add(new SessionSnapshot.SortColumn(column.getId(),
+                        column.getSortType() == TableColumn.SortType.ASCENDING));
+        }
+        return sortOrder;
     }
 
     private List<AudioFile> findAudioFilesInDirectory(File dir) {
@@ -358,63 +997,302 @@ public class MusicController {
     }
 
     private boolean isSupportedAudioFile(File file) {
-        String name = file.getName().toLowerCase();
-        return name.endsWith(".mp3") ||
-                name.endsWith(".wav") ||
-                name.endsWith(".aif") ||
-                name.endsWith(".aiff") ||
-                name.endsWith(".m4a") ||
-                name.endsWith(".aac") ||
-                name.endsWith(".flac") ||
-                name.endsWith(".ogg");
+        return FormatRegistry.get().isCandidate(file);
     }
 
-    private void playFile(AudioFile audioFile) {
+    /** Rows around the selection are the likeliest to be played next; keep their blocks cached. */
+    private void updateBlockCacheHints() {
+        int selected = tableView.getSelectionModel().getSelectedIndex();
+        List<File> nearby = new ArrayList<>();
+        for (int i = Math.max(0, selected - NEARBY_ROWS); i <= selected + NEARBY_ROWS
+                && i < tableView.getItems().size(); i++) {
+            nearby.add(tableView.getItems().get(i).getFile());
+        }
+        BlockCache.get().setNearby(nearby);
+    }
+
+    /**
+     * Plays a newly selected row right away if the selection had been still
+     * for a while. Otherwise the user is moving through the table (a held
+     * arrow key): playback stops and only the row the selection settles on
+     * gets a player.
+     */
+    private void selectionChanged(AudioFile row) {
+        resumeAt = null;
+        long now = System.nanoTime();
+        boolean navigating = now - lastSelectionChange < SETTLE_DELAY.toMillis() * 1_000_000;
+        lastSelectionChange = now;
+        if (navigating) {
+            stopPlayer();
+            playbackSettle.playFromStart();
+        } else {
+            playbackSettle.stop();
+            playFile(row);
+        }
+    }
+
+    /** Stops and drops the current player, and any player still being created. */
+    private void stopPlayer() {
+        playGeneration++;
         if (audioPlayer != null) {
             audioPlayer.stop();
             audioPlayer.dispose();
             audioPlayer = null;
+            spectrumMeter.attach(null);
+            playPauseButton.setText(">");
         }
+        skimStop = null;
+    }
+
+    private void playFile(AudioFile audioFile) {
+        stopPlayer();
+        int generation = playGeneration;
 
         // Allow playing deleted files as requested
 
-        try {
-            File file = audioFile.getFile();
-            String name = file.getName().toLowerCase();
+        File file = audioFile.getFile();
+        System.out.println("Attempting to play: " + file.getName().toLowerCase());
+        BlockCache.get().setPlaying(file);
+        System.out.println("Block cache: " + BlockCache.get().stats());
+        System.out.println("PCM cache: " + PcmCache.get().stats());
+
+        nowPlayingArt.setImage(CoverArtCache.get().getIfPresent(file, CoverArtCache.NOW_PLAYING_SIZE));
+        CoverArtCache.get().request(file, CoverArtCache.NOW_PLAYING_SIZE,
+                () -> generation == playGeneration, nowPlayingArt::setImage);
+
+        if (skim.isEnabled()) {
+            // positioned in the background; usually already done by the prefetch
+            skim.open(file).whenComplete((player, error) -> Platform.runLater(() -> {
+                if (generation != playGeneration || audioFile != tableView.getSelectionModel().getSelectedItem()
+                        || !skim.isEnabled()) {
+                    if (player != null)
+                        player.dispose();
+                } else if (error != null) {
+                    System.err.println("Error preparing file: " + file.getAbsolutePath());
+                    error.printStackTrace();
+                } else {
+                    startPlayer(audioFile, player);
+                }
+            }));
+            return;
+        }
 
-            System.out.println("Attempting to play: " + name);
-            if (name.endsWith(".flac") || name.endsWith(".ogg") || name.endsWith(".aac")) {
-                System.out.println("Using JavaSoundAudioPlayer");
-                audioPlayer = new JavaSoundAudioPlayer(file);
-            } else {
-                System.out.println("Using JavaFXAudioPlayer");
-                audioPlayer = new JavaFXAudioPlayer(file);
+        // Created off the FX thread (native media setup, duration probe); skipped or disposed if superseded
+        CompletableFuture.supplyAsync(() -> generation == playGeneration ? FormatRegistry.get().createPlayer(file) : null,
+                playerOpener).whenComplete((player, error) -> Platform.runLater(() -> {
+                    if (generation != playGeneration) {
+                        if (player != null)
+                            player.dispose();
+                    } else if (error != null) {
+                        System.err.println("Error playing file: " + file.getAbsolutePath());
+                        error.printStackTrace();
+                    } else {
+                        startPlayer(audioFile, player);
+                    }
+                }));
+    }
+
+    private void startPlayer(AudioFile audioFile, AudioPlayer player) {
+        audioPlayer = player;
+        System.out.println("Using " + audioPlayer.getClass().getSimpleName());
+
+        audioPlayer.setOnError(() -> System.err.println("Media error reported by player"));
+        spectrumMeter.attach(audioPlayer);
+
+        LoudnessAnalyzer.Result loudness = audioFile.getLoudness();
+        if (loudness != null) {
+            audioPlayer.setTrackGain(loudness.gainDb(), loudness.truePeak());
+        }
+
+        audioPlayer.currentTimeProperty().addListener((obs, oldTime, newTime) -> {
+            updateValues();
+            if (player == audioPlayer && skimStop != null && newTime != null && newTime.greaterThanOrEqualTo(skimStop)) {
+                skimStop = null;
+                advance();
             }
+        });
+        audioPlayer.totalDurationProperty().addListener((obs, oldDur, newDur) -> {
+            duration = newDur;
+            updateValues();
+        });
+        audioPlayer.seekTargetProperty().addListener((obs, oldTarget, newTarget) -> updateValues());
 
-            audioPlayer.setOnError(() -> System.err.println("Media error reported by player"));
+        // Initial duration might be available immediately or later
+        duration = audioPlayer.totalDurationProperty().getValue();
 
-            audioPlayer.currentTimeProperty().addListener((obs, oldTime, newTime) -> updateValues());
-            audioPlayer.totalDurationProperty().addListener((obs, oldDur, newDur) -> {
-                duration = newDur;
-                updateValues();
-            });
+        audioPlayer.setOnEndOfMedia(this::advance);
 
-            // Initial duration might be available immediately or later
-            duration = audioPlayer.totalDurationProperty().getValue();
+        audioPlayer.play();
+        playPauseButton.setText("||");
+        if (resumeAt != null) {
+            audioPlayer.seek(resumeAt);
+            resumeAt = null;
+        }
 
-            audioPlayer.setOnEndOfMedia(() -> {
-                int nextIndex = tableView.getSelectionModel().getSelectedIndex() + 1;
-                if (nextIndex < tableView.getItems().size()) {
-                    tableView.getSelectionModel().select(nextIndex);
-                }
-            });
+        if (skim.isEnabled()) {
+            Duration start = duration == null || duration.isUnknown() ? Duration.ZERO
+                    : duration.multiply(skim.startFraction());
+            skimStop = start.add(skim.excerptLength());
+            if (advanceRequestedAt != 0) {
+                System.out.printf("Skim: next excerpt started %.1f ms after the previous one ended%n",
+                        (System.nanoTime() - advanceRequestedAt) / 1e6);
+                advanceRequestedAt = 0;
+            }
+            int nextIndex = tableView.getItems().indexOf(audioFile) + 1;
+            if (nextIndex > 0 && nextIndex < tableView.getItems().size())
+                skim.prefetch(tableView.getItems().get(nextIndex).getFile());
+        }
+    }
 
-            audioPlayer.play();
-            playPauseButton.setText("||");
-        } catch (Exception e) {
-            System.err.println("Error playing file: " + audioFile.getFile().getAbsolutePath());
-            e.printStackTrace();
+    /** Moves on to the next row (end of track, or end of the excerpt in skim mode). */
+    private void advance() {
+        int nextIndex = tableView.getSelectionModel().getSelectedIndex() + 1;
+        if (nextIndex < tableView.getItems().size()) {
+            advanceRequestedAt = System.nanoTime();
+            tableView.getSelectionModel().select(nextIndex);
+        } else if (skim.isEnabled() && audioPlayer != null) {
+            audioPlayer.pause();
+            playPauseButton.setText(">");
+        }
+    }
+
+    /**
+     * Measures every row that has no loudness yet (neither analysed nor tagged)
+     * and applies the result to the current player as soon as it lands.
+     */
+    private void analyzeLoudness() {
+        Map<File, AudioFile> pending = new java.util.LinkedHashMap<>();
+        for (AudioFile item : tableView.getItems()) {
+            if (item.getLoudness() == null) {
+                pending.put(item.getFile(), item);
+            }
+        }
+        if (pending.isEmpty())
+            return;
+
+        loudnessButton.setDisable(true);
+        LoudnessAnalyzer.analyzeAll(new ArrayList<>(pending.keySet()), (file, result) -> Platform.runLater(() -> {
+            AudioFile item = pending.get(file);
+            item.setLoudness(result);
+            if (audioPlayer != null && item == tableView.getSelectionModel().getSelectedItem()) {
+                audioPlayer.setTrackGain(result.gainDb(), result.truePeak());
+            }
+        })).whenComplete((v, e) -> Platform.runLater(() -> loudnessButton.setDisable(false)));
+    }
+
+    /** Rows a batch action works on: the selection if it's more than one row, otherwise all of them. */
+    private List<AudioFile> batchRows() {
+        return new ArrayList<>(tableView.getSelectionModel().getSelectedItems().size() > 1
+                ? tableView.getSelectionModel().getSelectedItems()
+                : tableView.getItems());
+    }
+
+    /** Runs the integrity scan over the batch rows; failures turn their rows red. */
+    private void checkIntegrity(IntegrityScanner.Tier tier) {
+        Map<File, AudioFile> rows = new java.util.LinkedHashMap<>();
+        for (AudioFile row : batchRows())
+            rows.put(row.getFile(), row);
+        if (rows.isEmpty())
+            return;
+
+        checkButton.setDisable(true);
+        AtomicInteger failed = new AtomicInteger();
+        IntegrityScanner.get().checkAll(new ArrayList<>(rows.keySet()), tier, (file, result) -> {
+            if (result.failed())
+                failed.incrementAndGet();
+            Platform.runLater(() -> rows.get(file).setIntegrity(result));
+        }).whenComplete((v, e) -> Platform.runLater(() -> {
+            checkButton.setDisable(false);
+            checkButton.setTooltip(new Tooltip(String.format("Last %s check: %d of %d files failed",
+                    tier.name().toLowerCase(), failed.get(), rows.size())));
+        }));
+    }
+
+    /**
+     * Exports the selected rows if there are several, otherwise every row, in
+     * both cases without the soft-deleted ones. Pressing the button again
+     * while an export runs cancels it; running it again resumes.
+     */
+    private void exportTracks() {
+        if (exporter != null) {
+            exporter.cancel();
+            return;
+        }
+        List<Exporter.Item> items = new ArrayList<>();
+        for (AudioFile row : batchRows()) {
+            if (!row.isDeleted())
+                items.add(new Exporter.Item(row.getFile(), row.getArtist().equals("<not available>")
+                        ? row.getTitle()
+                        : row.getArtist() + " - " + row.getTitle()));
         }
+        if (items.isEmpty())
+            return;
+
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Export " + items.size() + " tracks to");
+        File lastDir = new File(PREFS.get("export.dir", System.getProperty("user.home")));
+        if (lastDir.isDirectory())
+            chooser.setInitialDirectory(lastDir);
+        File target = chooser.showDialog(tableView.getScene().getWindow());
+        if (target == null)
+            return;
+        PREFS.put("export.dir", target.getAbsolutePath());
+
+        Exporter running = new Exporter(items, target, verifyExport.isSelected());
+        exporter = running;
+        exportButton.setText("Cancel export");
+        running.start(progress -> Platform.runLater(() -> {
+            if (exporter == running && !progress.finished())
+                exportButton.setTooltip(new Tooltip(String.format("%d/%d files, %.0f%%, %.1f MB/s",
+                        progress.filesDone() + progress.filesSkipped(), progress.filesTotal(),
+                        progress.bytesTotal() == 0 ? 100.0 : 100.0 * progress.bytesCopied() / progress.bytesTotal(),
+                        progress.megabytesPerSecond())));
+        })).whenComplete((progress, error) -> Platform.runLater(() -> {
+            exporter = null;
+            exportButton.setText("Export");
+            if (error != null) {
+                System.err.println("Export failed: " + error.getMessage());
+                exportButton.setTooltip(new Tooltip("Export failed: " + error.getMessage()));
+            } else {
+                exportButton.setTooltip(new Tooltip(String.format("Last export: %d copied, %d already there, %d failed, %.1f MB/s",
+                        progress.filesDone(), progress.filesSkipped(), progress.filesFailed(),
+                        progress.megabytesPerSecond())));
+            }
+        }));
+    }
+
+    /** Lists the devices (re-read each time, they come and go) and shows the current output latency. */
+    private void fillOutputMenu() {
+        ToggleGroup group = new ToggleGroup();
+        String selected = AudioOutput.get().selectedMixer();
+        List<RadioMenuItem> items = new ArrayList<>();
+        items.add(new RadioMenuItem("System default"));
+        for (Mixer.Info mixer : AudioOutput.get().mixers()) {
+            RadioMenuItem item = new RadioMenuItem(mixer.getName());
+            item.setUserData(mixer.getName());
+            items.add(item);
+        }
+        for (RadioMenuItem item : items) {
+            item.setToggleGroup(group);
+            item.setSelected(Objects.equals(item.getUserData(), selected));
+            item.setOnAction(e -> {
+                AudioOutput.get().selectMixer((String) item.getUserData());
+                switchOutput();
+            });
+        }
+        outputButton.getItems().setAll(items);
+        outputButton.setTooltip(new Tooltip(audioPlayer == null ? "Audio device"
+                : String.format("Audio device; output latency %.0f ms", audioPlayer.outputLatency().toMillis())));
+    }
+
+    /** Reopens the current track on the newly chosen device, where it was. */
+    private void switchOutput() {
+        AudioFile selected = tableView.getSelectionModel().getSelectedItem();
+        if (audioPlayer == null || selected == null)
+            return;
+        Duration position = audioPlayer.currentTimeProperty().get();
+        playFile(selected);
+        resumeAt = position;
     }
 
     private void togglePlayPause() {
@@ -433,9 +1311,12 @@ public class MusicController {
     private void updateValues() {
         if (timeLabel != null && timeSlider != null && duration != null && audioPlayer != null) {
             Platform.runLater(() -> {
-                Duration currentTime = audioPlayer.currentTimeProperty().getValue();
+                // While a seek is under way, show where it is going rather than the old position
+                Duration seekTarget = audioPlayer.seekTargetProperty().get();
+                Duration currentTime = seekTarget != null ? seekTarget : audioPlayer.currentTimeProperty().getValue();
 
                 timeLabel.setText(formatTime(currentTime, duration));
+                timeLabel.setOpacity(seekTarget != null ? 0.6 : 1.0);
                 timeSlider.setDisable(duration.isUnknown());
                 if (!timeSlider.isDisabled() && duration.greaterThan(Duration.ZERO) && !isSliderDragging) {
                     timeSlider.setValue(currentTime.toMillis() / duration.toMillis() * 100.0);
@@ -499,6 +1380,9 @@ public class MusicController {
         } else if (event.getCode() == KeyCode.SPACE) {
             togglePlayPause();
             event.consume();
+        } else if (event.getCode() == KeyCode.S) {
+            skim.enabledProperty().set(!skim.isEnabled());
+            event.consume();
         } else if (event.getCode() == KeyCode.UP || event.getCode() == KeyCode.DOWN) {
             if (!tableView.isFocused()) {
                 tableView.requestFocus();
@@ -506,12 +1390,27 @@ public class MusicController {
         }
     }
 
+    /** Relative to a seek still in progress, so that repeated presses add up. */
     private void seek(double seconds) {
         if (audioPlayer != null) {
-            audioPlayer.seek(audioPlayer.currentTimeProperty().getValue().add(Duration.seconds(seconds)));
+            Duration from = audioPlayer.seekTargetProperty().get();
+            if (from == null)
+                from = audioPlayer.currentTimeProperty().getValue();
+            seekTo(from.add(Duration.seconds(seconds)));
         }
     }
 
+    private void seekTo(Duration target) {
+        if (audioPlayer == null || target == null || target.isUnknown())
+            return;
+        if (target.lessThan(Duration.ZERO))
+            target = Duration.ZERO;
+        if (duration != null && !duration.isUnknown() && target.greaterThan(duration))
+            target = duration;
+        if (!target.equals(audioPlayer.seekTargetProperty().get()))
+            audioPlayer.seek(target);
+    }
+
     private void handleBackspace() {
         AudioFile selectedItem = tableView.getSelectionModel().getSelectedItem();
         if (selectedItem == null)
@@ -529,10 +1428,7 @@ public class MusicController {
             // Stop playback if playing this file
             if (audioPlayer != null
                     && item.getFile().equals(tableView.getSelectionModel().getSelectedItem().getFile())) {
-                audioPlayer.stop();
-                audioPlayer.dispose();
-                audioPlayer = null;
-                playPauseButton.setText(">");
+                stopPlayer();
                 timeLabel.setText("00:00 / 00:00");
                 timeSlider.setValue(0);
             }
@@ -546,7 +1442,15 @@ public class MusicController {
             }
 
             File deleted = new File(deletedDir, original.getName());
+            TrackEvents.SoftDelete event = new TrackEvents.SoftDelete();
+            event.begin();
             Files.move(original.toPath(), deleted.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            TrackEvents.moved(original, deleted);
+            if (event.shouldCommit()) {
+                event.track(original);
+                event.newPath = deleted.getPath();
+                event.commit();
+            }
 
             item.setFile(deleted);
             System.out.println("Soft deleted: " + original.getName());
@@ -570,7 +1474,16 @@ public class MusicController {
             File original = new File(parent, deleted.getName());
 
             if (deleted.exists()) {
+                TrackEvents.SoftDelete event = new TrackEvents.SoftDelete();
+                event.begin();
                 Files.move(deleted.toPath(), original.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                TrackEvents.moved(deleted, original);
+                if (event.shouldCommit()) {
+                    event.track(deleted);
+                    event.restore = true;
+                    event.newPath = original.getPath();
+                    event.commit();
+                }
                 item.setFile(original);
                 System.out.println("Restored: " + original.getName());
             }
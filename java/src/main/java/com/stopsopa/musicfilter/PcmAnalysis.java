@@ -0,0 +1,405 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Per-track PCM analysis with one decode per track. Every {@link Analyzer} in
+ * {@link #ANALYZERS} gets the same decoded buffers in turn, so adding one
+ * costs its own processing and never another pass through the decoder.
+ *
+ * <p>Tracks run as a {@link FileBatch}. Results are kept as text, per
+ * analyser and its {@link Analyzer#version()}, in a {@link ResultStore}
+ * ({@code ~/.musicfilter/analysis.tsv}); a track is decoded only for the
+ * analysers that have no current result for it.
+ */
+public class PcmAnalysis {
+
+    private static final int BUFFER_FRAMES = 8192;
+
+    /** Adding an analyser here is all it takes to run it with the others. */
+    static final List<Analyzer> ANALYZERS = List.of(LoudnessAnalyzer.ANALYZER, new Peak(), new Clipping(),
+            new Silence(), new Tempo());
+
+    private static final PcmAnalysis INSTANCE = new PcmAnalysis(
+            new File(System.getProperty("user.home"), ".musicfilter/analysis.tsv"));
+
+    /** One kind of analysis. */
+    public interface Analyzer {
+        /** Key for the stored results; no tabs. */
+        String name();
+
+        /** Bump to have results from earlier versions recomputed. */
+        int version();
+
+        /** State for one track in {@code format} (signed little-endian PCM). */
+        Pass start(AudioFormat format);
+    }
+
+    /** One analyser's run over one track, fed in file order. */
+    public interface Pass {
+        /** {@code frames} whole frames from the start of {@code data}. */
+        void process(byte[] data, int frames, int bytesPerSample);
+
+        /** The result as one line of text. */
+        String finish();
+    }
+
+    private final ResultStore store;
+
+    public static PcmAnalysis get() {
+        return INSTANCE;
+    }
+
+    PcmAnalysis(File cacheFile) {
+        // values are version<TAB>result
+        this.store = new ResultStore(cacheFile, "analysis", 2);
+    }
+
+    /**
+     * Results of every analyser for {@code file}, by name, decoding it once
+     * for those without a current stored result.
+     */
+    public Map<String, String> analyze(File file) throws Exception {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+        Map<String, String> results = new LinkedHashMap<>();
+        List<Analyzer> missing = new ArrayList<>();
+        for (Analyzer analyzer : ANALYZERS) {
+            String stored = store.get(path, length, modified, analyzer.name());
+            String prefix = analyzer.version() + "\t";
+            if (stored != null && stored.startsWith(prefix))
+                results.put(analyzer.name(), stored.substring(prefix.length()));
+            else
+                missing.add(analyzer);
+        }
+        if (missing.isEmpty())
+            return results;
+
+        Map<String, String> fresh = decode(file, missing);
+        Map<String, String> values = new LinkedHashMap<>();
+        for (Analyzer analyzer : missing)
+            values.put(analyzer.name(), analyzer.version() + "\t" + ResultStore.field(fresh.get(analyzer.name())));
+        store.put(path, length, modified, values);
+        results.putAll(fresh);
+        return results;
+    }
+
+    /** Decodes {@code file} once and feeds every buffer to each of {@code analyzers}. */
+    static Map<String, String> decode(File file, List<Analyzer> analyzers) throws Exception {
+        try (AudioInputStream in = PcmStreams.open(file)) {
+            AudioFormat format = in.getFormat();
+            int bytesPerSample = format.getSampleSizeInBits() / 8;
+            int frameSize = format.getChannels() * bytesPerSample;
+            Pass[] passes = new Pass[analyzers.size()];
+            for (int i = 0; i < passes.length; i++)
+                passes[i] = analyzers.get(i).start(format);
+
+            byte[] buffer = new byte[frameSize * BUFFER_FRAMES];
+            int carry = 0;
+            int n;
+            while ((n = in.read(buffer, carry, buffer.length - carry)) != -1) {
+                int available = carry + n;
+                int frames = available / frameSize;
+                for (Pass pass : passes)
+                    pass.process(buffer, frames, bytesPerSample);
+                carry = available - frames * frameSize;
+                if (carry > 0)
+                    System.arraycopy(buffer, frames * frameSize, buffer, 0, carry);
+            }
+
+            Map<String, String> results = new LinkedHashMap<>();
+            for (int i = 0; i < passes.length; i++)
+                results.put(analyzers.get(i).name(), passes[i].finish());
+            return results;
+        }
+    }
+
+    /**
+     * Analyses {@code files} as a {@link FileBatch}. Results are delivered on
+     * the worker threads; failures are logged and skipped.
+     */
+    public CompletableFuture<Void> analyzeAll(List<File> files, BiConsumer<File, Map<String, String>> onResult) {
+        AtomicInteger done = new AtomicInteger();
+        return FileBatch.run("analysis", files, file -> {
+            try {
+                onResult.accept(file, analyze(file));
+                done.incrementAndGet();
+            } catch (Exception e) {
+                System.err.println("Analysis failed for " + file.getName() + ": " + e.getMessage());
+            }
+        }).thenAccept(nanos -> {
+            double minutes = nanos / 60e9;
+            System.out.printf("Analysis: %d/%d tracks on %d threads, %.1f tracks/min%n",
+                    done.get(), files.size(), FileBatch.THREADS, minutes > 0 ? done.get() / minutes : 0.0);
+        });
+    }
+
+    // ---- analysers ----
+
+    /** Highest absolute sample value, in dBFS. */
+    static class Peak implements Analyzer {
+        @Override
+        public String name() {
+            return "peak";
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Pass start(AudioFormat format) {
+            return new Pass() {
+                private float peak;
+
+                @Override
+                public void process(byte[] data, int frames, int bytesPerSample) {
+                    int samples = frames * format.getChannels();
+                    for (int i = 0; i < samples; i++) {
+                        float abs = Math.abs(PcmStreams.sampleAt(data, i * bytesPerSample, bytesPerSample));
+                        if (abs > peak)
+                            peak = abs;
+                    }
+                }
+
+                @Override
+                public String finish() {
+                    return peak > 0 ? String.format(Locale.ROOT, "%.2f dBFS", 20 * Math.log10(peak)) : "silent";
+                }
+            };
+        }
+    }
+
+    /**
+     * Runs of {@link #RUN} or more consecutive samples at full scale on one
+     * channel: a single full-scale sample is legitimate, a flat top is not.
+     */
+    static class Clipping implements Analyzer {
+        private static final int RUN = 3;
+        private static final float FULL_SCALE = 32766f / 32768f;
+
+        @Override
+        public String name() {
+            return "clipping";
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Pass start(AudioFormat format) {
+            int channels = format.getChannels();
+            return new Pass() {
+                private final int[] run = new int[channels];
+                private long runs;
+                private long clipped;
+
+                @Override
+                public void process(byte[] data, int frames, int bytesPerSample) {
+                    int offset = 0;
+                    for (int f = 0; f < frames; f++) {
+                        for (int ch = 0; ch < channels; ch++) {
+                            float abs = Math.abs(PcmStreams.sampleAt(data, offset, bytesPerSample));
+                            offset += bytesPerSample;
+                            if (abs >= FULL_SCALE) {
+                                if (++run[ch] == RUN) {
+                                    runs++;
+                                    clipped += RUN;
+                                } else if (run[ch] > RUN) {
+                                    clipped++;
+                                }
+                            } else {
+                                run[ch] = 0;
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public String finish() {
+                    return runs == 0 ? "none" : runs + " runs, " + clipped + " samples";
+                }
+            };
+        }
+    }
+
+    /** Leading and trailing audio below {@link #THRESHOLD_DB} on every channel. */
+    static class Silence implements Analyzer {
+        private static final double THRESHOLD_DB = -60;
+        private static final float THRESHOLD = (float) Math.pow(10, THRESHOLD_DB / 20);
+
+        @Override
+        public String name() {
+            return "silence";
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Pass start(AudioFormat format) {
+            int channels = format.getChannels();
+            return new Pass() {
+                private long frameCount;
+                private long firstLoud = -1;
+                private long lastLoud = -1;
+
+                @Override
+                public void process(byte[] data, int frames, int bytesPerSample) {
+                    int offset = 0;
+                    for (int f = 0; f < frames; f++, frameCount++) {
+                        for (int ch = 0; ch < channels; ch++) {
+                            if (Math.abs(PcmStreams.sampleAt(data, offset + ch * bytesPerSample, bytesPerSample)) > THRESHOLD) {
+                                if (firstLoud < 0)
+                                    firstLoud = frameCount;
+                                lastLoud = frameCount;
+                                break;
+                            }
+                        }
+                        offset += channels * bytesPerSample;
+                    }
+                }
+
+                @Override
+                public String finish() {
+                    double rate = format.getFrameRate();
+                    if (firstLoud < 0)
+                        return String.format(Locale.ROOT, "all %.2f s", frameCount / rate);
+                    return String.format(Locale.ROOT, "lead %.2f s, trail %.2f s", firstLoud / rate,
+                            (frameCount - lastLoud - 1) / rate);
+                }
+            };
+        }
+    }
+
+    /**
+     * Tempo from the autocorrelation of an onset envelope: the rise in log
+     * energy per 10 ms hop, correlated over the lags for 60..200 BPM and
+     * weighted towards 120 BPM so that half and double tempo lose out.
+     */
+    static class Tempo implements Analyzer {
+        private static final int HOPS_PER_SECOND = 100;
+        private static final int MIN_BPM = 60;
+        private static final int MAX_BPM = 200;
+
+        @Override
+        public String name() {
+            return "bpm";
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Pass start(AudioFormat format) {
+            int channels = format.getChannels();
+            int hopFrames = Math.max(1, Math.round(format.getFrameRate() / HOPS_PER_SECOND));
+            return new Pass() {
+                private float[] onsets = new float[HOPS_PER_SECOND * 60];
+                private int count;
+                private double energy;
+                private int fill;
+                private double previousLog = Double.NaN;
+
+                @Override
+                public void process(byte[] data, int frames, int bytesPerSample) {
+                    int offset = 0;
+                    for (int f = 0; f < frames; f++) {
+                        float mono = 0;
+                        for (int ch = 0; ch < channels; ch++) {
+                            mono += PcmStreams.sampleAt(data, offset, bytesPerSample);
+                            offset += bytesPerSample;
+                        }
+                        energy += mono * mono;
+                        if (++fill == hopFrames)
+                            hop();
+                    }
+                }
+
+                private void hop() {
+                    double log = Math.log(energy / hopFrames + 1e-10);
+                    if (!Double.isNaN(previousLog)) {
+                        if (count == onsets.length)
+                            onsets = Arrays.copyOf(onsets, onsets.length * 2);
+                        onsets[count++] = (float) Math.max(0, log - previousLog);
+                    }
+                    previousLog = log;
+                    energy = 0;
+                    fill = 0;
+                }
+
+                @Override
+                public String finish() {
+                    int minLag = 60 * HOPS_PER_SECOND / MAX_BPM;
+                    int maxLag = 60 * HOPS_PER_SECOND / MIN_BPM;
+                    if (count < 4 * maxLag)
+                        return "unknown";
+                    double mean = 0;
+                    for (int i = 0; i < count; i++)
+                        mean += onsets[i];
+                    mean /= count;
+
+                    double[] correlation = new double[maxLag + 2];
+                    for (int lag = minLag - 1; lag <= maxLag + 1; lag++) {
+                        double sum = 0;
+                        for (int i = lag; i < count; i++)
+                            sum += (onsets[i] - mean) * (onsets[i - lag] - mean);
+                        correlation[lag] = sum / (count - lag);
+                    }
+                    int best = -1;
+                    double bestScore = 0;
+                    for (int lag = minLag; lag <= maxLag; lag++) {
+                        double octaves = Math.log(60.0 * HOPS_PER_SECOND / lag / 120) / Math.log(2);
+                        double score = correlation[lag] * Math.exp(-octaves * octaves * 2);
+                        if (score > bestScore) {
+                            bestScore = score;
+                            best = lag;
+                        }
+                    }
+                    if (best < 0)
+                        return "unknown";
+                    // parabolic interpolation between the neighbouring lags
+                    double left = correlation[best - 1];
+                    double centre = correlation[best];
+                    double right = correlation[best + 1];
+                    double denominator = left - 2 * centre + right;
+                    double lag = best + (denominator == 0 ? 0 : 0.5 * (left - right) / denominator);
+                    return String.format(Locale.ROOT, "%.1f", 60.0 * HOPS_PER_SECOND / lag);
+                }
+            };
+        }
+    }
+
+    /** Usage: {@code PcmAnalysis <file or directory>...}; prints every analyser's result per file. */
+    public static void main(String[] args) {
+        List<File> files = new ArrayList<>();
+        for (String arg : args.length > 0 ? args : new String[] { "music-sample" })
+            FileBatch.collect(new File(arg), files);
+        System.out.println("Analysing " + files.size() + " files with " + ANALYZERS.size() + " analysers on "
+                + FileBatch.THREADS + " threads");
+        get().analyzeAll(files, (file, results) -> {
+            StringBuilder line = new StringBuilder(file.getName());
+            results.forEach((name, value) -> line.append("\n    ").append(name).append(": ").append(value));
+            System.out.println(line);
+        }).join();
+    }
+}
@@ -0,0 +1,484 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Process-wide cache of decoded PCM, so that seeking back and replaying a
+ * recently played track come from memory instead of the decoder. Audio is
+ * kept in segments of about 1 MB (6 s of CD audio) keyed by file and position;
+ * {@link JavaSoundAudioPlayer} records them as it decodes and plays from them
+ * while its decoder catches up with the end of the cached run.
+ *
+ * <ul>
+ * <li>Size bounded ({@code -Dmusicfilter.pcmCacheMb}, default 128 MB, 0 turns
+ * it off); the least recently used segments go first.</li>
+ * <li>Storage ({@code -Dmusicfilter.pcmCacheStorage}): {@code heap} (default);
+ * {@code direct}, off-heap so a large budget doesn't need a larger
+ * {@code -Xmx} (it counts against {@code -XX:MaxDirectMemorySize} instead);
+ * or {@code deflate}, compressed after a per-channel delta filter for 16-bit
+ * audio, which fits more audio into the budget at the cost of inflating a
+ * segment when playback reaches it.</li>
+ * <li>A segment can start part way in (after a seek) and end early (at a seek
+ * or at the end of the track).</li>
+ * <li>The playback thread doesn't allocate for it: recording buffers come from
+ * a small pool kept topped up by a background thread, and a segment is
+ * skipped when the pool is empty.</li>
+ * </ul>
+ */
+public class PcmCache {
+
+    static final int SEGMENT_BYTES = 1 << 20;
+    private static final int SPARES = 2;
+
+    enum Storage {
+        HEAP, DIRECT, DEFLATE
+    }
+
+    private static final PcmCache INSTANCE = new PcmCache(Long.getLong("musicfilter.pcmCacheMb", 128) * 1024 * 1024,
+            storage(System.getProperty("musicfilter.pcmCacheStorage", "heap")));
+
+    /** A file as it was when decoded; a changed file gets new keys. */
+    record TrackKey(String path, long signature) {
+        static TrackKey of(File file) {
+            return new TrackKey(file.getAbsolutePath(), file.length() * 31 + file.lastModified());
+        }
+    }
+
+    record SegmentKey(TrackKey track, long index) {
+    }
+
+    /**
+     * Bytes {@code from} to {@code from + length} of one segment, in the
+     * track's decoded format. Exactly one of the three buffers is set while it
+     * is cached; reads and the background conversion lock the segment.
+     */
+    private static final class Segment {
+        final AudioFormat format;
+        final int from;
+        final int length;
+        final boolean last; // ends where the track ends
+        byte[] heap;
+        ByteBuffer direct;
+        byte[] deflated;
+
+        Segment(AudioFormat format, int from, int length, boolean last, byte[] heap) {
+            this.format = format;
+            this.from = from;
+            this.length = length;
+            this.last = last;
+            this.heap = heap;
+        }
+
+        synchronized int size() {
+            return heap != null ? heap.length : direct != null ? direct.capacity()
+                    : deflated != null ? deflated.length : 0;
+        }
+
+        boolean covers(int offset) {
+            return offset >= from && offset < from + length;
+        }
+    }
+
+    private final long capacityBytes;
+    private final Storage storage;
+    private final LinkedHashMap<SegmentKey, Segment> segments = new LinkedHashMap<>(256, 0.75f, true);
+    private long cachedBytes = 0;
+    private final BlockingQueue<byte[]> spares = new ArrayBlockingQueue<>(SPARES);
+    private final ExecutorService worker;
+    private final Runnable topUp = this::topUp;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public static PcmCache get() {
+        return INSTANCE;
+    }
+
+    PcmCache(long capacityBytes, Storage storage) {
+        this.capacityBytes = capacityBytes;
+        this.storage = storage;
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "pcm-cache");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    private static Storage storage(String name) {
+        try {
+            return Storage.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown PCM cache storage " + name + ", using heap");
+            return Storage.HEAP;
+        }
+    }
+
+    public boolean isEnabled() {
+        return capacityBytes > 0;
+    }
+
+    /** Fills the pool of recording buffers on the calling thread (players do before playback starts). */
+    public void topUp() {
+        if (!isEnabled())
+            return;
+        while (spares.remainingCapacity() > 0) {
+            if (!spares.offer(new byte[SEGMENT_BYTES]))
+                break;
+        }
+    }
+
+    public String stats() {
+        synchronized (this) {
+            return String.format("hits=%d stored=%d skipped=%d evictions=%d segments=%d cached=%d/%dMB %s",
+                    hits.get(), stored.get(), skipped.get(), evictions.get(), segments.size(),
+                    cachedBytes / (1024 * 1024), capacityBytes / (1024 * 1024), storage.name().toLowerCase());
+        }
+    }
+
+    /** Format of {@code file} if its first segment is cached from the start, otherwise null. */
+    AudioFormat startFormat(File file) {
+        if (!isEnabled())
+            return null;
+        Segment segment;
+        synchronized (this) {
+            segment = segments.get(new SegmentKey(TrackKey.of(file), 0));
+        }
+        return segment != null && segment.from == 0 ? segment.format : null;
+    }
+
+    private synchronized Segment segment(SegmentKey key) {
+        return segments.get(key);
+    }
+
+    private void put(SegmentKey key, Segment segment) {
+        synchronized (this) {
+            Segment previous = segments.get(key);
+            if (previous != null && previous.length >= segment.length) {
+                spares.offer(segment.heap);
+                return;
+            }
+            if (previous != null)
+                remove(key, previous);
+            segments.put(key, segment);
+            cachedBytes += segment.size();
+            stored.incrementAndGet();
+            while (cachedBytes > capacityBytes && !segments.isEmpty()) {
+                Iterator<Map.Entry<SegmentKey, Segment>> eldest = segments.entrySet().iterator();
+                Map.Entry<SegmentKey, Segment> victim = eldest.next();
+                eldest.remove();
+                release(victim.getValue());
+                evictions.incrementAndGet();
+            }
+        }
+        if (storage != Storage.HEAP)
+            worker.execute(() -> convert(segment));
+        worker.execute(topUp);
+    }
+
+    private void remove(SegmentKey key, Segment segment) {
+        segments.remove(key);
+        release(segment);
+    }
+
+    /** Drops a segment's buffers (under the cache lock); a full-size heap buffer goes back to the pool. */
+    private void release(Segment segment) {
+        synchronized (segment) {
+            cachedBytes -= segment.heap != null ? segment.heap.length : segment.direct != null
+                    ? segment.direct.capacity() : segment.deflated != null ? segment.deflated.length : 0;
+            if (segment.heap != null && segment.heap.length == SEGMENT_BYTES)
+                spares.offer(segment.heap);
+            segment.heap = null;
+            segment.direct = null;
+            segment.deflated = null;
+        }
+    }
+
+    /** Moves a freshly recorded segment to the configured storage (on the worker). */
+    private void convert(Segment segment) {
+        byte[] heap;
+        synchronized (segment) {
+            heap = segment.heap;
+        }
+        if (heap == null)
+            return; // evicted already
+        ByteBuffer direct = null;
+        byte[] deflated = null;
+        if (storage == Storage.DIRECT) {
+            direct = ByteBuffer.allocateDirect(segment.length);
+            direct.put(0, heap, segment.from, segment.length);
+        } else {
+            deflated = deflate(heap, segment.from, segment.length, segment.format);
+        }
+        synchronized (this) {
+            synchronized (segment) {
+                if (segment.heap != heap)
+                    return;
+                segment.heap = null;
+                segment.direct = direct;
+                segment.deflated = deflated;
+                cachedBytes += segment.size() - heap.length;
+            }
+        }
+        spares.offer(heap);
+    }
+
+    private static boolean deltaCoded(AudioFormat format) {
+        return format.getSampleSizeInBits() == 16 && !format.isBigEndian()
+                && format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED;
+    }
+
+    private static byte[] deflate(byte[] data, int from, int length, AudioFormat format) {
+        byte[] input = new byte[length];
+        System.arraycopy(data, from, input, 0, length);
+        if (deltaCoded(format)) {
+            // each sample minus the previous one of its channel: music is mostly small steps, which deflate well
+            int stride = format.getChannels() * 2;
+            for (int i = length - 2 - (length % 2); i >= stride; i -= 2) {
+                int delta = sample(input, i) - sample(input, i - stride);
+                input[i] = (byte) delta;
+                input[i + 1] = (byte) (delta >> 8);
+            }
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2);
+        byte[] chunk = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static int sample(byte[] data, int offset) {
+        return (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+    }
+
+    /** A recorder for one player; null when the cache is off. */
+    Recorder recorder(File file, AudioFormat format) {
+        return isEnabled() ? new Recorder(TrackKey.of(file), format) : null;
+    }
+
+    /** A reader for one player; null when the cache is off. */
+    Reader reader(File file, AudioFormat format) {
+        return isEnabled() ? new Reader(TrackKey.of(file), format) : null;
+    }
+
+    private static int segmentBytes(AudioFormat format) {
+        return SEGMENT_BYTES - SEGMENT_BYTES % format.getFrameSize();
+    }
+
+    /**
+     * Copies what the playback thread decodes into the segment being filled
+     * and hands full ones (and cut-short ones, at a jump) to the cache. Used
+     * by one thread.
+     */
+    final class Recorder {
+        private final TrackKey track;
+        private final AudioFormat format;
+        private final int segmentBytes;
+        private long index = -1;
+        private int from;
+        private int end;
+        private byte[] fill; // null while this segment isn't being recorded
+
+        private Recorder(TrackKey track, AudioFormat format) {
+            this.track = track;
+            this.format = format;
+            this.segmentBytes = segmentBytes(format);
+        }
+
+        /** {@code length} decoded bytes at byte {@code offset} of the track. */
+        void write(long offset, byte[] data, int length) {
+            int off = 0;
+            while (length > 0) {
+                long segment = offset / segmentBytes;
+                int within = (int) (offset % segmentBytes);
+                if (segment != index || within != end)
+                    start(segment, within);
+                int n = Math.min(length, segmentBytes - within);
+                if (fill != null)
+                    System.arraycopy(data, off, fill, within, n);
+                end += n;
+                offset += n;
+                off += n;
+                length -= n;
+                if (end == segmentBytes)
+                    seal(false);
+            }
+        }
+
+        /** The track ended at {@code offset}. */
+        void end(long offset) {
+            if (offset == index * segmentBytes + end)
+                seal(true);
+            else
+                drop();
+        }
+
+        /** Keeps what has been recorded of the current segment; called when the player is done. */
+        void close() {
+            seal(false);
+        }
+
+        /** End of the recorded run through {@code offset} in the segment being filled, or {@code offset}. */
+        long liveUntil(long offset) {
+            long base = index * segmentBytes;
+            return fill != null && offset >= base + from && offset < base + end ? base + end : offset;
+        }
+
+        /** Up to {@code length} bytes at {@code offset} from the segment being filled, or 0. */
+        int read(long offset, byte[] buffer, int length) {
+            long base = index * segmentBytes;
+            if (fill == null || offset < base + from || offset >= base + end)
+                return 0;
+            int n = (int) Math.min(length, base + end - offset);
+            System.arraycopy(fill, (int) (offset - base), buffer, 0, n);
+            return n;
+        }
+
+        private void start(long segment, int within) {
+            seal(false);
+            index = segment;
+            from = within;
+            end = within;
+            Segment cached = segment(new SegmentKey(track, segment));
+            if (cached != null && cached.from <= within
+                    && (cached.from + cached.length == segmentBytes || cached.last)) {
+                return; // already there to the end of the segment
+            }
+            fill = spares.poll();
+            if (fill == null) {
+                skipped.incrementAndGet();
+                worker.execute(topUp);
+            }
+        }
+
+        private void seal(boolean last) {
+            if (fill != null && end > from)
+                put(new SegmentKey(track, index), new Segment(format, from, end - from, last, fill));
+            else
+                drop();
+            fill = null;
+        }
+
+        private void drop() {
+            if (fill != null)
+                spares.offer(fill);
+            fill = null;
+        }
+    }
+
+    /** Reads cached segments of one track for one player thread. */
+    final class Reader {
+        private final TrackKey track;
+        private final int segmentBytes;
+        private long index = -1;
+        private Segment segment;
+        // deflate storage: the current segment, inflated
+        private Inflater inflater;
+        private byte[] inflated;
+        private Segment inflatedFrom;
+
+        private Reader(TrackKey track, AudioFormat format) {
+            this.track = track;
+            this.segmentBytes = segmentBytes(format);
+            if (storage == Storage.DEFLATE) {
+                inflater = new Inflater();
+                inflated = new byte[SEGMENT_BYTES];
+            }
+        }
+
+        /** End of the cached segment holding {@code offset}, or {@code offset} if it isn't cached. */
+        long cachedUntil(long offset) {
+            Segment found = find(offset);
+            return found == null ? offset : index * segmentBytes + found.from + found.length;
+        }
+
+        /** Whether the segment ending at {@code offset} ends the track. */
+        boolean endsTrack(long offset) {
+            Segment found = offset == 0 ? null : find(offset - 1);
+            return found != null && found.last && index * segmentBytes + found.from + found.length == offset;
+        }
+
+        /** Up to {@code length} bytes at {@code offset}, or 0 when they aren't cached (any more). */
+        int read(long offset, byte[] buffer, int length) {
+            Segment found = find(offset);
+            if (found == null)
+                return 0;
+            int within = (int) (offset - index * segmentBytes);
+            int n = Math.min(length, found.from + found.length - within);
+            synchronized (found) {
+                if (found.heap != null) {
+                    System.arraycopy(found.heap, within, buffer, 0, n);
+                } else if (found.direct != null) {
+                    found.direct.get(within - found.from, buffer, 0, n);
+                } else if (found.deflated != null) {
+                    if (inflatedFrom != found && !inflate(found))
+                        return 0;
+                    System.arraycopy(inflated, within - found.from, buffer, 0, n);
+                } else {
+                    return 0; // evicted
+                }
+            }
+            hits.incrementAndGet();
+            return n;
+        }
+
+        void close() {
+            if (inflater != null)
+                inflater.end();
+        }
+
+        private Segment find(long offset) {
+            long wanted = offset / segmentBytes;
+            if (wanted != index || segment == null || segment.size() == 0) { // size 0: evicted or replaced
+                index = wanted;
+                segment = segment(new SegmentKey(track, wanted));
+            }
+            return segment != null && segment.covers((int) (offset - wanted * segmentBytes)) ? segment : null;
+        }
+
+        private boolean inflate(Segment found) {
+            inflater.reset();
+            inflater.setInput(found.deflated);
+            try {
+                int n = 0;
+                while (n < found.length && !inflater.finished())
+                    n += inflater.inflate(inflated, n, found.length - n);
+            } catch (DataFormatException e) {
+                System.err.println("Corrupt PCM cache segment: " + e.getMessage());
+                return false;
+            }
+            if (deltaCoded(found.format)) {
+                int stride = found.format.getChannels() * 2;
+                for (int i = stride; i + 1 < found.length; i += 2) {
+                    int value = sample(inflated, i) + sample(inflated, i - stride);
+                    inflated[i] = (byte) value;
+                    inflated[i + 1] = (byte) (value >> 8);
+                }
+            }
+            inflatedFrom = found;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Playback-side PCM conversion: signed little-endian PCM at the decoder's
+ * native depth and rate in, whatever the output line accepts out. Samples are
+ * converted to float once, scaled by the track gain, resampled if the line
+ * can't take the source rate and requantized with TPDF dither when the output
+ * has fewer bits than the signal. All buffers are allocated up front for the
+ * largest chunk passed to {@link #process}, so the audio thread doesn't
+ * allocate.
+ *
+ * Inner loops work on one channel's contiguous float array so HotSpot can
+ * vectorize them (the {@code jdk.incubator.vector} API would need
+ * {@code --add-modules} on Java 17).
+ */
+public class PcmPipeline {
+
+    private static final float[] FALLBACK_RATES = { 48000f, 44100f };
+
+    private final int channels;
+    private final int inBytes;
+    private final int outBytes;
+    private final AudioFormat outputFormat;
+    private final boolean ditherAlways;
+
+    private final float[][] planes; // per channel, source rate
+    private final Resampler resampler;
+    private final byte[] output;
+    private byte[] lastOutput;
+    private int seed = 0x2545F491;
+
+    /**
+     * @param source         signed little-endian PCM, 16 to 32 bit
+     * @param maxInputFrames largest number of frames passed to {@link #process}
+     */
+    public PcmPipeline(AudioFormat source, int maxInputFrames) {
+        this(source, chooseOutput(source), maxInputFrames);
+    }
+
+    PcmPipeline(AudioFormat source, AudioFormat output, int maxInputFrames) {
+        this.channels = source.getChannels();
+        this.inBytes = source.getSampleSizeInBits() / 8;
+        this.outBytes = output.getSampleSizeInBits() / 8;
+        this.outputFormat = output;
+        this.ditherAlways = outBytes < inBytes;
+
+        planes = new float[channels][maxInputFrames];
+        resampler = source.getSampleRate() == output.getSampleRate() ? null
+                : new Resampler(source.getSampleRate(), output.getSampleRate(), channels, maxInputFrames);
+        int maxOutFrames = resampler == null ? maxInputFrames : resampler.maxOutputFrames();
+        this.output = new byte[maxOutFrames * channels * outBytes];
+        this.lastOutput = this.output;
+
+        System.out.println("PCM pipeline: " + source + " -> " + output
+                + (resampler != null ? " (resampled)" : "") + (ditherAlways ? " (dithered)" : ""));
+    }
+
+    public AudioFormat outputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * Converted bytes of the last {@link #process} call; the input array itself
+     * when nothing had to be done.
+     */
+    public byte[] output() {
+        return lastOutput;
+    }
+
+    /** Drops resampler history, e.g. after a seek. */
+    public void reset() {
+        if (resampler != null)
+            resampler.reset();
+    }
+
+    /**
+     * Converts {@code length} bytes (whole frames) of {@code input} and
+     * returns the number of bytes now in {@link #output()}.
+     */
+    public int process(byte[] input, int length, float gain) {
+        if (gain == 1f && resampler == null && inBytes == outBytes) {
+            lastOutput = input;
+            return length;
+        }
+        lastOutput = output;
+
+        int frames = length / (channels * inBytes);
+        deinterleave(input, frames);
+        if (gain != 1f) {
+            for (int c = 0; c < channels; c++)
+                scale(planes[c], frames, gain);
+        }
+
+        float[][] result = planes;
+        int outFrames = frames;
+        if (resampler != null) {
+            outFrames = resampler.process(planes, frames);
+            result = resampler.output();
+        }
+
+        // Dither whenever the signal has more resolution than the output: a
+        // narrower output, or 16-bit after gain or resampling.
+        boolean dither = ditherAlways || (outBytes == 2 && (gain != 1f || resampler != null));
+        interleave(result, outFrames, dither);
+        return outFrames * channels * outBytes;
+    }
+
+    private void deinterleave(byte[] in, int frames) {
+        int stride = channels * inBytes;
+        for (int c = 0; c < channels; c++) {
+            float[] plane = planes[c];
+            int i = c * inBytes;
+            switch (inBytes) {
+                case 2 -> {
+                    for (int f = 0; f < frames; f++, i += stride)
+                        plane[f] = (short) ((in[i] & 0xFF) | (in[i + 1] << 8)) * (1f / 32768f);
+                }
+                case 3 -> {
+                    for (int f = 0; f < frames; f++, i += stride)
+                        plane[f] = ((in[i] & 0xFF) | ((in[i + 1] & 0xFF) << 8) | (in[i + 2] << 16))
+                                * (1f / 8388608f);
+                }
+                default -> {
+                    for (int f = 0; f < frames; f++, i += stride)
+                        plane[f] = ((in[i] & 0xFF) | ((in[i + 1] & 0xFF) << 8) | ((in[i + 2] & 0xFF) << 16)
+                                | (in[i + 3] << 24)) * (1f / 2147483648f);
+                }
+            }
+        }
+    }
+
+    private static void scale(float[] plane, int frames, float gain) {
+        for (int f = 0; f < frames; f++)
+            plane[f] *= gain;
+    }
+
+    private void interleave(float[][] in, int frames, boolean dither) {
+        if (outBytes == 2) {
+            interleave16(in, frames, dither);
+            return;
+        }
+        int stride = channels * outBytes;
+        double full = Math.scalb(1.0, outBytes * 8 - 1);
+        double max = full - 1;
+        for (int c = 0; c < channels; c++) {
+            float[] plane = in[c];
+            int o = c * outBytes;
+            for (int f = 0; f < frames; f++, o += stride) {
+                double v = plane[f] * full;
+                if (dither)
+                    v += tpdf();
+                long q = Math.round(v);
+                if (q > max)
+                    q = (long) max;
+                else if (q < -full)
+                    q = (long) -full;
+                output[o] = (byte) q;
+                output[o + 1] = (byte) (q >> 8);
+                if (outBytes > 2)
+                    output[o + 2] = (byte) (q >> 16);
+                if (outBytes > 3)
+                    output[o + 3] = (byte) (q >> 24);
+            }
+        }
+    }
+
+    private void interleave16(float[][] in, int frames, boolean dither) {
+        int stride = channels * 2;
+        for (int c = 0; c < channels; c++) {
+            float[] plane = in[c];
+            int o = c * 2;
+            for (int f = 0; f < frames; f++, o += stride) {
+                float v = plane[f] * 32768f;
+                if (dither)
+                    v += tpdf();
+                v = Math.max(-32768f, Math.min(32767f, v));
+                int q = (int) (v + (v < 0 ? -0.5f : 0.5f));
+                output[o] = (byte) q;
+                output[o + 1] = (byte) (q >> 8);
+            }
+        }
+    }
+
+    /**
+     * Triangular noise of +-1 LSB: the sum of two independent uniform values,
+     * both taken from the halves of one xorshift32 draw (16 bits of
+     * resolution per half is plenty for dither).
+     */
+    private float tpdf() {
+        int x = seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        seed = x;
+        return ((x & 0xFFFF) + (x >>> 16) - 65535) * (1f / 65536f);
+    }
+
+    /**
+     * Picks the line format closest to {@code source}: its own depth and rate,
+     * then lower depths at the same rate, then common rates at 16 bit.
+     */
+    static AudioFormat chooseOutput(AudioFormat source) {
+        List<AudioFormat> candidates = new ArrayList<>();
+        int bits = source.getSampleSizeInBits();
+        for (int b = bits; b >= 16; b -= 8)
+            candidates.add(pcm(source.getSampleRate(), b, source.getChannels()));
+        for (float rate : FALLBACK_RATES) {
+            if (rate != source.getSampleRate())
+                candidates.add(pcm(rate, 16, source.getChannels()));
+        }
+
+        for (AudioFormat candidate : candidates) {
+            if (AudioOutput.get().isSupported(candidate))
+                return candidate;
+        }
+        // nothing reported as supported (e.g. no mixer yet): let line.open complain
+        return pcm(source.getSampleRate(), Math.min(bits, 16), source.getChannels());
+    }
+
+    private static AudioFormat pcm(float rate, int bits, int channels) {
+        return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, rate, bits, channels, channels * bits / 8, rate,
+                false);
+    }
+
+    /**
+     * Polyphase windowed-sinc (Kaiser) resampler for a rational ratio
+     * {@code L/M}. Each output sample is one dot product of {@link #taps}
+     * coefficients with contiguous input history; the cutoff follows the lower
+     * of the two Nyquist frequencies.
+     */
+    static class Resampler {
+
+        private static final int MAX_PHASES = 1024;
+        private static final int ZERO_CROSSINGS = 12;
+        private static final double KAISER_BETA = 8.0;
+
+        private final int up;
+        private final int down;
+        private final int phases;
+        private final int taps;
+        private final float[][] coefficients;
+        private final float[][] history;
+        private final float[][] out;
+        private final int maxInputFrames;
+        private int available; // frames in history
+        private int position; // integer input position of the next output
+        private int fraction; // 0..up-1, in units of 1/up input samples
+
+        Resampler(float fromRate, float toRate, int channels, int maxInputFrames) {
+            int from = Math.round(fromRate);
+            int to = Math.round(toRate);
+            int gcd = gcd(from, to);
+            this.up = to / gcd;
+            this.down = from / gcd;
+            this.phases = Math.min(up, MAX_PHASES);
+            this.maxInputFrames = maxInputFrames;
+
+            double cutoff = Math.min(1.0, (double) up / down) * 0.95;
+            int n = (int) Math.ceil(2 * ZERO_CROSSINGS / cutoff);
+            this.taps = Math.min(256, (n + 3) & ~3);
+            this.coefficients = new float[phases][taps];
+            for (int p = 0; p < phases; p++)
+                design(coefficients[p], (double) p / phases, cutoff);
+
+            this.history = new float[channels][taps + maxInputFrames];
+            this.out = new float[channels][maxOutputFrames()];
+            reset();
+        }
+
+        int maxOutputFrames() {
+            return (int) ((long) (maxInputFrames + 1) * up / down) + 2;
+        }
+
+        float[][] output() {
+            return out;
+        }
+
+        void reset() {
+            for (float[] h : history)
+                java.util.Arrays.fill(h, 0f);
+            available = taps / 2; // primed with silence so the first output is centred
+            position = 0;
+            fraction = 0;
+        }
+
+        private void design(float[] h, double offset, double cutoff) {
+            int half = taps / 2;
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                double d = k - (half - 1) - offset;
+                double x = Math.PI * cutoff * d;
+                double sinc = d == 0 ? 1.0 : Math.sin(x) / x;
+                double w = d / half;
+                double window = Math.abs(w) >= 1 ? 0 : bessel0(KAISER_BETA * Math.sqrt(1 - w * w)) / bessel0(KAISER_BETA);
+                h[k] = (float) (cutoff * sinc * window);
+                sum += h[k];
+            }
+            for (int k = 0; k < taps; k++)
+                h[k] /= sum; // unity DC gain per phase
+        }
+
+        int process(float[][] in, int frames) {
+            for (int c = 0; c < history.length; c++)
+                System.arraycopy(in[c], 0, history[c], available, frames);
+            available += frames;
+
+            int produced = 0;
+            while (position + taps <= available) {
+                float[] h = coefficients[phases == up ? fraction : (int) ((long) fraction * phases / up)];
+                for (int c = 0; c < history.length; c++)
+                    out[c][produced] = dot(history[c], position, h);
+                produced++;
+
+                fraction += down;
+                position += fraction / up;
+                fraction %= up;
+            }
+
+            // keep the unconsumed tail for the next call
+            int consumed = Math.min(position, available);
+            for (float[] h : history)
+                System.arraycopy(h, consumed, h, 0, available - consumed);
+            available -= consumed;
+            position -= consumed;
+            return produced;
+        }
+
+        private float dot(float[] x, int start, float[] h) {
+            // four independent sums: the FP adds don't serialise on one register
+            float a0 = 0f, a1 = 0f, a2 = 0f, a3 = 0f;
+            for (int k = 0; k < taps; k += 4) {
+                a0 += x[start + k] * h[k];
+                a1 += x[start + k + 1] * h[k + 1];
+                a2 += x[start + k + 2] * h[k + 2];
+                a3 += x[start + k + 3] * h[k + 3];
+            }
+            return (a0 + a1) + (a2 + a3);
+        }
+
+        private static double bessel0(double x) {
+            double sum = 1, term = 1;
+            for (int k = 1; k < 50; k++) {
+                term *= (x / (2 * k)) * (x / (2 * k));
+                sum += term;
+                if (term < 1e-12 * sum)
+                    break;
+            }
+            return sum;
+        }
+
+        private static int gcd(int a, int b) {
+            return b == 0 ? a : gcd(b, a % b);
+        }
+    }
+
+    /**
+     * Compares this pipeline with what playback did before: the Java Sound
+     * converter chain ({@code AudioSystem.getAudioInputStream}, truncating to
+     * 16 bit, linear-interpolation resampling) followed by an in-place gain
+     * pass. Runs a depth-only and a resampling case on synthetic 24-bit audio,
+     * or on a decoded file.
+     *
+     * Usage: PcmPipeline [file]
+     */
+    public static void main(String[] args) throws Exception {
+        byte[] pcm;
+        AudioFormat source;
+        if (args.length > 0 && new File(args[0]).isFile()) {
+            try (AudioInputStream in = PcmStreams.open(new File(args[0]))) {
+                source = in.getFormat();
+                pcm = in.readAllBytes();
+            }
+        } else {
+            source = pcm(96000f, 24, 2);
+            pcm = synthetic(source, 60);
+        }
+        double seconds = pcm.length / (double) source.getFrameSize() / source.getSampleRate();
+        System.out.printf("%s, %.1f s of audio%n", source, seconds);
+
+        float otherRate = source.getSampleRate() == 48000f ? 44100f : 48000f;
+        for (AudioFormat target : List.of(pcm(source.getSampleRate(), 16, source.getChannels()),
+                pcm(otherRate, 16, source.getChannels()))) {
+            System.out.println("-> " + target);
+            for (int round = 0; round < 5; round++) {
+                long t0 = System.nanoTime();
+                long javaSoundBytes = viaJavaSound(pcm, source, target);
+                long t1 = System.nanoTime();
+                long pipelineBytes = viaPipeline(pcm, source, target);
+                long t2 = System.nanoTime();
+                System.out.printf("  round %d: java sound %6.1f ms (%.0fx realtime, %d B)   pipeline %6.1f ms (%.0fx realtime, %d B)%n",
+                        round, (t1 - t0) / 1e6, seconds / ((t1 - t0) / 1e9), javaSoundBytes,
+                        (t2 - t1) / 1e6, seconds / ((t2 - t1) / 1e9), pipelineBytes);
+            }
+        }
+    }
+
+    private static long viaJavaSound(byte[] pcm, AudioFormat source, AudioFormat target) throws IOException {
+        AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), source,
+                pcm.length / source.getFrameSize());
+        try (InputStream converted = AudioSystem.getAudioInputStream(target, in)) {
+            byte[] buffer = new byte[4096];
+            long total = 0;
+            int n;
+            while ((n = converted.read(buffer)) > 0) {
+                for (int i = 0; i + 1 < n; i += 2) {
+                    int v = Math.round(((buffer[i] & 0xFF) | (buffer[i + 1] << 8)) * 0.8f);
+                    v = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+                    buffer[i] = (byte) v;
+                    buffer[i + 1] = (byte) (v >> 8);
+                }
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    private static long viaPipeline(byte[] pcm, AudioFormat source, AudioFormat target) {
+        int chunk = 4096 - 4096 % source.getFrameSize();
+        PcmPipeline pipeline = new PcmPipeline(source, target, chunk / source.getFrameSize());
+        // the benchmark loop itself allocates nothing beyond this point
+        byte[] buffer = new byte[chunk];
+        long total = 0;
+        for (int pos = 0; pos < pcm.length; pos += chunk) {
+            int n = Math.min(chunk, pcm.length - pos);
+            System.arraycopy(pcm, pos, buffer, 0, n);
+            total += pipeline.process(buffer, n, 0.8f);
+        }
+        return total;
+    }
+
+    private static byte[] synthetic(AudioFormat format, int seconds) {
+        int frames = (int) format.getSampleRate() * seconds;
+        int bytes = format.getSampleSizeInBits() / 8;
+        byte[] data = new byte[frames * format.getFrameSize()];
+        for (int f = 0, o = 0; f < frames; f++) {
+            for (int c = 0; c < format.getChannels(); c++, o += bytes) {
+                double t = f / format.getSampleRate();
+                int v = (int) (0.5 * Math.sin(2 * Math.PI * (440 + 110 * c) * t) * 8388607);
+                data[o] = (byte) v;
+                data[o + 1] = (byte) (v >> 8);
+                data[o + 2] = (byte) (v >> 16);
+            }
+        }
+        return data;
+    }
+}
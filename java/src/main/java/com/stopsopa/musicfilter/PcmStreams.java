@@ -0,0 +1,96 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Headless decoding helpers shared by the batch tools (loudness analysis etc.).
+ * Mirrors the SPI selection done by {@link JavaSoundAudioPlayer} but never
+ * touches an output line. Large FLAC files are decoded on every core by
+ * {@link FlacParallelDecoder}.
+ */
+public class PcmStreams {
+
+    /**
+     * Opens {@code file} as signed little-endian PCM at the source bit depth
+     * (falling back to 16-bit when the decoder can't produce it).
+     */
+    public static AudioInputStream open(File file) throws UnsupportedAudioFileException, IOException {
+        AudioFileType type = FormatRegistry.get().typeOf(file);
+        if (type == AudioFileType.FLAC && file.length() >= FlacParallelDecoder.MIN_FILE_BYTES) {
+            try {
+                return FlacParallelDecoder.open(file);
+            } catch (UnsupportedAudioFileException | IOException e) {
+                System.out.println("Parallel FLAC decoding of " + file.getName() + " failed (" + e.getMessage()
+                        + "), decoding on one thread");
+            }
+        }
+        AudioInputStream encodedStream;
+        if (type == AudioFileType.OGG) {
+            encodedStream = new javazoom.spi.vorbis.sampled.file.VorbisAudioFileReader().getAudioInputStream(file);
+        } else {
+            encodedStream = AudioSystem.getAudioInputStream(file);
+        }
+        return toPcm(encodedStream);
+    }
+
+    /**
+     * Decodes {@code encodedStream} to signed little-endian PCM at its own bit
+     * depth, or 16-bit when the decoder can't produce that.
+     */
+    public static AudioInputStream toPcm(AudioInputStream encodedStream) {
+        AudioFormat baseFormat = encodedStream.getFormat();
+        if (isPcmLittleEndian(baseFormat))
+            return encodedStream;
+
+        int bitDepth = baseFormat.getSampleSizeInBits();
+        if (bitDepth == AudioSystem.NOT_SPECIFIED || bitDepth % 8 != 0 || bitDepth < 16 || bitDepth > 32)
+            bitDepth = 16;
+
+        try {
+            return AudioSystem.getAudioInputStream(pcmFormat(baseFormat, bitDepth), encodedStream);
+        } catch (IllegalArgumentException e) {
+            if (bitDepth == 16)
+                throw e;
+            return AudioSystem.getAudioInputStream(pcmFormat(baseFormat, 16), encodedStream);
+        }
+    }
+
+    static AudioFormat pcmFormat(AudioFormat baseFormat, int bitDepth) {
+        return new AudioFormat(
+                AudioFormat.Encoding.PCM_SIGNED,
+                baseFormat.getSampleRate(),
+                bitDepth,
+                baseFormat.getChannels(),
+                baseFormat.getChannels() * (bitDepth / 8),
+                baseFormat.getSampleRate(),
+                false);
+    }
+
+    static boolean isPcmLittleEndian(AudioFormat format) {
+        return format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+                && !format.isBigEndian()
+                && format.getSampleSizeInBits() % 8 == 0
+                && format.getSampleSizeInBits() >= 16
+                && format.getSampleSizeInBits() <= 32;
+    }
+
+    /**
+     * Converts one signed little-endian sample starting at {@code offset} to
+     * the range [-1, 1).
+     */
+    static float sampleAt(byte[] data, int offset, int bytesPerSample) {
+        return switch (bytesPerSample) {
+            case 2 -> (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8)) / 32768f;
+            case 3 -> ((data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] << 16))
+                    / 8388608f;
+            case 4 -> ((data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8)
+                    | ((data[offset + 2] & 0xFF) << 16) | (data[offset + 3] << 24)) / 2147483648f;
+            default -> 0f;
+        };
+    }
+}
@@ -0,0 +1,421 @@
+package com.stopsopa.musicfilter;
+
+import javafx.util.Duration;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.SourceDataLine;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays files through {@link JavaSoundAudioPlayer} into a line that discards
+ * the audio (as fast as the decoder goes) and counts what the playback thread
+ * allocates per second of audio once it is past the first seconds.
+ * Allocation there turns into young GCs during long sessions, which glitch
+ * when the line's buffer is short.
+ *
+ * <p>{@code [--max-kb 3] [--seconds 120] [files...]}: without files, a WAV
+ * and a FLAC track are generated with {@link LibraryGenerator} (in a UTF-8
+ * locale: their names aren't ASCII). Exits with 1 if any file allocates more
+ * than {@code --max-kb} KB per second of audio. The default is just above
+ * what is left: about 0.5 KB/s for WAV (a block cache lookup and read-ahead
+ * task per 64 KB, position updates) and 2 KB/s for FLAC, where jflac adds a
+ * few objects per frame.
+ * A second, real-time run of each file does a burst of seeks and reports their cost
+ * (not checked).
+ *
+ * <p>The first run also feeds the player's {@link SpectrumTap} to a reader
+ * that analyses it like {@link SpectrumMeter} at display rate, so the check
+ * covers the tap's writes on the playback thread. The time those writes take
+ * is reported, and the reader must not allocate either.
+ */
+public class PlaybackAllocationCheck {
+
+    private static final double WARMUP_SECONDS = 3;
+    private static final int SEEKS = 20;
+    private static final long FRAME_MILLIS = 16;
+    private static final int WARMUP_FRAMES = 2000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        double maxKilobytes = 3;
+        int seconds = 120;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--max-kb" -> maxKilobytes = Double.parseDouble(args[++i]);
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                default -> files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            File dir = new File(System.getProperty("java.io.tmpdir"), "musicfilter-alloc-" + seconds);
+            for (AudioFileType type : new AudioFileType[] { AudioFileType.WAV, AudioFileType.FLAC }) {
+                File library = new File(dir, type.name().toLowerCase());
+                File generated = firstAudioFile(library);
+                if (generated == null) {
+                    new LibraryGenerator(new LibraryGenerator.Options(library, 1, 1, Map.of(type, 1),
+                            LibraryGenerator.Layout.NONE, 0, 0, 0, seconds, true)).generate();
+                    generated = firstAudioFile(library);
+                }
+                if (generated == null) {
+                    // the generated names aren't ASCII; without a UTF-8 file name encoding they can't be created
+                    System.err.println("No audio file generated in " + library + " (file name encoding "
+                            + System.getProperty("sun.jnu.encoding") + "; try LC_ALL=C.UTF-8)");
+                    System.exit(1);
+                }
+                files.add(generated);
+            }
+        }
+
+        SpectrumReader.warmUp();
+        boolean failed = false;
+        for (File file : files) {
+            Measurement m = measure(file);
+            if (m == null) {
+                failed = true;
+                continue;
+            }
+            boolean ok = m.kilobytesPerSecond() <= maxKilobytes;
+            boolean readerOk = m.spectrum().readerBytes() == 0;
+            failed |= !ok || !readerOk;
+            System.out.printf("%-4s %s: %.2f KB per second of audio over %.0f s (%d writes, %.0f bytes each), "
+                    + "%d seeks %.0f KB each: %s%n", ok && readerOk ? "PASS" : "FAIL", file.getName(),
+                    m.kilobytesPerSecond(), m.audioSeconds(), m.writes(), m.bytesPerWrite(), SEEKS,
+                    m.kilobytesPerSeek(), ok ? "ok" : "over " + maxKilobytes + " KB/s");
+            Spectrum sp = m.spectrum();
+            System.out.printf("     spectrum tap: %d writes, %.2f us mean, %.0f us longest; reader %d frames, "
+                    + "%d missed, %d bytes allocated: %s%n", sp.writes(), sp.meanMicros(), sp.maxMicros(),
+                    sp.reads(), sp.misses(), sp.readerBytes(), readerOk ? "ok" : "reader allocates");
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private record Spectrum(long writes, double meanMicros, double maxMicros, long reads, long misses,
+            long readerBytes) {
+    }
+
+    private record Measurement(double audioSeconds, long allocatedBytes, long writes, long seekBytes,
+            Spectrum spectrum) {
+        double kilobytesPerSecond() {
+            return allocatedBytes / 1024.0 / audioSeconds;
+        }
+
+        double bytesPerWrite() {
+            return writes == 0 ? 0 : (double) allocatedBytes / writes;
+        }
+
+        double kilobytesPerSeek() {
+            return seekBytes / 1024.0 / SEEKS;
+        }
+    }
+
+    private static final ExecutorService UI = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "alloc-check-ui");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static Measurement measure(File file) throws IOException, InterruptedException {
+        // Read-ahead keeps the block cache in front of real-time playback; this one runs faster, so load it first
+        try (CachedFile cached = BlockCache.get().open(file)) {
+            byte[] block = new byte[BlockCache.BLOCK_SIZE];
+            while (cached.read(block, 0, block.length) > 0) {
+            }
+        }
+        CountingLine line = new CountingLine();
+        JavaSoundAudioPlayer player = new JavaSoundAudioPlayer(file, format -> {
+            line.open(format);
+            return line;
+        }, UI);
+        Duration total = player.totalDurationProperty().get();
+        CountDownLatch ended = new CountDownLatch(1);
+        player.setOnEndOfMedia(ended::countDown);
+        player.setOnError(ended::countDown);
+        SpectrumReader reader = new SpectrumReader(player.spectrumTap());
+        player.spectrumTap().setEnabled(true);
+        reader.start();
+        player.play();
+        boolean finished = ended.await(10, TimeUnit.MINUTES);
+        reader.done = true;
+        reader.join();
+        if (!finished || line.audioSeconds() <= WARMUP_SECONDS) {
+            System.out.println("FAIL " + file.getName() + ": playback did not finish");
+            player.dispose();
+            return null;
+        }
+        SpectrumTap tap = player.spectrumTap();
+        Spectrum spectrum = new Spectrum(tap.writes(), tap.meanWriteMicros(), tap.maxWriteMicros(),
+                reader.analysis.reads, reader.analysis.misses, reader.measuredBytes);
+        double seconds = line.audioSeconds() - WARMUP_SECONDS;
+        long allocated = line.measuredBytes;
+        long writes = line.measuredWrites;
+
+        // Seeks on a fresh run of the same file: allocation on the playback thread per seek, all kinds
+        long seekBytes = 0;
+        if (total != null && !total.isUnknown()) {
+            CountingLine seekLine = new CountingLine();
+            JavaSoundAudioPlayer seeking = new JavaSoundAudioPlayer(file, format -> {
+                seekLine.open(format);
+                return seekLine;
+            }, UI);
+            seekLine.pace = true;
+            seeking.play();
+            seekLine.awaitWrites(10);
+            long before = seekLine.threadAllocated();
+            for (int i = 0; i < SEEKS; i++) {
+                seeking.seek(total.multiply((i * 7 % SEEKS) / (double) SEEKS));
+                seekLine.awaitWrites(2);
+            }
+            seekBytes = seekLine.threadAllocated() - before;
+            seeking.dispose();
+        }
+        player.dispose();
+        return new Measurement(seconds, allocated, writes, seekBytes, spectrum);
+    }
+
+    /** Reads the tap at display rate, counting its own allocations once the warm-up audio is through. */
+    private static class SpectrumReader extends Thread {
+        private final SpectrumTap tap;
+        private final SpectrumMeter.Analysis analysis = new SpectrumMeter.Analysis();
+        private volatile boolean done;
+        private long measuredBytes;
+
+        SpectrumReader(SpectrumTap tap) {
+            super("alloc-check-spectrum");
+            setDaemon(true);
+            this.tap = tap;
+        }
+
+        /** As the playback thread has its warm-up seconds: the first calls allocate while they are compiled. */
+        static void warmUp() {
+            SpectrumTap scratch = new SpectrumTap();
+            scratch.format(new AudioFormat(44100, 16, 1, true, false));
+            scratch.setEnabled(true);
+            byte[] noise = new byte[2 * SpectrumMeter.Analysis.SIZE];
+            new java.util.Random(1).nextBytes(noise);
+            scratch.write(noise, 0, noise.length);
+            SpectrumMeter.Analysis analysis = new SpectrumMeter.Analysis();
+            for (int i = 0; i < WARMUP_FRAMES; i++)
+                analysis.update(scratch, 0);
+        }
+
+        @Override
+        public void run() {
+            long startAllocated = -1;
+            try {
+                while (!done) {
+                    analysis.update(tap, 0);
+                    long allocated = THREADS.getCurrentThreadAllocatedBytes();
+                    if (startAllocated < 0 && tap.written() >= WARMUP_SECONDS * tap.frameRate() && tap.frameRate() > 0)
+                        startAllocated = allocated;
+                    else if (startAllocated >= 0)
+                        measuredBytes = allocated - startAllocated;
+                    Thread.sleep(FRAME_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static File firstAudioFile(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    File found = firstAudioFile(child);
+                    if (found != null)
+                        return found;
+                } else if (!child.getName().equals(LibraryGenerator.MANIFEST)) {
+                    return child;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Swallows audio and, from the playback thread's side, adds up its
+     * allocations between the end of the warm-up and the last write.
+     */
+    private static class CountingLine implements SourceDataLine {
+        private AudioFormat format;
+        private volatile boolean open;
+        private volatile boolean pace;
+        private volatile long written;
+        private volatile Thread writer;
+        private long warmupBytes;
+        private long startAllocated = -1;
+        private volatile long measuredBytes;
+        private volatile long measuredWrites;
+        private volatile long writes;
+
+        double audioSeconds() {
+            return written / (format.getFrameSize() * (double) format.getFrameRate());
+        }
+
+        long threadAllocated() {
+            Thread t = writer;
+            return t == null ? 0 : THREADS.getThreadAllocatedBytes(t.getId());
+        }
+
+        void awaitWrites(int count) throws InterruptedException {
+            long target = writes + count;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (writes < target && System.nanoTime() < deadline)
+                Thread.sleep(1);
+        }
+
+        @Override
+        public int write(byte[] b, int off, int len) {
+            long allocated = THREADS.getCurrentThreadAllocatedBytes();
+            writer = Thread.currentThread();
+            if (startAllocated < 0 && written >= warmupBytes) {
+                startAllocated = allocated;
+            } else if (startAllocated >= 0) {
+                measuredBytes = allocated - startAllocated;
+                measuredWrites++;
+            }
+            written += len;
+            writes++;
+            if (pace) {
+                try {
+                    Thread.sleep((long) (len * 1000 / (format.getFrameSize() * (double) format.getFrameRate())));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return len;
+        }
+
+        @Override
+        public void open(AudioFormat format, int bufferSize) {
+            open(format);
+        }
+
+        @Override
+        public void open(AudioFormat format) {
+            this.format = format;
+            warmupBytes = (long) (WARMUP_SECONDS * format.getFrameSize() * format.getFrameRate());
+            open = true;
+        }
+
+        @Override
+        public void open() {
+            open = true;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void drain() {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isRunning() {
+            return open;
+        }
+
+        @Override
+        public boolean isActive() {
+            return open;
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public int getBufferSize() {
+            return 1 << 16;
+        }
+
+        @Override
+        public int available() {
+            return getBufferSize();
+        }
+
+        @Override
+        public int getFramePosition() {
+            return (int) getLongFramePosition();
+        }
+
+        @Override
+        public long getLongFramePosition() {
+            return format == null ? 0 : written / format.getFrameSize();
+        }
+
+        @Override
+        public long getMicrosecondPosition() {
+            return format == null ? 0 : (long) (getLongFramePosition() * 1_000_000 / format.getFrameRate());
+        }
+
+        @Override
+        public float getLevel() {
+            return AudioSystem.NOT_SPECIFIED;
+        }
+
+        @Override
+        public javax.sound.sampled.Line.Info getLineInfo() {
+            return new javax.sound.sampled.Line.Info(SourceDataLine.class);
+        }
+
+        @Override
+        public Control[] getControls() {
+            return new Control[0];
+        }
+
+        @Override
+        public boolean isControlSupported(Control.Type control) {
+            return false;
+        }
+
+        @Override
+        public Control getControl(Control.Type control) {
+            throw new IllegalArgumentException("No controls");
+        }
+
+        @Override
+        public void addLineListener(LineListener listener) {
+        }
+
+        @Override
+        public void removeLineListener(LineListener listener) {
+        }
+    }
+}
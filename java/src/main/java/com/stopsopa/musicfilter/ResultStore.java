@@ -0,0 +1,129 @@
+package com.stopsopa.musicfilter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-file results kept as text, for {@link IntegrityScanner} and
+ * {@link PcmAnalysis}. A result is stored under a name per path and holds
+ * only while the file has the size and mtime it had when the result was
+ * computed; a result for a changed file drops the others of that path.
+ *
+ * <p>Lines are {@code length<TAB>mtime<TAB>name<TAB>value<TAB>path}, where the
+ * value is a fixed number of tab-separated fields. New results are appended and
+ * the last line per path and name wins; the file is rewritten when it is loaded
+ * with more than twice as many lines as results (plus 1000).
+ */
+public class ResultStore {
+
+    private record Entry(long length, long modified, Map<String, String> values) {
+    }
+
+    private final File file;
+    private final String what;
+    private final int valueFields;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private boolean loaded;
+
+    /** {@code what} names the store in messages; values have {@code valueFields} fields. */
+    ResultStore(File file, String what, int valueFields) {
+        this.file = file;
+        this.what = what;
+        this.valueFields = valueFields;
+    }
+
+    /** The value stored as {@code name} for {@code path} at this size and mtime; null if there is none. */
+    public String get(String path, long length, long modified, String name) {
+        load();
+        Entry entry = entries.get(path);
+        if (entry == null || entry.length() != length || entry.modified() != modified)
+            return null;
+        return entry.values().get(name);
+    }
+
+    /** Stores {@code values} by name for {@code path} at this size and mtime, keeping its other current ones. */
+    public synchronized void put(String path, long length, long modified, Map<String, String> values) {
+        load();
+        Entry entry = entries.get(path);
+        if (entry == null || entry.length() != length || entry.modified() != modified) {
+            entry = new Entry(length, modified, new ConcurrentHashMap<>());
+            entries.put(path, entry);
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            entry.values().put(value.getKey(), value.getValue());
+            lines.append(line(path, entry, value.getKey(), value.getValue()));
+        }
+        try {
+            file.getParentFile().mkdirs();
+            try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(lines.toString());
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write " + what + " cache: " + e.getMessage());
+        }
+    }
+
+    /** Free text for a value field: no tabs or line breaks. */
+    static String field(String text) {
+        return text.replaceAll("[\t\r\n]", " ");
+    }
+
+    private synchronized void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.isFile())
+            return;
+        int lines = 0;
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", valueFields + 4);
+                if (fields.length < valueFields + 4)
+                    continue;
+                lines++;
+                try {
+                    long length = Long.parseLong(fields[0]);
+                    long modified = Long.parseLong(fields[1]);
+                    String value = String.join("\t", Arrays.copyOfRange(fields, 3, 3 + valueFields));
+                    entries.compute(fields[valueFields + 3], (path, entry) -> {
+                        if (entry == null || entry.length() != length || entry.modified() != modified)
+                            entry = new Entry(length, modified, new ConcurrentHashMap<>());
+                        entry.values().put(fields[2], value);
+                        return entry;
+                    });
+                } catch (NumberFormatException e) {
+                    // line from an interrupted write
+                }
+            }
+            int results = entries.values().stream().mapToInt(entry -> entry.values().size()).sum();
+            if (lines > 2 * results + 1000)
+                compact();
+        } catch (IOException e) {
+            System.err.println("Failed to read " + what + " cache: " + e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        entries.forEach((path, entry) -> entry.values().forEach(
+                (name, value) -> lines.append(line(path, entry, name, value))));
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(temp.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String line(String path, Entry entry, String name, String value) {
+        return entry.length() + "\t" + entry.modified() + "\t" + name + "\t" + value.replaceAll("[\r\n]", " ")
+                + "\t" + path + "\n";
+    }
+}
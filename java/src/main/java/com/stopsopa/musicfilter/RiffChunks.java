@@ -0,0 +1,296 @@
+package com.stopsopa.musicfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chunk walker for RIFF/RF64/BW64 WAVE and AIFF/AIFC files. Only chunk headers
+ * and the small metadata chunks are read (each capped at
+ * {@link #MAX_CHUNK_READ} bytes into one reusable buffer); {@code data} and
+ * {@code SSND} are skipped with a seek, so parse cost does not depend on the
+ * length of the recording. 64-bit sizes from the RF64/BW64 {@code ds64} chunk
+ * are honoured.
+ */
+public class RiffChunks {
+
+    private static final int MAX_CHUNK_READ = 4096;
+    private static final long SIZE_FROM_DS64 = 0xFFFFFFFFL;
+
+    private final CachedFile raf;
+    private final File file;
+    private final boolean littleEndian;
+    private final byte[] buffer = new byte[MAX_CHUNK_READ];
+    private final Map<String, Object> metadata = new HashMap<>();
+
+    // ds64 (RF64/BW64) sizes
+    private long ds64DataSize = -1;
+    private final Map<String, Long> ds64Table = new HashMap<>();
+
+    private long id3Offset = -1;
+
+    // needed for the duration
+    private long dataSize = -1;
+    private long byteRate = 0;
+    private double aiffSampleRate = 0;
+    private long aiffFrames = -1;
+
+    // bytes of the audio chunk missing at the end of the file
+    private long dataShortfall = -1;
+
+    private RiffChunks(CachedFile raf, File file, boolean littleEndian) {
+        this.raf = raf;
+        this.file = file;
+        this.littleEndian = littleEndian;
+    }
+
+    public static Map<String, Object> parseWav(File file) {
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            RiffChunks walker = new RiffChunks(raf, file, true);
+            if (walker.readFormHeader("RIFF", "RF64", "BW64", "WAVE", null)) {
+                System.out.println("Parsing WAV chunks for: " + file.getName());
+                walker.walk();
+            }
+            return walker.metadata;
+        } catch (Exception e) {
+            System.err.println("Error parsing WAV metadata: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    public static Map<String, Object> parseAiff(File file) {
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            RiffChunks walker = new RiffChunks(raf, file, false);
+            if (walker.readFormHeader("FORM", null, null, "AIFF", "AIFC")) {
+                System.out.println("Parsing AIFF chunks for: " + file.getName());
+                walker.walk();
+            }
+            return walker.metadata;
+        } catch (Exception e) {
+            System.err.println("Error parsing AIFF metadata: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    /** Embedded ID3v2 picture of a WAV ({@code littleEndian}) or AIFF file, or null. */
+    static byte[] readId3Picture(File file, boolean littleEndian) {
+        long offset = -1;
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            RiffChunks walker = new RiffChunks(raf, file, littleEndian);
+            if (littleEndian ? walker.readFormHeader("RIFF", "RF64", "BW64", "WAVE", null)
+                    : walker.readFormHeader("FORM", null, null, "AIFF", "AIFC")) {
+                walker.walk();
+                offset = walker.id3Offset;
+            }
+        } catch (Exception e) {
+            System.err.println("Error locating id3 chunk: " + e.getMessage());
+        }
+        return offset < 0 ? null : MetadataParser.readId3Picture(file, offset);
+    }
+
+    /**
+     * How many bytes of the audio chunk ({@code data} / {@code SSND}) are
+     * missing from the end of a WAV ({@code littleEndian}) or AIFF file: 0 if
+     * it's complete, -1 if there's no audio chunk or the file isn't one.
+     */
+    static long dataShortfall(File file, boolean littleEndian) throws IOException {
+        try (CachedFile raf = BlockCache.get().open(file)) {
+            RiffChunks walker = new RiffChunks(raf, file, littleEndian);
+            if (littleEndian ? walker.readFormHeader("RIFF", "RF64", "BW64", "WAVE", null)
+                    : walker.readFormHeader("FORM", null, null, "AIFF", "AIFC"))
+                walker.walk();
+            return walker.dataShortfall;
+        }
+    }
+
+    private boolean readFormHeader(String id, String altId1, String altId2, String form, String altForm)
+            throws IOException {
+        if (raf.length() < 12)
+            return false;
+        raf.readFully(buffer, 0, 12);
+        String chunkId = new String(buffer, 0, 4, StandardCharsets.ISO_8859_1);
+        String formType = new String(buffer, 8, 4, StandardCharsets.ISO_8859_1);
+        return (chunkId.equals(id) || chunkId.equals(altId1) || chunkId.equals(altId2))
+                && (formType.equals(form) || formType.equals(altForm));
+    }
+
+    private void walk() throws IOException {
+        long fileSize = raf.length();
+        long pos = 12;
+
+        while (fileSize - pos >= 8) {
+            raf.seek(pos);
+            raf.readFully(buffer, 0, 8);
+            String chunkId = new String(buffer, 0, 4, StandardCharsets.ISO_8859_1);
+            long chunkSize = getInt(buffer, 4) & 0xFFFFFFFFL;
+            if (chunkSize == SIZE_FROM_DS64 && littleEndian) {
+                // a data size past the end is how a truncated file shows; other sizes must fit the file
+                Long tableSize = ds64Table.get(chunkId);
+                if (chunkId.equals("data") && ds64DataSize >= 0)
+                    chunkSize = ds64DataSize;
+                else if (tableSize != null && tableSize >= 0 && tableSize <= fileSize)
+                    chunkSize = tableSize;
+            }
+
+            long body = pos + 8;
+            long available = Math.min(chunkSize, fileSize - body); // truncated files
+            if (chunkId.equals("data") || chunkId.equals("SSND"))
+                dataShortfall = chunkSize - Math.max(0, available);
+
+            System.out.println("  Found chunk: " + chunkId + ", size: " + chunkSize + " at " + pos);
+
+            switch (chunkId) {
+                case "ds64" -> readDs64(body, available);
+                case "fmt " -> readFmt(body, available);
+                case "data" -> dataSize = chunkSize;
+                case "COMM" -> readComm(body, available);
+                case "LIST" -> readList(body, available);
+                case "bext" -> readBext(body, available);
+                case "id3 ", "ID3 " -> {
+                    id3Offset = body;
+                    metadata.putAll(MetadataParser.parseId3v2(file, body));
+                }
+                case "NAME" -> putText("title", body, available);
+                case "AUTH" -> putText("artist", body, available);
+                case "ANNO" -> putText("comment", body, available);
+                case "(c) " -> putText("copyright", body, available);
+                default -> {
+                }
+            }
+
+            // Chunks are padded to an even number of bytes; a size that doesn't move on (or overflows) ends the walk
+            long next = body + chunkSize + (chunkSize & 1);
+            if (next <= pos)
+                break;
+            pos = next;
+        }
+
+        if (dataSize > 0 && byteRate > 0)
+            metadata.put("duration", (long) (dataSize * 1_000_000.0 / byteRate));
+        else if (aiffFrames > 0 && aiffSampleRate > 0)
+            metadata.put("duration", (long) (aiffFrames * 1_000_000.0 / aiffSampleRate));
+    }
+
+    private int fill(long pos, long length) throws IOException {
+        int n = (int) Math.min(length, buffer.length);
+        raf.seek(pos);
+        raf.readFully(buffer, 0, n);
+        return n;
+    }
+
+    /** RF64/BW64: riffSize(8) dataSize(8) sampleCount(8) tableLength(4) {id(4) size(8)}... */
+    private void readDs64(long body, long length) throws IOException {
+        int n = fill(body, length);
+        if (n < 28)
+            return;
+        ds64DataSize = getLong(buffer, 8);
+        int entries = getInt(buffer, 24);
+        for (int i = 0, off = 28; i < entries && off + 12 <= n; i++, off += 12) {
+            ds64Table.put(new String(buffer, off, 4, StandardCharsets.ISO_8859_1), getLong(buffer, off + 4));
+        }
+    }
+
+    private void readFmt(long body, long length) throws IOException {
+        int n = fill(body, length);
+        if (n >= 12)
+            byteRate = getInt(buffer, 8) & 0xFFFFFFFFL;
+    }
+
+    /** channels(2) numSampleFrames(4) sampleSize(2) sampleRate(80 bit extended) */
+    private void readComm(long body, long length) throws IOException {
+        int n = fill(body, length);
+        if (n < 18)
+            return;
+        aiffFrames = getInt(buffer, 2) & 0xFFFFFFFFL;
+        aiffSampleRate = readExtended(buffer, 8);
+    }
+
+    /** Broadcast Wave: description(256) originator(32) originatorReference(32) date(10) time(8) ... */
+    private void readBext(long body, long length) throws IOException {
+        int n = fill(body, length);
+        putBufferText("description", 0, Math.min(n, 256));
+        putBufferText("originator", 256, Math.min(n, 288) - 256);
+        putBufferText("originator_reference", 288, Math.min(n, 320) - 288);
+        putBufferText("date", 320, Math.min(n, 330) - 320);
+        putBufferText("time", 330, Math.min(n, 338) - 330);
+    }
+
+    private void readList(long body, long length) throws IOException {
+        if (length < 4)
+            return;
+        raf.seek(body);
+        raf.readFully(buffer, 0, 4);
+        String type = new String(buffer, 0, 4, StandardCharsets.ISO_8859_1);
+        System.out.println("    LIST type: " + type);
+        if (!type.equals("INFO"))
+            return;
+
+        long listEnd = body + length;
+        long subPos = body + 4;
+        while (listEnd - subPos >= 8) {
+            raf.seek(subPos);
+            raf.readFully(buffer, 0, 8);
+            String subId = new String(buffer, 0, 4, StandardCharsets.ISO_8859_1);
+            long subSize = getInt(buffer, 4) & 0xFFFFFFFFL;
+            if (subSize > listEnd - subPos - 8)
+                break;
+
+            String key = switch (subId) {
+                case "INAM" -> "title";
+                case "IART" -> "artist";
+                case "IPRD" -> "album";
+                case "ICMT" -> "comment";
+                case "ICRD" -> "year";
+                case "IGNR" -> "genre";
+                case "ITRK", "IPRT" -> "track";
+                default -> null;
+            };
+            if (key != null)
+                putText(key, subPos + 8, subSize);
+
+            subPos += 8 + subSize + (subSize & 1);
+        }
+    }
+
+    private void putText(String key, long pos, long length) throws IOException {
+        if (length <= 0)
+            return;
+        putBufferText(key, 0, fill(pos, length));
+    }
+
+    private void putBufferText(String key, int offset, int length) {
+        if (length <= 0)
+            return;
+        int end = offset;
+        while (end < offset + length && buffer[end] != 0)
+            end++;
+        String value = new String(buffer, offset, end - offset, StandardCharsets.UTF_8).trim();
+        if (!value.isEmpty()) {
+            System.out.println("      " + key + ": " + value);
+            metadata.put(key, value);
+        }
+    }
+
+    private int getInt(byte[] data, int offset) {
+        int value = MetadataParser.getIntBE(data, offset);
+        return littleEndian ? Integer.reverseBytes(value) : value;
+    }
+
+    private long getLong(byte[] data, int offset) {
+        // only used for ds64, which is always little-endian
+        return (getInt(data, offset) & 0xFFFFFFFFL) | ((long) getInt(data, offset + 4) << 32);
+    }
+
+    /** IEEE 754 80-bit extended, as used for the AIFF sample rate. */
+    private static double readExtended(byte[] data, int offset) {
+        int exponent = ((data[offset] & 0x7F) << 8) | (data[offset + 1] & 0xFF);
+        long mantissa = ((long) MetadataParser.getIntBE(data, offset + 2) << 32)
+                | (MetadataParser.getIntBE(data, offset + 6) & 0xFFFFFFFFL);
+        if (exponent == 0 && mantissa == 0)
+            return 0;
+        double value = Math.scalb((double) (mantissa >>> 11), exponent - 16383 - 52);
+        return (data[offset] & 0x80) != 0 ? -value : value;
+    }
+}
@@ -0,0 +1,142 @@
+package com.stopsopa.musicfilter;
+
+import com.stopsopa.musicfilter.MusicController.AudioFile;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Table ordering without collating on every comparison. Rows carry
+ * precomputed natural-order collation keys ({@link #naturalKey}), so a
+ * comparison is a key compare, and new or changed rows are merged into the
+ * already sorted list ({@link #merge}, {@link #insertionPoint}) instead of
+ * re-sorting everything.
+ */
+public class RowOrder {
+
+    private static final int MAX_DIGITS = 99;
+
+    // PRIMARY: case and accents don't matter, which also keeps the keys short
+    private static final ThreadLocal<Collator> COLLATOR = ThreadLocal.withInitial(() -> {
+        Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.PRIMARY);
+        return collator;
+    });
+
+    /**
+     * Collation key in natural order: each run of digits is rewritten as its
+     * length (two digits) followed by the digits without leading zeros, so
+     * "Track 2" sorts before "Track 10" and "01" equals "1".
+     */
+    public static CollationKey naturalKey(String s) {
+        if (s == null)
+            s = "";
+        StringBuilder natural = null;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                if (natural != null)
+                    natural.append(c);
+                continue;
+            }
+            if (natural == null)
+                natural = new StringBuilder(n + 8).append(s, 0, i);
+            int end = i;
+            while (end < n && s.charAt(end) >= '0' && s.charAt(end) <= '9')
+                end++;
+            int start = i;
+            while (start < end - 1 && s.charAt(start) == '0')
+                start++;
+            int digits = Math.min(end - start, MAX_DIGITS);
+            natural.append((char) ('0' + digits / 10)).append((char) ('0' + digits % 10)).append(s, start, start + digits);
+            i = end - 1;
+        }
+        return COLLATOR.get().getCollationKey(natural == null ? s : natural.toString());
+    }
+
+    /** Row comparator for the given sort columns, or null if the table is unsorted. */
+    public static Comparator<AudioFile> comparator(List<SessionSnapshot.SortColumn> sortOrder) {
+        Comparator<AudioFile> result = null;
+        for (SessionSnapshot.SortColumn column : sortOrder) {
+            Comparator<AudioFile> next = column(column.columnId());
+            if (next == null)
+                continue;
+            if (!column.ascending())
+                next = next.reversed();
+            result = result == null ? next : result.thenComparing(next);
+        }
+        return result;
+    }
+
+    private static Comparator<AudioFile> column(String columnId) {
+        if ("gain".equals(columnId)) {
+            // numerically; unmeasured rows first, like an empty string would
+            return (a, b) -> {
+                LoudnessAnalyzer.Result x = a.getLoudness();
+                LoudnessAnalyzer.Result y = b.getLoudness();
+                if (x == null || y == null)
+                    return x == null ? (y == null ? 0 : -1) : 1;
+                return Double.compare(x.gainDb(), y.gainDb());
+            };
+        }
+        if (!AudioFile.hasSortKey(columnId))
+            return null;
+        return (a, b) -> a.sortKey(columnId).compareTo(b.sortKey(columnId));
+    }
+
+    /** Computes the keys the sort columns need up front, e.g. on a background thread. */
+    public static void prepareKeys(Collection<AudioFile> rows, List<SessionSnapshot.SortColumn> sortOrder) {
+        for (SessionSnapshot.SortColumn column : sortOrder) {
+            if (!AudioFile.hasSortKey(column.columnId()))
+                continue;
+            for (AudioFile row : rows)
+                row.sortKey(column.columnId());
+        }
+    }
+
+    /**
+     * Both lists sorted by {@code order}, merged in one pass; additions go
+     * after existing rows that compare equal, as a stable sort would put them.
+     */
+    public static List<AudioFile> merge(List<AudioFile> sorted, List<AudioFile> additions,
+            Comparator<AudioFile> order) {
+        List<AudioFile> merged = new ArrayList<>(sorted.size() + additions.size());
+        int i = 0;
+        int j = 0;
+        while (i < sorted.size() && j < additions.size()) {
+            if (order.compare(additions.get(j), sorted.get(i)) < 0)
+                merged.add(additions.get(j++));
+            else
+                merged.add(sorted.get(i++));
+        }
+        merged.addAll(sorted.subList(i, sorted.size()));
+        merged.addAll(additions.subList(j, additions.size()));
+        return merged;
+    }
+
+    /** Index after the last row that sorts before or equal to {@code row}. */
+    public static int insertionPoint(List<AudioFile> sorted, AudioFile row, Comparator<AudioFile> order) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (order.compare(sorted.get(mid), row) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /** Whether {@code row} at {@code index} is still in order with its neighbours. */
+    public static boolean inPlace(List<AudioFile> sorted, int index, Comparator<AudioFile> order) {
+        AudioFile row = sorted.get(index);
+        return (index == 0 || order.compare(sorted.get(index - 1), row) <= 0)
+                && (index == sorted.size() - 1 || order.compare(row, sorted.get(index + 1)) <= 0);
+    }
+}
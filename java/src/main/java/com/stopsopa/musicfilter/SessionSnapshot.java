@@ -0,0 +1,208 @@
+package com.stopsopa.musicfilter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The table as it was when the app last saved it: rows in display order with
+ * their resolved metadata, the sort order and the selected row. Soft-deleted
+ * rows keep their {@code _deleted/} path, which is all the deleted state there is.
+ *
+ * <p>Binary layout (big-endian): a header (magic, version, save time, counts,
+ * selection), the sort columns, a string table, the rows and a trailer magic.
+ * Rows refer to strings by index, so directories, artists and albums shared by
+ * thousands of tracks are stored once. The file is written to a temporary
+ * sibling and moved into place, and read through a read-only memory mapping.
+ */
+public class SessionSnapshot {
+
+    private static final int MAGIC = 0x4D465353; // "MFSS"
+    private static final int TRAILER = 0x454E4421; // "END!"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_LOUDNESS = 1;
+    /** A row without loudness: five string refs, length, mtime and flags. */
+    private static final int TRACK_BYTES = 5 * 4 + 2 * 8 + 1;
+
+    /**
+     * One row. {@code length}/{@code modified} are the file's as of the last
+     * metadata parse (0 if it never finished), used to tell stale rows apart.
+     */
+    public record Track(File file, long length, long modified, String title, String artist, String album,
+            LoudnessAnalyzer.Result loudness) {
+    }
+
+    /** A sort column by its {@link javafx.scene.control.TableColumn#getId() id}. */
+    public record SortColumn(String columnId, boolean ascending) {
+    }
+
+    public record Session(List<Track> tracks, List<SortColumn> sortOrder, int selectedIndex) {
+    }
+
+    public static File defaultFile() {
+        return new File(System.getProperty("user.home"), ".musicfilter/session.bin");
+    }
+
+    public static void write(Session session, File target) throws IOException {
+        Map<String, Integer> index = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int[][] rows = new int[session.tracks().size()][];
+        for (int i = 0; i < rows.length; i++) {
+            Track track = session.tracks().get(i);
+            File parent = track.file().getAbsoluteFile().getParentFile();
+            rows[i] = new int[] {
+                    intern(parent == null ? "" : parent.getPath(), index, strings),
+                    intern(track.file().getName(), index, strings),
+                    intern(track.title(), index, strings),
+                    intern(track.artist(), index, strings),
+                    intern(track.album(), index, strings) };
+        }
+        int[] sortIds = new int[session.sortOrder().size()];
+        for (int i = 0; i < sortIds.length; i++)
+            sortIds[i] = intern(session.sortOrder().get(i).columnId(), index, strings);
+
+        File dir = target.getParentFile();
+        if (dir != null)
+            dir.mkdirs();
+        File temp = new File(dir, target.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp.toPath()), 256 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(strings.size());
+            out.writeInt(rows.length);
+            out.writeInt(sortIds.length);
+            out.writeInt(session.selectedIndex());
+
+            for (int i = 0; i < sortIds.length; i++) {
+                out.writeInt(sortIds[i]);
+                out.writeBoolean(session.sortOrder().get(i).ascending());
+            }
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            for (int i = 0; i < rows.length; i++) {
+                Track track = session.tracks().get(i);
+                for (int ref : rows[i])
+                    out.writeInt(ref);
+                out.writeLong(track.length());
+                out.writeLong(track.modified());
+                LoudnessAnalyzer.Result loudness = track.loudness();
+                out.writeByte(loudness != null ? FLAG_LOUDNESS : 0);
+                if (loudness != null) {
+                    out.writeDouble(loudness.integratedLufs());
+                    out.writeDouble(loudness.truePeak());
+                    out.writeDouble(loudness.gainDb());
+                }
+            }
+            out.writeInt(TRAILER);
+        }
+
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** The saved session, or null if there is none or it's from another version, truncated or damaged. */
+    public static Session read(File source) throws IOException {
+        if (!source.isFile())
+            return null;
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+            buffer.getLong(); // saved at
+            int stringCount = buffer.getInt();
+            int trackCount = buffer.getInt();
+            int sortCount = buffer.getInt();
+            int selectedIndex = buffer.getInt();
+            // a damaged count must not size an array the file can't fill
+            long needed = 5L * Math.max(sortCount, 0) + 4L * Math.max(stringCount, 0)
+                    + (long) TRACK_BYTES * Math.max(trackCount, 0);
+            if (sortCount < 0 || stringCount < 0 || trackCount < 0 || needed > buffer.remaining())
+                return null;
+
+            int[] sortIds = new int[sortCount];
+            boolean[] ascending = new boolean[sortCount];
+            for (int i = 0; i < sortCount; i++) {
+                sortIds[i] = buffer.getInt();
+                ascending[i] = buffer.get() != 0;
+            }
+
+            String[] strings = new String[stringCount];
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < stringCount; i++) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining())
+                    return null;
+                if (length > scratch.length)
+                    scratch = new byte[length];
+                buffer.get(scratch, 0, length);
+                strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+
+            // directories are shared by many rows; one File per directory
+            Map<Integer, File> dirs = new HashMap<>();
+            List<Track> tracks = new ArrayList<>(trackCount);
+            for (int i = 0; i < trackCount; i++) {
+                File dir = dirs.computeIfAbsent(buffer.getInt(), ref -> new File(strings[ref]));
+                File file = new File(dir, strings[buffer.getInt()]);
+                String title = strings[buffer.getInt()];
+                String artist = strings[buffer.getInt()];
+                String album = strings[buffer.getInt()];
+                long length = buffer.getLong();
+                long modified = buffer.getLong();
+                LoudnessAnalyzer.Result loudness = null;
+                if ((buffer.get() & FLAG_LOUDNESS) != 0)
+                    loudness = new LoudnessAnalyzer.Result(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+                tracks.add(new Track(file, length, modified, title, artist, album, loudness));
+            }
+            if (buffer.getInt() != TRAILER)
+                return null;
+
+            List<SortColumn> sortOrder = new ArrayList<>(sortCount);
+            for (int i = 0; i < sortCount; i++)
+                sortOrder.add(new SortColumn(strings[sortIds[i]], ascending[i]));
+            return new Session(tracks, sortOrder, selectedIndex);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            System.err.println("Ignoring damaged session snapshot " + source + ": " + e);
+            return null;
+        }
+    }
+
+    private static int intern(String s, Map<String, Integer> index, List<String> strings) {
+        if (s == null)
+            s = "";
+        Integer ref = index.get(s);
+        if (ref == null) {
+            ref = strings.size();
+            index.put(s, ref);
+            strings.add(s);
+        }
+        return ref;
+    }
+}
@@ -0,0 +1,107 @@
+package com.stopsopa.musicfilter;
+
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.util.Duration;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.prefs.Preferences;
+
+/**
+ * Triage mode: every row plays for {@link #excerptSeconds} seconds starting
+ * at {@link #startPercent} of the track, then the next row is selected. While
+ * one excerpt plays, the next row's player is created and positioned in the
+ * background ({@link AudioPlayer#prepare}), so switching only has to start it.
+ * Settings are kept in the user's preferences. All methods are FX thread only.
+ */
+public class SkimMode {
+
+    private static final Preferences PREFS = Preferences.userNodeForPackage(SkimMode.class);
+
+    private final BooleanProperty enabled = new SimpleBooleanProperty(false);
+    private final IntegerProperty excerptSeconds = new SimpleIntegerProperty(PREFS.getInt("skim.seconds", 10));
+    private final IntegerProperty startPercent = new SimpleIntegerProperty(PREFS.getInt("skim.startPercent", 40));
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "skim-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private record Prefetch(File file, CompletableFuture<AudioPlayer> player) {
+    }
+
+    private Prefetch next;
+
+    public SkimMode() {
+        excerptSeconds.addListener((obs, oldValue, newValue) -> PREFS.putInt("skim.seconds", newValue.intValue()));
+        startPercent.addListener((obs, oldValue, newValue) -> PREFS.putInt("skim.startPercent", newValue.intValue()));
+    }
+
+    public BooleanProperty enabledProperty() {
+        return enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled.get();
+    }
+
+    public IntegerProperty excerptSecondsProperty() {
+        return excerptSeconds;
+    }
+
+    public IntegerProperty startPercentProperty() {
+        return startPercent;
+    }
+
+    public Duration excerptLength() {
+        return Duration.seconds(excerptSeconds.get());
+    }
+
+    public double startFraction() {
+        return startPercent.get() / 100.0;
+    }
+
+    /** Starts opening and positioning {@code file} in the background, replacing any other prefetch. */
+    public void prefetch(File file) {
+        if (next != null) {
+            if (next.file().equals(file))
+                return;
+            discard(next);
+        }
+        next = new Prefetch(file, prepare(file));
+    }
+
+    /**
+     * A positioned player for {@code file}: the prefetched one if it matches
+     * (possibly still being prepared), otherwise a newly started preparation.
+     */
+    public CompletableFuture<AudioPlayer> open(File file) {
+        Prefetch prefetched = next;
+        next = null;
+        if (prefetched != null) {
+            if (prefetched.file().equals(file))
+                return prefetched.player();
+            discard(prefetched);
+        }
+        return prepare(file);
+    }
+
+    private CompletableFuture<AudioPlayer> prepare(File file) {
+        double fraction = startFraction();
+        return CompletableFuture.supplyAsync(() -> {
+            AudioPlayer player = FormatRegistry.get().createPlayer(file);
+            player.prepare(fraction);
+            return player;
+        }, prefetcher);
+    }
+
+    private static void discard(Prefetch prefetch) {
+        prefetch.player().thenAccept(player -> Platform.runLater(player::dispose));
+    }
+}
@@ -0,0 +1,229 @@
+package com.stopsopa.musicfilter;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.Tooltip;
+import javafx.scene.paint.Color;
+
+import java.util.Arrays;
+
+/**
+ * Live spectrum and level of what is playing, for the controls bar. Drawn on
+ * every pulse (the display rate) from the {@link SpectrumTap} of the current
+ * {@link JavaSoundAudioPlayer}, delayed by the player's output latency so that
+ * it matches what is heard. The FFT and all its buffers are allocated up front;
+ * JavaFX media players have no tap and leave it empty. The pulse listener runs
+ * from {@link #attach} until, with no tap, the bars have fallen to the floor.
+ */
+public class SpectrumMeter extends Canvas {
+
+    private static final double LEVEL_WIDTH = 6;
+    private static final Color BACKGROUND = Color.rgb(24, 24, 24);
+    private static final Color BAR = Color.rgb(90, 170, 240);
+    private static final Color PEAK = Color.rgb(230, 230, 230);
+
+    private final Analysis analysis = new Analysis();
+    private final double[] shown = new double[Analysis.BANDS];
+    private final double[] held = new double[Analysis.BANDS];
+    private double shownLevel = Analysis.FLOOR_DB;
+    private AudioPlayer player;
+    private SpectrumTap tap;
+    private long lastFrame;
+
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            render(now);
+        }
+    };
+
+    public SpectrumMeter(double width, double height) {
+        super(width, height);
+        Arrays.fill(shown, Analysis.FLOOR_DB);
+        Arrays.fill(held, Analysis.FLOOR_DB);
+        Tooltip.install(this, new Tooltip("Spectrum (40 Hz to 16 kHz) and level of what is playing"));
+        draw();
+    }
+
+    /** Shows {@code player} from now on; null shows nothing. */
+    public void attach(AudioPlayer player) {
+        if (tap != null)
+            tap.setEnabled(false);
+        this.player = player;
+        tap = player == null ? null : player.spectrumTap();
+        if (tap != null)
+            tap.setEnabled(true);
+        timer.start(); // also to let the bars fall after a detach
+    }
+
+    private void render(long now) {
+        double seconds = lastFrame == 0 ? 0 : (now - lastFrame) / 1e9;
+        lastFrame = now;
+        boolean fresh = false;
+        if (tap != null && tap.frameRate() > 0) {
+            long behind = (long) (player.outputLatency().toSeconds() * tap.frameRate());
+            fresh = analysis.update(tap, Math.min(behind, SpectrumTap.CAPACITY - Analysis.SIZE));
+        }
+
+        // bars jump up and fall at FALL dB per second; peaks hold, then fall too
+        double fall = Analysis.FALL_DB_PER_SECOND * seconds;
+        for (int b = 0; b < Analysis.BANDS; b++) {
+            double target = fresh ? analysis.bands[b] : Analysis.FLOOR_DB;
+            shown[b] = Math.max(target, shown[b] - fall);
+            held[b] = Math.max(shown[b], held[b] - fall / 4);
+        }
+        shownLevel = Math.max(fresh ? analysis.level : Analysis.FLOOR_DB, shownLevel - fall);
+        draw();
+
+        if (tap == null && atFloor()) {
+            timer.stop();
+            lastFrame = 0;
+        }
+    }
+
+    private boolean atFloor() {
+        if (shownLevel > Analysis.FLOOR_DB)
+            return false;
+        for (int b = 0; b < Analysis.BANDS; b++) {
+            if (shown[b] > Analysis.FLOOR_DB || held[b] > Analysis.FLOOR_DB)
+                return false;
+        }
+        return true;
+    }
+
+    private void draw() {
+        GraphicsContext g = getGraphicsContext2D();
+        double width = getWidth();
+        double height = getHeight();
+        g.setFill(BACKGROUND);
+        g.fillRect(0, 0, width, height);
+        double barWidth = (width - LEVEL_WIDTH - 2) / Analysis.BANDS;
+        for (int b = 0; b < Analysis.BANDS; b++) {
+            double x = b * barWidth;
+            double h = height * fraction(shown[b]);
+            g.setFill(BAR);
+            g.fillRect(x, height - h, Math.max(1, barWidth - 1), h);
+            g.setFill(PEAK);
+            g.fillRect(x, height - height * fraction(held[b]) - 1, Math.max(1, barWidth - 1), 1);
+        }
+        double level = height * fraction(shownLevel);
+        g.setFill(shownLevel > -1 ? Color.ORANGERED : PEAK);
+        g.fillRect(width - LEVEL_WIDTH, height - level, LEVEL_WIDTH, level);
+    }
+
+    private static double fraction(double db) {
+        return Math.max(0, Math.min(1, (db - Analysis.FLOOR_DB) / -Analysis.FLOOR_DB));
+    }
+
+    /**
+     * Hann-windowed {@link #SIZE}-point FFT of the newest tap samples, shown
+     * as the strongest bin in each of {@link #BANDS} logarithmic bands, and the
+     * peak level of the same samples. Nothing is allocated after construction.
+     */
+    static class Analysis {
+        static final int SIZE = 2048;
+        static final int BANDS = 32;
+        static final double FLOOR_DB = -72;
+        static final double FALL_DB_PER_SECOND = 48;
+        private static final double LOW_HZ = 40;
+        private static final double HIGH_HZ = 16000;
+
+        private final float[] samples = new float[SIZE];
+        private final double[] re = new double[SIZE];
+        private final double[] im = new double[SIZE];
+        private final double[] window = new double[SIZE];
+        private final double[] cos = new double[SIZE / 2];
+        private final double[] sin = new double[SIZE / 2];
+        private final int[] reversed = new int[SIZE];
+        private final int[] bandStart = new int[BANDS + 1];
+        private float bandRate;
+
+        /** dBFS per band and of the peak sample, after a successful {@link #update}. */
+        final double[] bands = new double[BANDS];
+        double level;
+
+        /** Reads attempted and those that found samples overwritten or not there. */
+        long reads;
+        long misses;
+
+        Analysis() {
+            int bits = Integer.numberOfTrailingZeros(SIZE);
+            for (int i = 0; i < SIZE; i++) {
+                window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (SIZE - 1));
+                reversed[i] = Integer.reverse(i) >>> (32 - bits);
+            }
+            for (int i = 0; i < SIZE / 2; i++) {
+                cos[i] = Math.cos(2 * Math.PI * i / SIZE);
+                sin[i] = -Math.sin(2 * Math.PI * i / SIZE);
+            }
+        }
+
+        /** Analyses the samples ending {@code behind} before the newest; false if they couldn't be read. */
+        boolean update(SpectrumTap tap, long behind) {
+            reads++;
+            if (!tap.read(samples, SIZE, behind)) {
+                misses++;
+                return false;
+            }
+            if (tap.frameRate() != bandRate)
+                bandEdges(tap.frameRate());
+
+            float peak = 0;
+            for (int i = 0; i < SIZE; i++) {
+                float s = samples[i];
+                peak = Math.max(peak, Math.abs(s));
+                re[reversed[i]] = s * window[i];
+                im[reversed[i]] = 0;
+            }
+            level = peak > 0 ? Math.max(FLOOR_DB, 20 * Math.log10(peak)) : FLOOR_DB;
+            fft();
+
+            // a full-scale sine comes out at 0 dB: its bin has SIZE / 2 times the window's coherent gain of 1/2
+            double norm = 16.0 / ((double) SIZE * SIZE);
+            for (int b = 0; b < BANDS; b++) {
+                double power = 0;
+                for (int k = bandStart[b]; k < bandStart[b + 1]; k++)
+                    power = Math.max(power, re[k] * re[k] + im[k] * im[k]);
+                bands[b] = power > 0 ? Math.max(FLOOR_DB, 10 * Math.log10(power * norm)) : FLOOR_DB;
+            }
+            return true;
+        }
+
+        /** FFT bins per band, at least one each, logarithmically from LOW_HZ to HIGH_HZ (or Nyquist). */
+        private void bandEdges(float rate) {
+            bandRate = rate;
+            double high = Math.min(HIGH_HZ, rate / 2);
+            int previous = 0;
+            for (int b = 0; b <= BANDS; b++) {
+                double hz = LOW_HZ * Math.pow(high / LOW_HZ, (double) b / BANDS);
+                int bin = Math.min(SIZE / 2, (int) Math.round(hz * SIZE / rate));
+                bandStart[b] = b == 0 ? bin : Math.max(bin, previous + 1);
+                previous = bandStart[b];
+            }
+            for (int b = BANDS; b >= 0; b--) // keep the top edge at Nyquist at most
+                bandStart[b] = Math.min(bandStart[b], SIZE / 2 - (BANDS - b));
+        }
+
+        /** In place, iterative radix-2, on the bit-reversed input. */
+        private void fft() {
+            for (int half = 1; half < SIZE; half <<= 1) {
+                int step = SIZE / (2 * half);
+                for (int start = 0; start < SIZE; start += 2 * half) {
+                    for (int k = 0; k < half; k++) {
+                        int a = start + k;
+                        int b = a + half;
+                        double wr = cos[k * step];
+                        double wi = sin[k * step];
+                        double tr = re[b] * wr - im[b] * wi;
+                        double ti = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+        }
+    }
+}
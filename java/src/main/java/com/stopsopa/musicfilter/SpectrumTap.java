@@ -0,0 +1,120 @@
+package com.stopsopa.musicfilter;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The audio {@link JavaSoundAudioPlayer} writes to its line, mixed to mono,
+ * for {@link SpectrumMeter}. One writer (the playback thread) and one reader
+ * (the FX thread), and neither waits for the other: the writer announces how
+ * far it is about to write, fills a ring of {@link #CAPACITY} samples up to
+ * there, overwriting whatever the reader didn't get to, and then publishes
+ * that position with a release store; the reader copies the newest published
+ * samples and checks afterwards, seqlock style, against the announced
+ * position that none of them was being overwritten meanwhile.
+ *
+ * <p>Writes cost one volatile read while nobody {@link #setEnabled listens};
+ * each player has its own tap, so a player being stopped never shares a ring
+ * with the next one. The writer's count, total and longest time are kept for
+ * {@link PlaybackAllocationCheck}.
+ */
+public class SpectrumTap {
+
+    /** Samples; covers the longest line buffer ({@link AudioOutput#MAX_BUFFER_MS}) at 96 kHz plus an FFT. */
+    static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    private final float[] ring = new float[CAPACITY];
+    private final AtomicLong written = new AtomicLong(); // samples since the start; release-stored by the writer
+    private final AtomicLong claimed = new AtomicLong(); // written plus the write in progress, stored before it
+    private volatile boolean enabled;
+
+    // line format, set by the writer before its first write and published by the write of frameRate
+    private int channels;
+    private int bytesPerSample;
+    private volatile float frameRate;
+
+    // writer side only
+    private volatile long writes;
+    private volatile long writeNanos;
+    private volatile long maxWriteNanos;
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Called by the writer whenever it opens a line. */
+    void format(AudioFormat format) {
+        channels = format.getChannels();
+        bytesPerSample = format.getSampleSizeInBits() / 8;
+        frameRate = format.getFrameRate();
+    }
+
+    /** {@code length} bytes (whole frames) in the last {@link #format}; never blocks or allocates. */
+    void write(byte[] data, int offset, int length) {
+        if (!enabled)
+            return;
+        long start = System.nanoTime();
+        int stride = channels * bytesPerSample;
+        int frames = length / stride;
+        float scale = 1f / channels;
+        long position = written.get();
+        claimed.set(position + frames);
+        VarHandle.storeStoreFence(); // the ring stores below stay after the claim
+        for (int f = 0; f < frames; f++) {
+            int base = offset + f * stride;
+            float sum = 0;
+            for (int ch = 0; ch < channels; ch++)
+                sum += PcmStreams.sampleAt(data, base + ch * bytesPerSample, bytesPerSample);
+            ring[(int) (position + f) & MASK] = sum * scale;
+        }
+        written.lazySet(position + frames);
+
+        long nanos = System.nanoTime() - start;
+        writes++; // single writer
+        writeNanos += nanos;
+        if (nanos > maxWriteNanos)
+            maxWriteNanos = nanos;
+    }
+
+    /** Samples per second, 0 before the first line was opened. */
+    public float frameRate() {
+        return frameRate;
+    }
+
+    /** Samples written so far. */
+    public long written() {
+        return written.get();
+    }
+
+    /**
+     * Copies the {@code count} samples that end {@code behind} samples before
+     * the newest into {@code into}. Returns false, leaving {@code into} in an
+     * undefined state, if they aren't all there (yet, or any more).
+     */
+    public boolean read(float[] into, int count, long behind) {
+        long end = written.get() - behind;
+        long begin = end - count;
+        if (begin < 0 || count + behind > CAPACITY)
+            return false;
+        for (int i = 0; i < count; i++)
+            into[i] = ring[(int) (begin + i) & MASK];
+        // the copy must be done before the claim is read; a write in progress counts as overwriting its slots
+        VarHandle.loadLoadFence();
+        return claimed.get() - begin <= CAPACITY;
+    }
+
+    public long writes() {
+        return writes;
+    }
+
+    public double meanWriteMicros() {
+        long n = writes;
+        return n == 0 ? 0 : writeNanos / 1e3 / n;
+    }
+
+    public double maxWriteMicros() {
+        return maxWriteNanos / 1e3;
+    }
+}
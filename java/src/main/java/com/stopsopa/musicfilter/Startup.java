@@ -0,0 +1,130 @@
+package com.stopsopa.musicfilter;
+
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.media.Media;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Cold start in two phases. The window and the (restored) table come first;
+ * once the first frame is laid out, the start counts as interactive and what
+ * the first play or metadata read would otherwise pay for is done on a
+ * background thread: Java Sound's service-provider discovery (vorbisspi,
+ * jflac, jaad, tritonus), the output devices and the native JavaFX media stack.
+ *
+ * <p>Each start appends a line to {@code ~/.musicfilter/startup.tsv}: time,
+ * milliseconds from JVM start to interactive, warm-up milliseconds, whether a
+ * class-data archive was in use, and the number of rows. With
+ * {@code -Dmusicfilter.exitAfterStartup=true} the app exits once the warm-up
+ * is done, which is how {@code mvn -Pcds package} records the classes for its
+ * archive.
+ */
+public class Startup {
+
+    private static final File LOG = new File(System.getProperty("user.home"), ".musicfilter/startup.tsv");
+
+    /** Calls {@link #interactive} after the first layout pass of {@code scene}. */
+    static void whenInteractive(Scene scene, int rows) {
+        Runnable[] listener = new Runnable[1];
+        listener[0] = () -> {
+            scene.removePostLayoutPulseListener(listener[0]);
+            // after this pulse has been rendered
+            Platform.runLater(() -> interactive(rows));
+        };
+        scene.addPostLayoutPulseListener(listener[0]);
+    }
+
+    private static void interactive(int rows) {
+        long interactiveMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        boolean archive = ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+                .anyMatch(arg -> arg.startsWith("-XX:SharedArchiveFile="));
+        System.out.printf("Interactive %d ms after JVM start (%s)%n", interactiveMillis,
+                archive ? "class-data archive" : "no class-data archive");
+
+        Thread warmUp = new Thread(() -> {
+            long start = System.nanoTime();
+            warmUp();
+            long warmUpMillis = (System.nanoTime() - start) / 1_000_000;
+            record(interactiveMillis, warmUpMillis, archive, rows);
+            if (Boolean.getBoolean("musicfilter.exitAfterStartup"))
+                Platform.runLater(Platform::exit);
+        }, "startup-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    private static void warmUp() {
+        step("Java Sound providers", () -> {
+            AudioSystem.getTargetEncodings(AudioFormat.Encoding.PCM_SIGNED);
+            try {
+                // asks every AudioFileReader, which loads each SPI's reader classes
+                AudioSystem.getAudioFileFormat(new BufferedInputStream(new ByteArrayInputStream(new byte[64])));
+            } catch (UnsupportedAudioFileException e) {
+                // expected: nobody reads 64 zero bytes
+            }
+        });
+        step("output devices", () -> AudioOutput.get().mixers());
+        step("format registry", FormatRegistry::get);
+        step("JavaFX media", () -> {
+            File silence = File.createTempFile("musicfilter-warm-up", ".wav");
+            try {
+                Files.write(silence.toPath(), silentWav());
+                new Media(silence.toURI().toString());
+            } finally {
+                silence.delete();
+            }
+        });
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    private static void step(String name, Step step) {
+        long start = System.nanoTime();
+        try {
+            step.run();
+            System.out.printf("Warm-up: %s in %.1f ms%n", name, (System.nanoTime() - start) / 1e6);
+        } catch (Exception | LinkageError e) {
+            System.err.println("Warm-up of " + name + " failed: " + e);
+        }
+    }
+
+    /** One frame of 16-bit mono silence. */
+    private static byte[] silentWav() {
+        ByteBuffer wav = ByteBuffer.allocate(46).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(38).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        wav.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(44100).putInt(88200).putShort((short) 2).putShort((short) 16);
+        wav.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(2).putShort((short) 0);
+        return wav.array();
+    }
+
+    private static void record(long interactiveMillis, long warmUpMillis, boolean archive, int rows) {
+        try {
+            LOG.getParentFile().mkdirs();
+            try (BufferedWriter writer = Files.newBufferedWriter(LOG.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(Instant.now() + "\t" + interactiveMillis + "\t" + warmUpMillis + "\t"
+                        + (archive ? "cds" : "-") + "\t" + rows + "\n");
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write startup log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.stopsopa.musicfilter;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JDK Flight Recorder events for a track's way from drop to sound: scan,
+ * parse, player construction, duration probe, stream open, line open, seek,
+ * first sample written, underruns and soft delete. Track events carry a
+ * {@code trackId} that stays the same for a file for the whole run (also
+ * across a soft delete), so one recording gives each track's latency
+ * breakdown; {@link #main} prints it.
+ *
+ * <p>Events cost next to nothing unless a recording is running, e.g.
+ * {@code -XX:StartFlightRecording=filename=musicfilter.jfr}.
+ */
+public class TrackEvents {
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+    private static final Map<String, Long> IDS = new ConcurrentHashMap<>();
+
+    /** The run-wide id of the track at {@code file}. */
+    public static long id(File file) {
+        return IDS.computeIfAbsent(file.getAbsolutePath(), path -> NEXT_ID.getAndIncrement());
+    }
+
+    /** Keeps the id when a file is moved (soft delete and restore). */
+    static void moved(File from, File to) {
+        IDS.put(to.getAbsolutePath(), id(from));
+    }
+
+    @Category({ "Music Filter", "Track" })
+    @StackTrace(false)
+    abstract static class TrackEvent extends Event {
+        @Label("Track Id")
+        @Description("Same for every event of one file in this run")
+        long trackId;
+
+        @Label("Path")
+        String path;
+
+        TrackEvent track(File file) {
+            trackId = id(file);
+            path = file.getPath();
+            return this;
+        }
+    }
+
+    @Name("musicfilter.Drop")
+    @Label("Drop")
+    @Description("Dropped files and folders: walk, sort keys and merge into the table")
+    @Category({ "Music Filter", "Library" })
+    @StackTrace(false)
+    static class Drop extends Event {
+        @Label("Dropped Items")
+        int items;
+
+        @Label("Rows Added")
+        int rows;
+    }
+
+    @Name("musicfilter.Scan")
+    @Label("Scan")
+    @Description("Directory walk of one dropped folder")
+    @Category({ "Music Filter", "Library" })
+    @StackTrace(false)
+    static class Scan extends Event {
+        @Label("Directory")
+        String directory;
+
+        @Label("Files Found")
+        int files;
+    }
+
+    @Name("musicfilter.Parse")
+    @Label("Parse")
+    @Description("Tag parsing of one file")
+    static class Parse extends TrackEvent {
+        @Label("Parser")
+        String parser;
+
+        @Label("Fields Found")
+        int fields;
+    }
+
+    @Name("musicfilter.PlayerCreate")
+    @Label("Player Create")
+    @Description("Player construction, including the duration probe")
+    static class PlayerCreate extends TrackEvent {
+        @Label("Player")
+        String player;
+    }
+
+    @Name("musicfilter.DurationProbe")
+    @Label("Duration Probe")
+    @Description("Finding the total duration when a Java Sound player is created")
+    static class DurationProbe extends TrackEvent {
+        @Label("Duration")
+        @Timespan(Timespan.MILLISECONDS)
+        long durationMillis;
+    }
+
+    @Name("musicfilter.StreamOpen")
+    @Label("Stream Open")
+    @Description("Decoder opened and positioned, including decoding up to the start position")
+    static class StreamOpen extends TrackEvent {
+        @Label("Start")
+        @Timespan(Timespan.MILLISECONDS)
+        long startMillis;
+
+        @Label("Skipped Bytes")
+        @Description("Decoded and dropped to reach the start position")
+        long skippedBytes;
+    }
+
+    @Name("musicfilter.LineOpen")
+    @Label("Line Open")
+    static class LineOpen extends TrackEvent {
+        @Label("Format")
+        String format;
+
+        @Label("Buffer Bytes")
+        int bufferBytes;
+    }
+
+    @Name("musicfilter.Seek")
+    @Label("Seek")
+    @Description("Seek until audio at the target can be written")
+    static class Seek extends TrackEvent {
+        @Label("Target")
+        @Timespan(Timespan.MILLISECONDS)
+        long targetMillis;
+    }
+
+    @Name("musicfilter.FirstSample")
+    @Label("First Sample")
+    @Description("From play() to the first buffer written to the line")
+    static class FirstSample extends TrackEvent {
+    }
+
+    @Name("musicfilter.Underrun")
+    @Label("Underrun")
+    @Description("The line ran dry before the next buffer was written")
+    static class Underrun extends TrackEvent {
+        @Label("Buffer Bytes")
+        int bufferBytes;
+    }
+
+    @Name("musicfilter.SoftDelete")
+    @Label("Soft Delete")
+    @Description("File moved into _deleted, or back out of it")
+    static class SoftDelete extends TrackEvent {
+        @Label("Restore")
+        boolean restore;
+
+        @Label("New Path")
+        String newPath;
+    }
+
+    private static final EventType UNDERRUN = EventType.getEventType(Underrun.class);
+
+    /** Whether checking for underruns is worth a call into the line. */
+    static boolean underrunEnabled() {
+        return UNDERRUN.isEnabled();
+    }
+
+    /**
+     * {@code TrackEvents <recording.jfr> [path substring]}: every track event
+     * of the recording, grouped by track, with offsets from the track's first
+     * event.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: TrackEvents <recording.jfr> [path substring]");
+            System.exit(2);
+        }
+        String filter = args.length > 1 ? args[1] : null;
+
+        Map<Long, List<RecordedEvent>> tracks = new LinkedHashMap<>();
+        Map<Long, String> paths = new LinkedHashMap<>();
+        List<RecordedEvent> library = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(Path.of(args[0]))) {
+            String name = event.getEventType().getName();
+            if (!name.startsWith("musicfilter."))
+                continue;
+            if (!event.hasField("trackId")) {
+                library.add(event);
+                continue;
+            }
+            long id = event.getLong("trackId");
+            tracks.computeIfAbsent(id, k -> new ArrayList<>()).add(event);
+            paths.putIfAbsent(id, event.getString("path"));
+        }
+
+        library.sort(Comparator.comparing(RecordedEvent::getStartTime));
+        for (RecordedEvent event : library) {
+            System.out.printf("%-14s %8.1f ms  %s%n", event.getEventType().getLabel(),
+                    event.getDuration().toNanos() / 1e6, fields(event));
+        }
+
+        for (Map.Entry<Long, List<RecordedEvent>> track : tracks.entrySet()) {
+            String path = paths.get(track.getKey());
+            if (filter != null && (path == null || !path.contains(filter)))
+                continue;
+            List<RecordedEvent> events = track.getValue();
+            events.sort(Comparator.comparing(RecordedEvent::getStartTime));
+            Instant first = events.get(0).getStartTime();
+            System.out.printf("%n#%d %s%n", track.getKey(), path);
+            for (RecordedEvent event : events) {
+                System.out.printf("  +%9.1f ms  %-15s %8.1f ms  [%s] %s%n",
+                        java.time.Duration.between(first, event.getStartTime()).toNanos() / 1e6,
+                        event.getEventType().getLabel(), event.getDuration().toNanos() / 1e6,
+                        event.getThread() == null ? "?" : event.getThread().getJavaName(), fields(event));
+            }
+        }
+    }
+
+    private static String fields(RecordedEvent event) {
+        StringBuilder text = new StringBuilder();
+        event.getFields().forEach(field -> {
+            String name = field.getName();
+            if (name.equals("startTime") || name.equals("duration") || name.equals("eventThread")
+                    || name.equals("stackTrace") || name.equals("trackId") || name.equals("path"))
+                return;
+            text.append(name).append('=').append(String.valueOf(event.getValue(name))).append(' ');
+        });
+        return text.toString().trim();
+    }
+}
@@ -0,0 +1,466 @@
+package com.stopsopa.musicfilter;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.collections.ListChangeListener;
+import javafx.event.Event;
+import javafx.scene.Scene;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+import javafx.stage.Stage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the main window against a large library and measures how responsive
+ * the FX thread stays while scripted scenarios drive it: dropping the tree,
+ * scrolling, sorting by every column, holding DOWN and bursts of BACKSPACE.
+ *
+ * <p>Per scenario it records pulse durations (from the animation phase to the
+ * end of layout; rendering shows up in the frame intervals), the latency of a
+ * {@code Platform.runLater} probe posted every 5 ms, and dropped frames (pulse
+ * intervals longer than 1.5 frames at 60 Hz). Each scenario passes or fails
+ * against thresholds; the exit code is 1 if any failed.
+ *
+ * <p>Without {@code --library}, a library of {@code --files} tracks (default
+ * 200,000) is generated with {@link LibraryGenerator} into the temp folder and
+ * reused by later runs. BACKSPACE soft-deletes files, so that scenario only
+ * runs on generated libraries and moves the files back afterwards.
+ * {@code --headless} selects Monocle, which the {@code headless} Maven profile
+ * puts on the classpath.
+ */
+public class UiBenchmark extends Application {
+
+    private static final long FRAME_NANOS = 1_000_000_000L / 60;
+    private static final long PROBE_INTERVAL_MS = 5;
+    private static final long WAIT_TIMEOUT_MS = 120_000;
+
+    private static final List<String> ALL_SCENARIOS = List.of("drop", "scroll", "sort", "down", "backspace");
+
+    record Thresholds(double pulseP99Ms, double latencyP99Ms, double latencyMaxMs, double droppedPercent) {
+    }
+
+    record Report(String scenario, int pulses, double pulseP50Ms, double pulseP99Ms, double pulseMaxMs,
+            double latencyP50Ms, double latencyP99Ms, double latencyMaxMs, int frames, int droppedFrames) {
+    }
+
+    /** Growable array of nanosecond samples; only touched on the FX thread. */
+    private static final class Samples {
+        private long[] values = new long[4096];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        /** Percentile in milliseconds, 0 when empty. */
+        double percentileMs(double p) {
+            if (size == 0)
+                return 0;
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(p / 100 * size);
+            return sorted[Math.max(0, Math.min(size, rank) - 1)] / 1e6;
+        }
+    }
+
+    // Application.launch creates the instance, so the command line is handed over statically
+    private static File library;
+    private static boolean generated;
+    private static int expectedRows;
+    private static List<String> scenarios;
+    private static Thresholds thresholds;
+    private static File reportFile;
+    private static PrintStream console;
+
+    private final Samples pulses = new Samples();
+    private final Samples latencies = new Samples();
+    private long pulseStart;
+    private long lastFrame;
+    private int frames;
+    private int droppedFrames;
+    private volatile long itemChanges;
+
+    private MusicController controller;
+    private TableView<MusicController.AudioFile> table;
+    private final List<Report> reports = new ArrayList<>();
+
+    @Override
+    public void start(Stage stage) {
+        controller = new MusicController(stage);
+        Scene scene = App.createScene(controller);
+        stage.setScene(scene);
+        stage.setTitle("Music Filter benchmark");
+        stage.show();
+        table = controller.getTableView();
+        table.getItems().addListener((ListChangeListener<MusicController.AudioFile>) c -> itemChanges++);
+
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                pulseStart = System.nanoTime();
+                if (lastFrame != 0) {
+                    long interval = now - lastFrame;
+                    frames++;
+                    if (interval > FRAME_NANOS * 3 / 2)
+                        droppedFrames += (int) Math.round((double) interval / FRAME_NANOS) - 1;
+                }
+                lastFrame = now;
+            }
+        }.start();
+        scene.addPostLayoutPulseListener(() -> {
+            if (pulseStart != 0)
+                pulses.add(System.nanoTime() - pulseStart);
+            pulseStart = 0;
+        });
+
+        Thread probe = new Thread(() -> {
+            while (true) {
+                long posted = System.nanoTime();
+                Platform.runLater(() -> latencies.add(System.nanoTime() - posted));
+                try {
+                    Thread.sleep(PROBE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "ui-benchmark-probe");
+        probe.setDaemon(true);
+        probe.start();
+
+        Thread driver = new Thread(this::runScenarios, "ui-benchmark");
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    private void runScenarios() {
+        int exitCode;
+        try {
+            for (String scenario : scenarios) {
+                switch (scenario) {
+                    case "drop" -> measure("drop", this::drop);
+                    case "scroll" -> measure("scroll", this::scroll);
+                    case "sort" -> sort();
+                    case "down" -> measure("hold DOWN", this::holdDown);
+                    case "backspace" -> {
+                        if (generated)
+                            measure("BACKSPACE bursts", this::backspaceBursts);
+                        else
+                            console.println("Skipping BACKSPACE bursts: only run on generated libraries");
+                    }
+                    default -> console.println("Unknown scenario: " + scenario);
+                }
+            }
+            exitCode = report() ? 0 : 1;
+        } catch (Exception e) {
+            console.println("Benchmark failed: " + e);
+            e.printStackTrace(console);
+            exitCode = 2;
+        } finally {
+            if (generated)
+                restoreDeleted(library);
+        }
+        Platform.exit();
+        System.exit(exitCode);
+    }
+
+    // ---- scenarios ----
+
+    private interface Scenario {
+        void run() throws Exception;
+    }
+
+    private void measure(String name, Scenario scenario) throws Exception {
+        fx(() -> {
+            pulses.clear();
+            latencies.clear();
+            frames = 0;
+            droppedFrames = 0;
+            lastFrame = 0;
+            return null;
+        });
+        console.println("Running " + name);
+        scenario.run();
+        reports.add(fx(() -> new Report(name, pulses.size, pulses.percentileMs(50), pulses.percentileMs(99),
+                pulses.percentileMs(100), latencies.percentileMs(50), latencies.percentileMs(99),
+                latencies.percentileMs(100), frames, droppedFrames)));
+    }
+
+    /** What {@code r} exceeded, or null if it passed. */
+    private static String check(Report r) {
+        List<String> failures = new ArrayList<>();
+        if (r.pulseP99Ms() > thresholds.pulseP99Ms())
+            failures.add(String.format("pulse p99 %.1f ms > %.1f", r.pulseP99Ms(), thresholds.pulseP99Ms()));
+        if (r.latencyP99Ms() > thresholds.latencyP99Ms())
+            failures.add(String.format("latency p99 %.1f ms > %.1f", r.latencyP99Ms(), thresholds.latencyP99Ms()));
+        if (r.latencyMaxMs() > thresholds.latencyMaxMs())
+            failures.add(String.format("latency max %.1f ms > %.1f", r.latencyMaxMs(), thresholds.latencyMaxMs()));
+        double dropped = r.frames() == 0 ? 0 : 100.0 * r.droppedFrames() / (r.frames() + r.droppedFrames());
+        if (dropped > thresholds.droppedPercent())
+            failures.add(String.format("%.1f%% frames dropped > %.1f", dropped, thresholds.droppedPercent()));
+        return failures.isEmpty() ? null : String.join("; ", failures);
+    }
+
+    /** Drops the library and waits until every row is in and metadata loading has calmed down. */
+    private void drop() throws Exception {
+        fx(() -> {
+            controller.addFiles(List.of(library));
+            return null;
+        });
+        waitFor(() -> table.getItems().size() >= expectedRows, "rows to appear");
+        Thread.sleep(5000); // metadata arriving for the visible and sorted rows
+    }
+
+    /** Smooth wheel-like scrolling down and back up, then jumps to random rows. */
+    private void scroll() throws Exception {
+        VirtualFlow<?> flow = fx(() -> (VirtualFlow<?>) table.lookup(".virtual-flow"));
+        for (int i = 0; i < 180; i++) {
+            double delta = i < 90 ? 72 : -72;
+            Platform.runLater(() -> flow.scrollPixels(delta));
+            Thread.sleep(16);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 30; i++) {
+            int row = random.nextInt(Math.max(1, expectedRows));
+            Platform.runLater(() -> table.scrollTo(row));
+            Thread.sleep(100);
+        }
+        Thread.sleep(500);
+    }
+
+    /** Every sortable column, ascending then descending, each measured on its own. */
+    private void sort() throws Exception {
+        List<TableColumn<MusicController.AudioFile, ?>> columns = fx(() -> new ArrayList<>(table.getColumns()));
+        for (TableColumn<MusicController.AudioFile, ?> column : columns) {
+            if (!column.isSortable())
+                continue;
+            for (TableColumn.SortType type : TableColumn.SortType.values()) {
+                measure("sort " + column.getText() + " " + type.name().toLowerCase(), () -> {
+                    long before = itemChanges;
+                    fx(() -> {
+                        column.setSortType(type);
+                        table.getSortOrder().clear();
+                        table.getSortOrder().add(column);
+                        return null;
+                    });
+                    waitFor(() -> itemChanges != before, "the sort to finish");
+                    Thread.sleep(500);
+                });
+            }
+        }
+    }
+
+    /** Key repeat on DOWN: 30 presses a second for 10 seconds, as holding the key does. */
+    private void holdDown() throws Exception {
+        fx(() -> {
+            table.requestFocus();
+            table.getSelectionModel().clearAndSelect(0);
+            return null;
+        });
+        for (int i = 0; i < 300; i++) {
+            Platform.runLater(() -> press(KeyCode.DOWN));
+            Thread.sleep(33);
+        }
+        Thread.sleep(500);
+    }
+
+    /** Five bursts of ten deletions at 20 a second, a second apart. */
+    private void backspaceBursts() throws Exception {
+        fx(() -> {
+            table.requestFocus();
+            table.getSelectionModel().clearAndSelect(table.getItems().size() / 2);
+            return null;
+        });
+        for (int burst = 0; burst < 5; burst++) {
+            for (int i = 0; i < 10; i++) {
+                Platform.runLater(() -> press(KeyCode.BACK_SPACE));
+                Thread.sleep(50);
+            }
+            Thread.sleep(1000);
+        }
+    }
+
+    private void press(KeyCode code) {
+        Event.fireEvent(table, new KeyEvent(KeyEvent.KEY_PRESSED, "", "", code, false, false, false, false));
+        Event.fireEvent(table, new KeyEvent(KeyEvent.KEY_RELEASED, "", "", code, false, false, false, false));
+    }
+
+    // ---- plumbing ----
+
+    /** Runs {@code task} on the FX thread and waits for its result. */
+    private static <T> T fx(Callable<T> task) throws Exception {
+        FutureTask<T> future = new FutureTask<>(task);
+        Platform.runLater(future);
+        return future.get();
+    }
+
+    private static void waitFor(BooleanSupplier condition, String what) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (!fx(condition::getAsBoolean)) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Timed out waiting for " + what);
+            Thread.sleep(50);
+        }
+    }
+
+    /** Prints the table and writes the TSV report; true if every scenario passed. */
+    private boolean report() throws IOException {
+        console.printf("%n%-28s %7s %8s %8s %8s %9s %9s %9s %7s %7s  %s%n", "scenario", "pulses", "p50 ms", "p99 ms",
+                "max ms", "lat p50", "lat p99", "lat max", "frames", "dropped", "result");
+        boolean passed = true;
+        for (Report r : reports) {
+            String failure = check(r);
+            console.printf("%-28s %7d %8.1f %8.1f %8.1f %9.1f %9.1f %9.1f %7d %7d  %s%n", r.scenario(), r.pulses(),
+                    r.pulseP50Ms(), r.pulseP99Ms(), r.pulseMaxMs(), r.latencyP50Ms(), r.latencyP99Ms(),
+                    r.latencyMaxMs(), r.frames(), r.droppedFrames(), failure == null ? "PASS" : "FAIL: " + failure);
+            passed &= failure == null;
+        }
+        if (reportFile != null) {
+            try (BufferedWriter out = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8)) {
+                out.write("scenario\tpulses\tpulse_p50_ms\tpulse_p99_ms\tpulse_max_ms\tlatency_p50_ms\tlatency_p99_ms"
+                        + "\tlatency_max_ms\tframes\tdropped\tresult\n");
+                for (Report r : reports) {
+                    out.write(String.format("%s\t%d\t%.2f\t%.2f\t%.2f\t%.2f\t%.2f\t%.2f\t%d\t%d\t%s%n", r.scenario(),
+                            r.pulses(), r.pulseP50Ms(), r.pulseP99Ms(), r.pulseMaxMs(), r.latencyP50Ms(),
+                            r.latencyP99Ms(), r.latencyMaxMs(), r.frames(), r.droppedFrames(),
+                            check(r) == null ? "PASS" : "FAIL: " + check(r)));
+                }
+            }
+        }
+        console.println(passed ? "All scenarios passed" : "Some scenarios FAILED");
+        return passed;
+    }
+
+    /** Moves soft-deleted files back, so a generated library stays reusable. */
+    private static void restoreDeleted(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+        for (File child : children) {
+            if (!child.isDirectory())
+                continue;
+            if (!child.getName().equals("_deleted")) {
+                restoreDeleted(child);
+                continue;
+            }
+            File[] deleted = child.listFiles();
+            if (deleted != null) {
+                for (File file : deleted) {
+                    try {
+                        Files.move(file.toPath(), new File(dir, file.getName()).toPath(),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e) {
+                        System.err.println("Failed to restore " + file + ": " + e.getMessage());
+                    }
+                }
+            }
+            child.delete();
+        }
+    }
+
+    private static int countRows(File dir) {
+        int count = 0;
+        File[] children = dir.listFiles();
+        if (children == null)
+            return 0;
+        for (File child : children) {
+            if (child.isDirectory())
+                count += child.getName().equals("_deleted") ? 0 : countRows(child);
+            else if (FormatRegistry.get().isCandidate(child))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * {@code UiBenchmark [--headless] [--library DIR | --files N --seed N] [--scenarios drop,scroll,sort,down,backspace]
+     * [--pulse-p99 MS] [--latency-p99 MS] [--latency-max MS] [--dropped PERCENT] [--report FILE] [--verbose]}
+     */
+    public static void main(String[] args) throws Exception {
+        int files = 200_000;
+        long seed = 1;
+        boolean headless = false;
+        boolean verbose = false;
+        double pulseP99 = 33;
+        double latencyP99 = 100;
+        double latencyMax = 1000;
+        double dropped = 10;
+        scenarios = ALL_SCENARIOS;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--headless" -> headless = true;
+                case "--verbose" -> verbose = true;
+                case "--library" -> library = new File(args[++i]);
+                case "--files" -> files = Integer.parseInt(args[++i]);
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                case "--scenarios" -> scenarios = List.of(args[++i].split(","));
+                case "--pulse-p99" -> pulseP99 = Double.parseDouble(args[++i]);
+                case "--latency-p99" -> latencyP99 = Double.parseDouble(args[++i]);
+                case "--latency-max" -> latencyMax = Double.parseDouble(args[++i]);
+                case "--dropped" -> dropped = Double.parseDouble(args[++i]);
+                case "--report" -> reportFile = new File(args[++i]);
+                default -> {
+                    System.err.println("Unknown argument: " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+        thresholds = new Thresholds(pulseP99, latencyP99, latencyMax, dropped);
+
+        if (library == null) {
+            library = new File(System.getProperty("java.io.tmpdir"), "musicfilter-bench-" + seed + "-" + files);
+            if (!new File(library, LibraryGenerator.MANIFEST).isFile()) {
+                Map<AudioFileType, Integer> mix = new LinkedHashMap<>();
+                mix.put(AudioFileType.MP3, 4);
+                mix.put(AudioFileType.FLAC, 4);
+                mix.put(AudioFileType.MP4, 2);
+                mix.put(AudioFileType.OGG, 1);
+                new LibraryGenerator(new LibraryGenerator.Options(library, seed, files, mix,
+                        LibraryGenerator.Layout.MIXED, 16, 2, 0, 1, false)).generate();
+            }
+        }
+        generated = new File(library, LibraryGenerator.MANIFEST).isFile();
+        if (generated)
+            restoreDeleted(library); // left over from an interrupted run
+        expectedRows = countRows(library);
+        System.out.println("Benchmarking with " + expectedRows + " files from " + library);
+
+        if (headless) {
+            System.setProperty("glass.platform", "Monocle");
+            System.setProperty("monocle.platform", "Headless");
+            System.setProperty("prism.order", "sw");
+            System.setProperty("prism.text", "t2k");
+        }
+        // the parser and players log every file; keep the report readable
+        console = System.out;
+        if (!verbose)
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        launch(UiBenchmark.class);
+    }
+}